@@ -147,79 +147,78 @@ public class AssignmentOperation implements Serializable {
         } else {
             int currentvalue = target.defer(session);
             int cal = value.get(session);
-
-            switch (operation) {
-                case OP_PLUS:
-                    result = currentvalue + cal;
-                    break;
-                case OP_MINUS:
-                    result = currentvalue - cal;
-                    break;
-                case OP_MUL:
-                    result = currentvalue * cal;
-                    break;
-                case OP_DIVIDE:
-                    result = currentvalue / cal;
-                    break;
-                case OP_MOD:
-                    result = currentvalue % cal;
-                    break;
-                case OP_AND:
-                    result = currentvalue & cal;
-                    break;
-                case OP_OR:
-                    result = currentvalue | cal;
-                    break;
-                case OP_XOR:
-                    result = currentvalue ^ cal;
-                    break;
-                case OP_LSH:
-                    result = currentvalue << cal;
-                    break;
-                case OP_RSHA:
-                    result = currentvalue >> cal;
-                    break;
-                case OP_RSHL:
-                    result = currentvalue >>> cal;
-                    break;
-                case OP_LRO:
-                    result = rotl(currentvalue, cal);
-                    break;
-                case OP_RRO:
-                    result = rotr(currentvalue, cal);
-                    break;
-                case OP_EQ:
-                    result = (currentvalue == cal) ? 1 : 0;
-                    break;
-                case OP_NEQ:
-                    result = (currentvalue != cal) ? 1 : 0;
-                    break;
-                case OP_LT:
-                    result = (currentvalue < cal) ? 1 : 0;
-                    break;
-                case OP_GT:
-                    result = (currentvalue > cal) ? 1 : 0;
-                    break;
-                case OP_LTEQ:
-                    result = (currentvalue <= cal) ? 1 : 0;
-                    break;
-                case OP_GTEQ:
-                    result = (currentvalue >= cal) ? 1 : 0;
-                    break;
-                    
-                default:
-                    throw new MigolExecutionException("Unknown assignment operator", session.getPP());
-            }
+            result = calculate(operation, currentvalue, cal, session);
         }
         target.set(session, result);
     }
 
-    private int rotl(int value, int shift) {
+    /**
+     * Applies an assignment operator to two integers.
+     *
+     * This method is used by execution engines which do not use
+     * <code>AssignmentOperation</code> objects directly.
+     * @param operation     The operator, one of the <code>OP_</code> constants.
+     * @param currentvalue  The current value of the target.
+     * @param cal           The operand value.
+     * @param session   The session object, used for error reporting.
+     * @return  The new value of the target.
+     * @throws se.migomipo.migol.MigolExecutionException
+     * If the operator is unknown.
+     */
+    public static int calculate(int operation, int currentvalue, int cal,
+            MigolExecutionSession session) throws MigolExecutionException {
+        switch (operation) {
+            case OP_ASSIGN:
+                return cal;
+            case OP_PLUS:
+                return currentvalue + cal;
+            case OP_MINUS:
+                return currentvalue - cal;
+            case OP_MUL:
+                return currentvalue * cal;
+            case OP_DIVIDE:
+                return currentvalue / cal;
+            case OP_MOD:
+                return currentvalue % cal;
+            case OP_AND:
+                return currentvalue & cal;
+            case OP_OR:
+                return currentvalue | cal;
+            case OP_XOR:
+                return currentvalue ^ cal;
+            case OP_LSH:
+                return currentvalue << cal;
+            case OP_RSHA:
+                return currentvalue >> cal;
+            case OP_RSHL:
+                return currentvalue >>> cal;
+            case OP_LRO:
+                return rotl(currentvalue, cal);
+            case OP_RRO:
+                return rotr(currentvalue, cal);
+            case OP_EQ:
+                return (currentvalue == cal) ? 1 : 0;
+            case OP_NEQ:
+                return (currentvalue != cal) ? 1 : 0;
+            case OP_LT:
+                return (currentvalue < cal) ? 1 : 0;
+            case OP_GT:
+                return (currentvalue > cal) ? 1 : 0;
+            case OP_LTEQ:
+                return (currentvalue <= cal) ? 1 : 0;
+            case OP_GTEQ:
+                return (currentvalue >= cal) ? 1 : 0;
+            default:
+                throw new MigolExecutionException("Unknown assignment operator", session.getPP());
+        }
+    }
+
+    private static int rotl(int value, int shift) {
         shift &= 31;
         return (value << shift) | (value >>> (32 - shift));
     }
 
-    private int rotr(int value, int shift) {
+    private static int rotr(int value, int shift) {
         shift &= 31;
         return (value >>> shift) | (value << (32 - shift));
     }
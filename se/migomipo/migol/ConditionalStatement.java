@@ -106,7 +106,21 @@ public class ConditionalStatement implements MigolStatement {
     }
 
     private boolean evaluate(MigolExecutionSession session) throws MigolExecutionException {
-        int val = value.get(session);
+        return test(condtype, value.get(session), session);
+    }
+
+    /**
+     * Evaluates a conditional operator on an integer.
+     * @param condtype  The conditional operator, one of the
+     * <code>COND_</code> constants.
+     * @param val   The value to be compared with 0.
+     * @param session   The session object, used for error reporting.
+     * @return  The result of the comparison.
+     * @throws se.migomipo.migol.MigolExecutionException
+     * If the operator is unknown.
+     */
+    public static boolean test(int condtype, int val, MigolExecutionSession session)
+            throws MigolExecutionException {
         switch (condtype) {
             case COND_GT:
                 return val > 0;
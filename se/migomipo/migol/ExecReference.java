@@ -1,6 +1,7 @@
 package se.migomipo.migol;
 
 import se.migomipo.migol.io.MigolIOFunction;
+import se.migomipo.migol.io.SynchronousIOFunction;
 
 public class ExecReference implements MigolReference {
 
@@ -18,11 +19,24 @@ public class ExecReference implements MigolReference {
 
     public void set(MigolExecutionSession session, int val) throws MigolExecutionException {
         MigolIOFunction func;
-        try {
-            func = session.getIOFunction(session.getMemory()[val]);
-            func.executeIO(session, val);
-        } catch (NullPointerException ex) {
-            throw new MigolExecutionException("Undefined I/O function used", session.getPP());
+        int id = session.getMemory()[val];
+        if ((id & SynchronousIOFunction.SYNCHRONOUS) != 0) {
+            func = session.getIOFunction(id & ~SynchronousIOFunction.SYNCHRONOUS);
+            if (func == null) {
+                throw new MigolExecutionException("Undefined I/O function used", session.getPP());
+            }
+            if (!(func instanceof SynchronousIOFunction)) {
+                throw new MigolExecutionException(
+                        "I/O function can not complete synchronously", session.getPP());
+            }
+            ((SynchronousIOFunction) func).executeSynchronously(session, val);
+        } else {
+            try {
+                func = session.getIOFunction(id);
+                func.executeIO(session, val);
+            } catch (NullPointerException ex) {
+                throw new MigolExecutionException("Undefined I/O function used", session.getPP());
+            }
         }
     }
 }
@@ -1,6 +1,14 @@
 
 package se.migomipo.migol;
 
+/**
+ * The interrupt wait reference <code>\</code>.
+ *
+ * Writing to this reference makes the session wait for the next I/O result
+ * after the statement. If the written value is negative, the wait gives up
+ * after <code>-value</code> milliseconds, and execution continues with the
+ * next statement without an interrupt.
+ */
 public class InterruptWaitReference implements MigolReference {
 
     private static final InterruptWaitReference instance = new InterruptWaitReference();
@@ -16,6 +24,7 @@ public class InterruptWaitReference implements MigolReference {
     }
 
     public void set(MigolExecutionSession session, int val) throws MigolExecutionException {
+        session.setWaitTimeout(val < 0 ? -(long) val : -1);
         session.setWaitInterrupt(true);
 
     }
@@ -27,7 +27,6 @@ package se.migomipo.migol;
 
 import se.migomipo.migol.io.*;
 import java.util.*;
-import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Represents a unique execution session.
@@ -55,9 +54,11 @@ public class MigolExecutionSession {
     private boolean debug = false;
     
     private boolean pplocked = false;
-    private LinkedBlockingQueue<Integer> results = new LinkedBlockingQueue<Integer>();
+    private final ResultQueue results = new ResultQueue();
     private Map<Integer, MigolIOFunction> ioFunctions = new HashMap<Integer, MigolIOFunction>();
+    private Map<Integer, Integer> handlerVectors = new HashMap<Integer, Integer>();
     private boolean waitInterrupt = false;
+    private long waitTimeout = -1;
     private boolean hasRun = false;
 
 
@@ -79,7 +80,13 @@ public class MigolExecutionSession {
         pplocked = bool;
     }
 
-    public LinkedBlockingQueue<Integer> getResultQueue() {
+    /**
+     * Returns the queue of I/O results waiting to be delivered as
+     * interrupts. I/O functions add the address of their result structure
+     * to this queue when they complete.
+     * @return  The result queue.
+     */
+    public ResultQueue getResultQueue() {
         return results;
     }
   
@@ -144,6 +151,34 @@ public class MigolExecutionSession {
         this.handler = handler;
     }
 
+    /**
+     * Returns the interrupt handler for results of an I/O function.
+     * @param functionID    The function ID.
+     * @return  The address of the handler, or -1 if results of the function
+     * go to the default handler.
+     */
+    public int getHandler(int functionID) {
+        Integer vector = handlerVectors.get(functionID);
+        return (vector == null) ? -1 : vector;
+    }
+
+    /**
+     * Sets the interrupt handler for results of an I/O function. When a
+     * result is delivered, the function ID is read from the first cell of the
+     * result structure, and the handler set for it is used instead of the
+     * default handler.
+     * @param functionID    The function ID.
+     * @param handler   The address of the handler. If this is zero or
+     * negative, results of the function go to the default handler again.
+     */
+    public void setHandler(int functionID, int handler) {
+        if (handler > 0) {
+            handlerVectors.put(functionID, handler);
+        } else {
+            handlerVectors.remove(functionID);
+        }
+    }
+
     public boolean isWaitInterrupt() {
         return waitInterrupt;
     }
@@ -152,6 +187,26 @@ public class MigolExecutionSession {
         this.waitInterrupt = waitInterrupt;
     }
 
+    /**
+     * Returns the maximum time the next interrupt wait may block.
+     * @return  The timeout in milliseconds, or -1 if the wait blocks until
+     * a result is available.
+     */
+    public long getWaitTimeout() {
+        return waitTimeout;
+    }
+
+    /**
+     * Sets the maximum time the next interrupt wait may block. If no result
+     * arrives in time, execution continues without an interrupt. The timeout
+     * only applies to one wait, and is reset to -1 when the wait ends.
+     * @param waitTimeout   The timeout in milliseconds, or -1 if the wait
+     * should block until a result is available.
+     */
+    public void setWaitTimeout(long waitTimeout) {
+        this.waitTimeout = waitTimeout;
+    }
+
     public boolean isDebugMode() {
         return debug;
     }
@@ -187,25 +242,8 @@ public class MigolExecutionSession {
                 if (!pplocked) {
                     pp++;
                 }
-                if (!isInterruptMode) {
-                    Integer _result;
-                    if (waitInterrupt) {
-                        waitInterrupt = false;
-                        try {
-                            _result = results.take();
-                        } catch (InterruptedException ex) {
-                            throw new MigolExecutionException(
-                                    "Interrupt waiting interrupted by runtime", ex, pp);
-                        }
-                    } else {
-                        _result = results.poll();
-                    }
-                    if (_result != null) {
-                        this.ret = pp;
-                        this.pp = handler;
-                        this.result = _result.intValue();
-                        this.isInterruptMode = true;
-                    }
+                if (isInterruptPending()) {
+                    pp = dispatchInterrupt(pp);
                 }
             }
         } catch (ArrayIndexOutOfBoundsException ex) {
@@ -213,6 +251,76 @@ public class MigolExecutionSession {
         }
     }
 
+    /**
+     * Checks if the dispatch loop has to call {@link #dispatchInterrupt(int)}
+     * before the next statement is executed.
+     *
+     * This is true if the session is not in interrupt mode and either an
+     * I/O result is waiting in the result queue or the program has requested
+     * a blocking interrupt wait.
+     * @return  <b>true</b> if an interrupt may have to be dispatched.
+     */
+    public boolean isInterruptPending() {
+        return !isInterruptMode && (waitInterrupt || !results.isEmpty());
+    }
+
+    /**
+     * Delivers the next interrupt, if there is one.
+     *
+     * If the program has requested a blocking wait, this method blocks until
+     * a result is available, or until the wait timeout has passed. If a
+     * result is delivered, the session enters interrupt mode, the return
+     * address is set to <code>nextpp</code> and the address of the interrupt
+     * handler is returned. If a handler has been set for the function ID in
+     * the result structure, that handler is used instead of the default
+     * one.
+     * Alternative execution engines keeping the program pointer outside the
+     * session object use this method to get the same interrupt semantics as
+     * {@link #executeProgram(MigolParsedProgram)}.
+     * @param nextpp    The position of the statement which would have been
+     * executed next if no interrupt occurs.
+     * @return  The position of the next statement to be executed.
+     * @throws se.migomipo.migol.MigolExecutionException
+     * If the thread is interrupted while waiting.
+     */
+    public int dispatchInterrupt(int nextpp) throws MigolExecutionException {
+        if (isInterruptMode) {
+            return nextpp;
+        }
+        long _result;
+        if (waitInterrupt) {
+            waitInterrupt = false;
+            long timeout = waitTimeout;
+            waitTimeout = -1;
+            try {
+                _result = results.poll(timeout < 0 ? -1 : timeout * 1000000L);
+            } catch (InterruptedException ex) {
+                throw new MigolExecutionException(
+                        "Interrupt waiting interrupted by runtime", ex, nextpp);
+            }
+        } else {
+            _result = results.poll();
+        }
+        if (_result == ResultQueue.EMPTY) {
+            return nextpp;
+        }
+        this.ret = nextpp;
+        this.result = (int) _result;
+        this.isInterruptMode = true;
+        if (!handlerVectors.isEmpty()) {
+            try {
+                Integer vector = handlerVectors.get(
+                        memory[this.result] & ~SynchronousIOFunction.SYNCHRONOUS);
+                if (vector != null) {
+                    return vector;
+                }
+            } catch (ArrayIndexOutOfBoundsException ex) {
+                // Not a structure address, so the default handler is used
+            }
+        }
+        return handler;
+    }
+
     
     @Override
     public boolean equals(Object obj) {
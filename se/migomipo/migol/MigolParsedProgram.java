@@ -83,6 +83,18 @@ public class MigolParsedProgram implements Serializable {
         return statements.get(pos - 1);
     }
 
+    /**
+     * Replaces the statement at a position.
+     *
+     * This is used by statements which rewrite themselves into a more
+     * specialized form during execution.
+     * @param pos   The position of the statement, starting at 1.
+     * @param statement The new statement.
+     */
+    public void setStatement(int pos, MigolStatement statement){
+        statements.set(pos - 1, statement);
+    }
+
     public void executeProgram(MigolExecutionSession session) throws MigolExecutionException {
         session.executeProgram(this);
     }
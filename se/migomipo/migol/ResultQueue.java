@@ -0,0 +1,414 @@
+/*
+ * Copyright (c) 2009 John Eriksson
+
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package se.migomipo.migol;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The queue of I/O results waiting to be delivered as interrupts.
+ *
+ * I/O functions complete on other threads and add the address of their
+ * result structure with {@link #add(int)}. The session executing the program
+ * is the only consumer. Each priority level has a ring of primitive
+ * integers, so adding a result neither boxes it nor takes a lock. Producers
+ * claim a slot by incrementing a shared counter, and publish the value by
+ * advancing the sequence number of the slot.
+ *
+ * Results of a higher priority are always delivered before results of a
+ * lower priority, so timer interrupts are not delayed by a backlog of I/O
+ * completions. Within one level, results are delivered in the order they
+ * were added.
+ *
+ * The dispatch loop only checks a volatile flag after each statement, see
+ * {@link #isEmpty()}. The consumer thread is only parked if the program
+ * requests a blocking wait through {@link InterruptWaitReference}, and
+ * producers only unpark it when a consumer is actually waiting.
+ *
+ * If a ring is full, results are added to an overflow list, which is
+ * drained before any later result of the same level. Results added by the
+ * same thread with the same priority are always delivered in order.
+ * @see MigolExecutionSession#getResultQueue()
+ * @author John Eriksson
+ */
+public class ResultQueue {
+
+    /**
+     * Returned by {@link #poll()} when the queue is empty. This is outside
+     * the range of <code>int</code>.
+     */
+    public static final long EMPTY = Long.MIN_VALUE;
+    /**
+     * The priority of timer expirations.
+     */
+    public static final int HIGH_PRIORITY = 0;
+    /**
+     * The priority of other I/O results, used by {@link #add(int)}.
+     */
+    public static final int NORMAL_PRIORITY = 1;
+    /**
+     * The number of priority levels.
+     */
+    public static final int PRIORITIES = 2;
+    private static final int DEFAULT_CAPACITY = 1024;
+    private final Ring[] rings = new Ring[PRIORITIES];
+    private volatile boolean pending = false;
+    private volatile Thread waiter = null;
+    private final ConcurrentHashMap<Integer, ResultRedirect> redirects =
+            new ConcurrentHashMap<Integer, ResultRedirect>();
+    private volatile boolean redirecting = false;
+
+    /**
+     * The results of one priority level.
+     */
+    private static class Ring {
+
+        private final int[] values;
+        /**
+         * The sequence number of each slot. A slot is free for the producer
+         * claiming position <code>p</code> when its sequence is
+         * <code>p</code>, and holds a value for the consumer at
+         * <code>p</code> when its sequence is <code>p + 1</code>.
+         */
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        /**
+         * The next position to be read. Only used by the consumer.
+         */
+        private long head = 0;
+        private volatile boolean overflowing = false;
+        private final ArrayDeque<Integer> overflow = new ArrayDeque<Integer>();
+
+        Ring(int size) {
+            values = new int[size];
+            sequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                sequences.set(i, i);
+            }
+            mask = size - 1;
+        }
+
+        void add(int value) {
+            if (overflowing || !offer(value)) {
+                synchronized (overflow) {
+                    overflow.add(value);
+                    overflowing = true;
+                }
+            }
+        }
+
+        void addAll(int[] src, int offset, int length) {
+            if (overflowing || !offer(src, offset, length)) {
+                int i = offset;
+                int end = offset + length;
+                if (!overflowing) {
+                    while (i < end && offer(src[i])) {
+                        i++;
+                    }
+                }
+                if (i < end) {
+                    synchronized (overflow) {
+                        for (; i < end; i++) {
+                            overflow.add(src[i]);
+                        }
+                        overflowing = true;
+                    }
+                }
+            }
+        }
+
+        private boolean offer(int value) {
+            while (true) {
+                long pos = tail.get();
+                int index = (int) pos & mask;
+                long diff = sequences.get(index) - pos;
+                if (diff == 0) {
+                    if (tail.compareAndSet(pos, pos + 1)) {
+                        values[index] = value;
+                        sequences.set(index, pos + 1);
+                        return true;
+                    }
+                } else if (diff < 0) {
+                    return false; // The ring is full
+                }
+            }
+        }
+
+        /**
+         * Claims <code>length</code> consecutive slots with a single update
+         * of the tail. Since the consumer frees the slots in order, all of
+         * them are free if the last one is.
+         */
+        private boolean offer(int[] src, int offset, int length) {
+            if (length > mask + 1) {
+                return false;
+            }
+            while (true) {
+                long pos = tail.get();
+                long last = pos + length - 1;
+                long diff = sequences.get((int) last & mask) - last;
+                if (diff == 0) {
+                    if (tail.compareAndSet(pos, pos + length)) {
+                        for (int i = 0; i < length; i++) {
+                            int index = (int) (pos + i) & mask;
+                            values[index] = src[offset + i];
+                            sequences.set(index, pos + i + 1);
+                        }
+                        return true;
+                    }
+                } else if (diff < 0) {
+                    return false; // The batch does not fit
+                }
+            }
+        }
+
+        long take() {
+            int index = (int) head & mask;
+            if (sequences.get(index) == head + 1) {
+                int value = values[index];
+                sequences.set(index, head + mask + 1);
+                head++;
+                return value;
+            }
+            if (overflowing) {
+                synchronized (overflow) {
+                    // The ring is drained before the overflow list
+                    if (sequences.get((int) head & mask) != head + 1 && !overflow.isEmpty()) {
+                        int value = overflow.poll();
+                        if (overflow.isEmpty()) {
+                            overflowing = false;
+                        }
+                        return value;
+                    }
+                }
+            }
+            return EMPTY;
+        }
+    }
+
+    /**
+     * Creates a queue with room for 1024 results of each priority in the
+     * rings.
+     */
+    public ResultQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a queue.
+     * @param capacity  The number of results of each priority which fit in
+     * the rings. This is rounded up to a power of two.
+     */
+    public ResultQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        for (int i = 0; i < PRIORITIES; i++) {
+            rings[i] = new Ring(size);
+        }
+    }
+
+    /**
+     * Adds a result with normal priority. This method may be called by any
+     * thread.
+     * @param value The result, normally the address of a result structure.
+     */
+    public void add(int value) {
+        add(value, NORMAL_PRIORITY);
+    }
+
+    /**
+     * Adds a result. This method may be called by any thread.
+     * @param value     The result, normally the address of a result
+     * structure.
+     * @param priority  The priority, where 0 is the highest.
+     */
+    public void add(int value, int priority) {
+        if (redirecting) {
+            ResultRedirect target = redirects.remove(value);
+            if (target != null) {
+                target.complete(value);
+                return;
+            }
+        }
+        rings[priority].add(value);
+        signal();
+    }
+
+    /**
+     * Adds several results at once. The results are delivered in the given
+     * order, and a waiting consumer is woken only once for the whole batch.
+     * This method may be called by any thread.
+     * @param src       The array containing the results.
+     * @param offset    The index of the first result in the array.
+     * @param length    The number of results to add.
+     * @param priority  The priority, where 0 is the highest.
+     */
+    public void addAll(int[] src, int offset, int length, int priority) {
+        if (redirecting) {
+            for (int i = offset; i < offset + length; i++) {
+                add(src[i], priority);
+            }
+        } else if (length > 0) {
+            rings[priority].addAll(src, offset, length);
+            signal();
+        }
+    }
+
+    /**
+     * Redirects the next result with the given value. Instead of being
+     * added to the queue, the value is passed to the target, and the
+     * redirect is removed.
+     *
+     * Once a redirect has been registered, every added result is looked up
+     * among the redirects, which makes adding somewhat slower.
+     * @param value     The result to redirect, normally the address of a
+     * result structure.
+     * @param target    The receiver of the result.
+     */
+    public void redirect(int value, ResultRedirect target) {
+        redirects.put(value, target);
+        redirecting = true;
+    }
+
+    /**
+     * Removes a redirect which has not been used yet.
+     * @param value The result whose redirect is removed.
+     * @return  <code>true</code> if the redirect was removed, or
+     * <code>false</code> if the result has already been passed to its
+     * target.
+     */
+    public boolean cancelRedirect(int value) {
+        return redirects.remove(value) != null;
+    }
+
+    private void signal() {
+        pending = true;
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+    }
+
+    /**
+     * Checks if there may be results in the queue. This is a single read of
+     * a volatile flag, which is cheap enough to be done after every
+     * statement.
+     *
+     * The flag is set after a result has been added, and cleared by
+     * {@link #poll()} when it finds the queue empty. A result added by
+     * another thread is seen at the latest by the first call after
+     * {@link #add(int)} has returned. The method may return
+     * <code>false</code> for an empty queue.
+     * @return  <code>true</code> if no result has been added since the queue
+     * was last found empty.
+     */
+    public boolean isEmpty() {
+        return !pending;
+    }
+
+    /**
+     * Removes the next result of the highest available priority. This
+     * method must only be called by the consumer thread.
+     * @return  The result, or {@link #EMPTY} if the queue is empty.
+     */
+    public long poll() {
+        long value = take0();
+        if (value == EMPTY) {
+            pending = false;
+            // A result added while the flag was cleared must not be missed
+            value = take0();
+            if (value != EMPTY) {
+                pending = true;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Removes the next result, and waits for one if the queue is empty.
+     * This method must only be called by the consumer thread.
+     * @return  The result.
+     * @throws InterruptedException If the thread is interrupted while
+     * waiting.
+     */
+    public int take() throws InterruptedException {
+        return (int) poll(-1);
+    }
+
+    /**
+     * Removes the next result, and waits at most the given time for one if
+     * the queue is empty. This method must only be called by the consumer
+     * thread.
+     * @param timeout   The maximum time to wait, in nanoseconds. A negative
+     * value means that the method waits until a result is available.
+     * @return  The result, or {@link #EMPTY} if the time ran out.
+     * @throws InterruptedException If the thread is interrupted while
+     * waiting.
+     */
+    public long poll(long timeout) throws InterruptedException {
+        long value = poll();
+        if (value != EMPTY || timeout == 0) {
+            return value;
+        }
+        long deadline = System.nanoTime() + timeout;
+        waiter = Thread.currentThread();
+        try {
+            while (true) {
+                value = poll();
+                if (value != EMPTY) {
+                    return value;
+                }
+                if (timeout < 0) {
+                    LockSupport.park(this);
+                } else {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        return EMPTY;
+                    }
+                    LockSupport.parkNanos(this, left);
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            waiter = null;
+        }
+    }
+
+    private long take0() {
+        for (int i = 0; i < PRIORITIES; i++) {
+            long value = rings[i].take();
+            if (value != EMPTY) {
+                return value;
+            }
+        }
+        return EMPTY;
+    }
+}
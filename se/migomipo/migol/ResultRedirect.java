@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2009 John Eriksson
+
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package se.migomipo.migol;
+
+/**
+ * Receives results redirected away from a {@link ResultQueue}.
+ *
+ * A redirect is registered for the address of one result structure with
+ * {@link ResultQueue#redirect(int, ResultRedirect)}. When the I/O function
+ * working on the structure completes, the address is passed to the redirect
+ * instead of being delivered as an interrupt.
+ * @author John Eriksson
+ */
+public interface ResultRedirect {
+
+    /**
+     * Receives a redirected result. This method may be called by any
+     * thread.
+     * @param value The result, normally the address of a result structure.
+     */
+    public void complete(int value);
+}
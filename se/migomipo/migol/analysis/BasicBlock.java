@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2009 John Eriksson
+
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package se.migomipo.migol.analysis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A sequence of statements which are executed in order, as computed by
+ * {@link ProgramAnalysis}.
+ *
+ * Control only enters a block at its first statement through constant
+ * branches and fallthrough. Computed branches and interrupt returns may
+ * still enter a block in the middle, see
+ * {@link ProgramAnalysis#isComputedEntry(int)}.
+ * @author John Eriksson
+ */
+public class BasicBlock {
+
+    private final int index;
+    private final int start;
+    private final int end;
+    private final List<BasicBlock> successors = new ArrayList<BasicBlock>();
+    private final List<BasicBlock> predecessors = new ArrayList<BasicBlock>();
+    private boolean computedExit = false;
+    private boolean programExit = false;
+
+    BasicBlock(int index, int start, int end) {
+        this.index = index;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Returns the number of this block. Blocks are numbered from 0 in
+     * program order.
+     * @return  The block number.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the position of the first statement in the block.
+     * @return  The first position.
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the position of the last statement in the block.
+     * @return  The last position.
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * Checks if a statement position is part of this block.
+     * @param pos   The statement position.
+     * @return  <code>true</code> if the position is in this block.
+     */
+    public boolean contains(int pos) {
+        return pos >= start && pos <= end;
+    }
+
+    /**
+     * Returns the blocks which may be executed directly after this block
+     * through constant branches or fallthrough.
+     * @return  The successor blocks.
+     */
+    public List<BasicBlock> getSuccessors() {
+        return Collections.unmodifiableList(successors);
+    }
+
+    /**
+     * Returns the blocks which may be executed directly before this block
+     * through constant branches or fallthrough.
+     * @return  The predecessor blocks.
+     */
+    public List<BasicBlock> getPredecessors() {
+        return Collections.unmodifiableList(predecessors);
+    }
+
+    /**
+     * Checks if the last statement of this block may branch to a computed
+     * address. Such branches have no successor blocks in the graph.
+     * @return  <code>true</code> if the block ends with a computed branch.
+     */
+    public boolean hasComputedExit() {
+        return computedExit;
+    }
+
+    /**
+     * Checks if the program may end after this block, by falling through
+     * the last statement or by a constant branch outside the program.
+     * @return  <code>true</code> if the program may end after this block.
+     */
+    public boolean isProgramExit() {
+        return programExit;
+    }
+
+    void addSuccessor(BasicBlock block) {
+        if (!successors.contains(block)) {
+            successors.add(block);
+            block.predecessors.add(this);
+        }
+    }
+
+    void setComputedExit() {
+        computedExit = true;
+    }
+
+    void setProgramExit() {
+        programExit = true;
+    }
+
+    @Override
+    public String toString() {
+        return "block " + index + " [" + start + "-" + end + "]";
+    }
+}
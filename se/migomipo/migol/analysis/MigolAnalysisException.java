@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2009 John Eriksson
+
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package se.migomipo.migol.analysis;
+
+/**
+ * Signaled when the analysis of a program finds an error which would stop
+ * the program, for example a constant branch to a position outside the
+ * program.
+ * @see ProgramAnalysis#validate()
+ * @author John Eriksson
+ */
+public class MigolAnalysisException extends Exception {
+
+    private static final long serialVersionUID = 3318420875290127764L;
+    private final int statementpos;
+
+    /**
+     * Constructs a {@code MigolAnalysisException} object.
+     * @param message   The error detail message.
+     * @param statementpos  The position of the statement where the error was
+     * found.
+     */
+    public MigolAnalysisException(String message, int statementpos) {
+        super(message + " at statement " + statementpos);
+        this.statementpos = statementpos;
+    }
+
+    /**
+     * Returns the position of the statement where the error was found.
+     * @return  The statement position.
+     */
+    public int getStatementpos() {
+        return statementpos;
+    }
+}
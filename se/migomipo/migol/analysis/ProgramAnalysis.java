@@ -0,0 +1,486 @@
+/*
+ * Copyright (c) 2009 John Eriksson
+
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package se.migomipo.migol.analysis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import se.migomipo.migol.*;
+import static se.migomipo.migol.AssignmentOperation.*;
+
+/**
+ * Control flow and memory usage facts about a parsed program.
+ *
+ * The analysis splits the program into {@link BasicBlock basic blocks}
+ * connected by constant branches and fallthrough, classifies every write
+ * to the program pointer as a constant or computed branch, and collects
+ * the constant memory addresses used by the program together with the
+ * positions of I/O calls and interrupt statements.
+ *
+ * The target of a computed branch, for example <code>#&lt;[x]</code> or
+ * the interrupt return <code>#!&lt;[*#]</code>, can not be known before
+ * execution. If a program contains computed branches, every statement is
+ * assumed to be a possible target. Interrupt dispatches are not edges in the
+ * graph either, but the constant addresses written to <code>!#</code> are
+ * treated as block starts.
+ *
+ * Only the structure of the program is analyzed, so the result is valid for
+ * any session the program is executed with. Statements which are not
+ * produced by {@link se.migomipo.migol.parsing.MigolParser}, such as
+ * statements rewritten by an optimizer, are treated as computed branches
+ * which may access any memory cell.
+ * @author John Eriksson
+ */
+public class ProgramAnalysis {
+
+    /**
+     * Returned by {@link #constant(MigolValue)} for values which are not
+     * constant.
+     */
+    private static final int NOT_CONSTANT = Integer.MIN_VALUE;
+    private final int size;
+    /**
+     * The constant branch target of each statement, or 0.
+     */
+    private final int[] targets;
+    private final boolean[] branches;
+    private final boolean[] computed;
+    private final boolean[] conditional;
+    private final List<BasicBlock> blocks = new ArrayList<BasicBlock>();
+    private final BasicBlock[] blockOf;
+    private final SortedSet<Integer> addresses = new TreeSet<Integer>();
+    private final List<Integer> ioCalls = new ArrayList<Integer>();
+    private final List<Integer> interruptWaits = new ArrayList<Integer>();
+    private final List<Integer> handlerWrites = new ArrayList<Integer>();
+    private final SortedSet<Integer> handlerEntries = new TreeSet<Integer>();
+    private boolean indirect = false;
+    private boolean hasComputed = false;
+    private int current;
+
+    private ProgramAnalysis(MigolParsedProgram program) {
+        size = program.size();
+        targets = new int[size + 1];
+        branches = new boolean[size + 1];
+        computed = new boolean[size + 1];
+        conditional = new boolean[size + 1];
+        blockOf = new BasicBlock[size + 1];
+        for (current = 1; current <= size; current++) {
+            analyzeStatement(program.getStatement(current), false);
+        }
+        buildBlocks();
+    }
+
+    /**
+     * Analyzes a program.
+     * @param program   The program to be analyzed.
+     * @return  The analysis result.
+     */
+    public static ProgramAnalysis analyze(MigolParsedProgram program) {
+        return new ProgramAnalysis(program);
+    }
+
+    private void analyzeStatement(MigolStatement stmt, boolean cond) {
+        if (stmt instanceof ConditionalStatement) {
+            ConditionalStatement c = (ConditionalStatement) stmt;
+            analyzeValue(c.getValue());
+            analyzeStatement(c.getStatement(), true);
+        } else if (stmt instanceof AssignmentStatement) {
+            AssignmentStatement assign = (AssignmentStatement) stmt;
+            MigolReference target = assign.getTarget();
+            AssignmentOperation[] ops = assign.getOperations();
+            for (AssignmentOperation op : ops) {
+                analyzeValue(op.getValue());
+            }
+            if (target instanceof BranchReference
+                    || target instanceof BranchLeaveHandlerReference) {
+                branches[current] = true;
+                conditional[current] = cond;
+                int value = (ops.length == 1) ? constant(ops[0].getValue()) : NOT_CONSTANT;
+                int op = ops[0].getOperation();
+                if (value == NOT_CONSTANT
+                        || op != OP_ASSIGN && op != OP_PLUS && op != OP_MINUS) {
+                    computed[current] = true;
+                    hasComputed = true;
+                } else if (op == OP_PLUS) {
+                    targets[current] = current + value;
+                } else if (op == OP_MINUS) {
+                    targets[current] = current - value;
+                } else {
+                    targets[current] = value;
+                }
+            } else if (target instanceof InterruptHandlerReference) {
+                handlerWrites.add(current);
+                int value = constant(ops[ops.length - 1].getValue());
+                if (value != NOT_CONSTANT && ops[ops.length - 1].getOperation() == OP_ASSIGN) {
+                    handlerEntries.add(value);
+                }
+            } else {
+                analyzeTarget(target, ops);
+            }
+        } else if (stmt instanceof ConsoleIOStatement) {
+            analyzeValue(((ConsoleIOStatement) stmt).getVal());
+        } else if (!(stmt instanceof NopStatement)) {
+            // Unknown statements may do anything
+            branches[current] = true;
+            conditional[current] = true;
+            computed[current] = true;
+            hasComputed = true;
+            indirect = true;
+        }
+    }
+
+    private void analyzeTarget(MigolReference target, AssignmentOperation[] ops) {
+        if (target instanceof ExecReference) {
+            ioCalls.add(current);
+            // I/O functions read and write buffers through pointers
+            indirect = true;
+        } else if (target instanceof InterruptWaitReference) {
+            interruptWaits.add(current);
+        } else if (target instanceof DeferValue) {
+            // The written cell depends on the contents of memory
+            analyzeValue((MigolValue) target);
+            indirect = true;
+        } else if (target instanceof MigolValue) {
+            int cell = constant((MigolValue) target);
+            if (cell != NOT_CONSTANT) {
+                addresses.add(cell);
+            }
+        }
+    }
+
+    private void analyzeValue(MigolValue value) {
+        if (value instanceof DeferValue) {
+            DeferValue defer = (DeferValue) value;
+            MigolReference ref = defer.getReference();
+            int base = (ref instanceof MigolValue) ? constant((MigolValue) ref) : NOT_CONSTANT;
+            if (base != NOT_CONSTANT) {
+                addresses.add(base);
+                if (defer.getDefers() > 1) {
+                    indirect = true;
+                }
+            } else {
+                if (defer.getDefers() > 1) {
+                    indirect = true;
+                }
+                analyzeReference(ref);
+            }
+        }
+    }
+
+    private void analyzeReference(MigolReference ref) {
+        if (ref instanceof ExecReference) {
+            ioCalls.add(current);
+            indirect = true;
+        } else if (ref instanceof InterruptWaitReference) {
+            interruptWaits.add(current);
+        } else if (ref instanceof InterruptHandlerReference) {
+            handlerWrites.add(current);
+        }
+    }
+
+    private static int constant(MigolValue value) {
+        if (value instanceof IntegerValue) {
+            return ((IntegerValue) value).getInternalValue();
+        } else if (value instanceof LabelValue && ((LabelValue) value).getValue() != null) {
+            return ((LabelValue) value).getValue().getInternalValue();
+        }
+        return NOT_CONSTANT;
+    }
+
+    private void buildBlocks() {
+        boolean[] leaders = new boolean[size + 2];
+        leaders[1] = true;
+        for (int pos = 1; pos <= size; pos++) {
+            if (branches[pos]) {
+                leaders[pos + 1] = true;
+                if (!computed[pos] && isInProgram(targets[pos])) {
+                    leaders[targets[pos]] = true;
+                }
+            }
+        }
+        for (int entry : handlerEntries) {
+            if (isInProgram(entry)) {
+                leaders[entry] = true;
+            }
+        }
+        int start = 1;
+        for (int pos = 1; pos <= size; pos++) {
+            if (leaders[pos + 1] || pos == size) {
+                BasicBlock block = new BasicBlock(blocks.size(), start, pos);
+                blocks.add(block);
+                for (int i = start; i <= pos; i++) {
+                    blockOf[i] = block;
+                }
+                start = pos + 1;
+            }
+        }
+        for (BasicBlock block : blocks) {
+            int end = block.getEnd();
+            if (branches[end]) {
+                if (computed[end]) {
+                    block.setComputedExit();
+                } else if (isInProgram(targets[end])) {
+                    block.addSuccessor(blockOf[targets[end]]);
+                } else {
+                    block.setProgramExit();
+                }
+            }
+            if (!branches[end] || conditional[end]) {
+                if (end < size) {
+                    block.addSuccessor(blockOf[end + 1]);
+                } else {
+                    block.setProgramExit();
+                }
+            }
+        }
+    }
+
+    private boolean isInProgram(int pos) {
+        return pos >= 1 && pos <= size;
+    }
+
+    /**
+     * Returns the number of statements in the analyzed program.
+     * @return  The program size.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the basic blocks of the program, in program order.
+     * @return  The basic blocks.
+     */
+    public List<BasicBlock> getBlocks() {
+        return Collections.unmodifiableList(blocks);
+    }
+
+    /**
+     * Returns the basic block which contains a statement.
+     * @param pos   The statement position.
+     * @return  The block containing the statement.
+     */
+    public BasicBlock getBlock(int pos) {
+        return blockOf[pos];
+    }
+
+    /**
+     * Checks if a statement writes the program pointer.
+     * @param pos   The statement position.
+     * @return  <code>true</code> if the statement is a branch.
+     */
+    public boolean isBranch(int pos) {
+        return branches[pos];
+    }
+
+    /**
+     * Checks if a statement branches to an address which is only known
+     * during execution.
+     * @param pos   The statement position.
+     * @return  <code>true</code> if the statement is a computed branch.
+     */
+    public boolean isComputedBranch(int pos) {
+        return computed[pos];
+    }
+
+    /**
+     * Returns the target of a constant branch. Relative branches are
+     * resolved to absolute positions.
+     * @param pos   The statement position.
+     * @return  The target position, which may be outside the program.
+     * @throws IllegalArgumentException If the statement is not a constant
+     * branch.
+     */
+    public int getBranchTarget(int pos) {
+        if (!branches[pos] || computed[pos]) {
+            throw new IllegalArgumentException("Not a constant branch: " + pos);
+        }
+        return targets[pos];
+    }
+
+    /**
+     * Checks if the program contains any computed branches.
+     * @return  <code>true</code> if there are computed branches.
+     */
+    public boolean hasComputedBranches() {
+        return hasComputed;
+    }
+
+    /**
+     * Checks if a statement may be entered by a computed branch. Since the
+     * targets of computed branches are not known, this is true for every
+     * statement if the program has any computed branch.
+     * @param pos   The statement position.
+     * @return  <code>true</code> if the statement may be entered by a
+     * computed branch.
+     */
+    public boolean isComputedEntry(int pos) {
+        return hasComputed && isInProgram(pos);
+    }
+
+    /**
+     * Returns the constant memory addresses which are read or written by the
+     * program, including the pointer cells of indirect accesses.
+     * @return  The sorted set of addresses.
+     */
+    public SortedSet<Integer> getConstantAddresses() {
+        return Collections.unmodifiableSortedSet(addresses);
+    }
+
+    /**
+     * Checks if the program accesses memory cells whose addresses are only
+     * known during execution, through pointers or I/O functions.
+     * @return  <code>true</code> if there is indirect memory access.
+     */
+    public boolean hasIndirectMemoryAccess() {
+        return indirect;
+    }
+
+    /**
+     * Returns the number of memory cells needed by the program.
+     * @return  One more than the highest address accessed by the program, or
+     * -1 if the program accesses memory indirectly.
+     */
+    public int getRequiredMemory() {
+        if (indirect) {
+            return -1;
+        }
+        if (addresses.isEmpty() || addresses.last() < 0) {
+            return 1;
+        }
+        return addresses.last() + 1;
+    }
+
+    /**
+     * Returns the positions of the statements which call I/O functions
+     * through <code>!</code>.
+     * @return  The statement positions.
+     */
+    public List<Integer> getIOCallPositions() {
+        return Collections.unmodifiableList(ioCalls);
+    }
+
+    /**
+     * Returns the positions of the statements which use the interrupt wait
+     * reference <code>\</code>.
+     * @return  The statement positions.
+     */
+    public List<Integer> getInterruptWaitPositions() {
+        return Collections.unmodifiableList(interruptWaits);
+    }
+
+    /**
+     * Returns the positions of the statements which use the interrupt
+     * handler reference <code>!#</code>.
+     * @return  The statement positions.
+     */
+    public List<Integer> getInterruptHandlerPositions() {
+        return Collections.unmodifiableList(handlerWrites);
+    }
+
+    /**
+     * Returns the constant addresses which are installed as interrupt
+     * handlers.
+     * @return  The handler positions.
+     */
+    public SortedSet<Integer> getInterruptHandlerEntries() {
+        return Collections.unmodifiableSortedSet(handlerEntries);
+    }
+
+    /**
+     * Returns the positions of the constant branches whose target is outside
+     * the program. A branch to the position after the last statement ends
+     * the program normally, and is not included.
+     * @return  The statement positions.
+     */
+    public List<Integer> getInvalidBranches() {
+        List<Integer> invalid = new ArrayList<Integer>();
+        for (int pos = 1; pos <= size; pos++) {
+            if (branches[pos] && !computed[pos]
+                    && (targets[pos] < 1 || targets[pos] > size + 1)) {
+                invalid.add(pos);
+            }
+        }
+        return invalid;
+    }
+
+    /**
+     * Checks that all constant branches stay inside the program.
+     * @throws se.migomipo.migol.analysis.MigolAnalysisException
+     * For the first branch whose target is outside the program.
+     * @see #getInvalidBranches()
+     */
+    public void validate() throws MigolAnalysisException {
+        List<Integer> invalid = getInvalidBranches();
+        if (!invalid.isEmpty()) {
+            int pos = invalid.get(0);
+            throw new MigolAnalysisException("Branch to " + targets[pos]
+                    + " outside the program", pos);
+        }
+    }
+
+    /**
+     * Returns a summary of the analysis.
+     * @return  The summary as a string.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        int branchCount = 0;
+        int computedCount = 0;
+        for (int pos = 1; pos <= size; pos++) {
+            if (branches[pos]) {
+                branchCount++;
+                if (computed[pos]) {
+                    computedCount++;
+                }
+            }
+        }
+        sb.append("statements: ").append(size).append('\n');
+        sb.append("basic blocks: ").append(blocks.size()).append('\n');
+        sb.append("branches: ").append(branchCount - computedCount).append(" constant, ");
+        sb.append(computedCount).append(" computed\n");
+        sb.append("constant addresses: ").append(addresses.size());
+        if (!addresses.isEmpty()) {
+            sb.append(" from ").append(addresses.first()).append(" to ").append(addresses.last());
+        }
+        sb.append('\n');
+        sb.append("indirect memory access: ").append(indirect ? "yes" : "no").append('\n');
+        int required = getRequiredMemory();
+        sb.append("required memory: ").append(required < 0 ? "unknown" : required + " cells");
+        sb.append('\n');
+        sb.append("I/O calls at: ").append(ioCalls).append('\n');
+        sb.append("interrupt waits at: ").append(interruptWaits).append('\n');
+        sb.append("interrupt handlers set at: ").append(handlerWrites).append('\n');
+        for (int pos : getInvalidBranches()) {
+            sb.append("branch to ").append(targets[pos]).append(" outside the program at statement ");
+            sb.append(pos).append('\n');
+        }
+        return sb.toString();
+    }
+}
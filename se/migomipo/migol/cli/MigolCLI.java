@@ -28,8 +28,15 @@ package se.migomipo.migol.cli;
 import se.migomipo.migol.*;
 import se.migomipo.migol.parsing.*;
 import java.io.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.*;
+import se.migomipo.migol.analysis.ProgramAnalysis;
+import se.migomipo.migol.compact.CompactProgram;
+import se.migomipo.migol.compiler.*;
+import se.migomipo.migol.optimizer.*;
 import se.migomipo.migol.io.IOManager;
+import se.migomipo.migol.io.IOScheduler;
 import se.migomipo.migol.io.IOUtilities;
 
 public class MigolCLI {
@@ -39,17 +46,50 @@ public class MigolCLI {
             "MigoMipo Migol 11 interpreter version " + VERSION + "\n"
             + "\u00A9 2009-2011 John Eriksson\n"
             + "Use the flag \"--help\" to list flags";
+    private static final int DEFAULT_MEMORY = 1024 * 1024;
     private static final String HELP =
             "Flags: \n"
             + "-m size         Sets the number of memory cells\n"
             + "                The number of memory cells are written as an integer\n"
             + "                Suffixes \"k\" and \"m\" are supported\n"
+            + "                By default the size is computed from the program,\n"
+            + "                with at most 1m cells\n"
+            + "--engine=name   Selects the execution engine\n"
+            + "                \"interpreted\" (default) runs the reference interpreter\n"
+            + "                \"compiled\" compiles the program into JVM bytecode\n"
+            + "                \"quickened\" interprets specialized statement nodes\n"
+            + "                \"compact\" interprets a flat array encoding of the program\n"
+            + "                \"tracing\" compiles hot loops while interpreting\n"
+            + "--io=name       Selects how I/O requests are run\n"
+            + "                \"pool\" (default) blocks a pooled thread for every request\n"
+            + "                \"selector\" waits for sockets in one event loop\n"
+            + "                \"virtual\" blocks a virtual thread for every request\n"
+            + "--io-threads=n  Runs at most n blocking I/O requests at the same time\n"
+            + "--io-queue=n    Lets at most n blocking I/O requests wait for a thread\n"
+            + "                Further requests fail with error 5\n"
+            + "--io-buffer=n   Buffers reads and writes of the standard streams\n"
+            + "                in n bytes, until flushed or the program ends\n"
+            + "--optimize=list Applies optimization passes before execution\n"
+            + "                The passes are separated by commas\n"
+            + "                \"fold\" folds constants and removes dead statements\n"
+            + "                \"fuse\" fuses common statement sequences\n"
+            + "                \"idioms\" replaces clear, copy and scan loops\n"
+            + "--report        Prints the rewrites done by the optimization passes\n"
+            + "--analyze       Prints the control flow and memory usage of the program\n"
             + "--version       Prints version info\n"
             + "--help          Prints this list of command flags \n";
 
     public static void main(String[] args) {
 
-        int mem = 1024 * 1024;
+        int mem = -1; // Computed from the program
+        String engine = "interpreted";
+        String iomode = "pool";
+        int iothreads = -1; // No limit
+        int ioqueue = 0;
+        int iobuffer = 0; // Unbuffered
+        String[] passes = new String[0];
+        boolean report = false;
+        boolean analyze = false;
         Reader reader = null;
         try {
             for (int i = 0; i < args.length; i++) {
@@ -64,6 +104,37 @@ public class MigolCLI {
                     } else if (arg.equals("-m")) {
                         i++;
                         mem = parseSize(args[i]);
+                    } else if (arg.startsWith("--engine=")) {
+                        engine = arg.substring("--engine=".length());
+                        if (!engine.equals("interpreted") && !engine.equals("compiled")
+                                && !engine.equals("quickened") && !engine.equals("compact")
+                                && !engine.equals("tracing")) {
+                            throw new IllegalArgumentException();
+                        }
+                    } else if (arg.startsWith("--io=")) {
+                        iomode = arg.substring("--io=".length());
+                        if (!iomode.equals("selector") && !iomode.equals("pool")
+                                && !iomode.equals("virtual")) {
+                            throw new IllegalArgumentException();
+                        }
+                    } else if (arg.startsWith("--io-threads=")) {
+                        iothreads = Integer.parseInt(arg.substring("--io-threads=".length()));
+                    } else if (arg.startsWith("--io-queue=")) {
+                        ioqueue = Integer.parseInt(arg.substring("--io-queue=".length()));
+                    } else if (arg.startsWith("--io-buffer=")) {
+                        iobuffer = parseSize(arg.substring("--io-buffer=".length()));
+                    } else if (arg.startsWith("--optimize=")) {
+                        passes = arg.substring("--optimize=".length()).split(",");
+                        for (String pass : passes) {
+                            if (!pass.equals("fold") && !pass.equals("fuse")
+                                    && !pass.equals("idioms")) {
+                                throw new IllegalArgumentException();
+                            }
+                        }
+                    } else if (arg.equals("--report")) {
+                        report = true;
+                    } else if (arg.equals("--analyze")) {
+                        analyze = true;
                     }
                 } else {
                     if (reader != null) {
@@ -74,7 +145,8 @@ public class MigolCLI {
 
             }
             if (reader != null) {
-                interpret(reader, mem);
+                interpret(reader, mem, engine, iomode, iothreads, ioqueue, iobuffer,
+                        passes, report, analyze);
             } else {
                 System.out.println(VERSIONINFO);
             }
@@ -90,13 +162,33 @@ public class MigolCLI {
 
     }
 
-    private static void interpret(Reader read, int memsize) throws IOException {
+    private static void interpret(Reader read, int memsize, String engine,
+            String iomode, int iothreads, int ioqueue, int iobuffer, String[] passes,
+            boolean report, boolean analyze) throws IOException {
         try {
             MigolParsedProgram prog = MigolParser.parse(read);
+            if (memsize < 0 || analyze) {
+                ProgramAnalysis analysis = ProgramAnalysis.analyze(prog);
+                if (analyze) {
+                    System.err.print(analysis);
+                }
+                if (memsize < 0) {
+                    // Programs which only use constant addresses get the
+                    // memory they need, but never more than the default
+                    int required = analysis.getRequiredMemory();
+                    memsize = (required < 0 || required > DEFAULT_MEMORY)
+                            ? DEFAULT_MEMORY : required;
+                }
+            }
+            prog = optimize(prog, passes, report, memsize);
             MigolExecutionSession session = new MigolExecutionSession(memsize);
-            IOManager io = new IOManager();
+            IOManager io = createIOManager(iomode, iothreads, ioqueue);
+            if (iobuffer > 0) {
+                io.setBuffered(1, iobuffer);
+                io.setBuffered(2, iobuffer);
+            }
             IOUtilities.addStdIOFunctions(session, io);
-            session.executeProgram(prog);
+            execute(prog, session, engine);
             io.close();
         } catch (MigolParsingException ex) {
             System.err.println("Parsing error: " + ex.getMessage());
@@ -108,6 +200,74 @@ public class MigolCLI {
 
     }
 
+    private static IOManager createIOManager(String iomode, int iothreads, int ioqueue) {
+        ExecutorService executor = null;
+        if (iomode.equals("virtual")) {
+            executor = IOManager.newVirtualThreadExecutor();
+            if (executor == null) {
+                System.err.println("Virtual threads are not supported by this "
+                        + "Java version, using the thread pool");
+            }
+        }
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool();
+        }
+        IOScheduler scheduler;
+        if (iothreads < 0) {
+            scheduler = new IOScheduler(executor);
+        } else {
+            scheduler = new IOScheduler(executor, iothreads, ioqueue,
+                    Integer.MAX_VALUE, IOScheduler.REJECT);
+        }
+        return new IOManager(scheduler, iomode.equals("selector"));
+    }
+
+    private static MigolParsedProgram optimize(MigolParsedProgram prog, String[] passes,
+            boolean report, int memsize) {
+        OptimizationReport rewrites = new OptimizationReport();
+        for (String pass : passes) {
+            if (pass.equals("fold")) {
+                prog = ConstantFolder.fold(prog, memsize, rewrites);
+            } else if (pass.equals("fuse")) {
+                prog = SuperinstructionFuser.fuse(prog, rewrites);
+            } else if (pass.equals("idioms")) {
+                prog = LoopIdiomRecognizer.recognize(prog, rewrites);
+            }
+        }
+        if (report) {
+            System.err.print(rewrites);
+        }
+        return prog;
+    }
+
+    private static void execute(MigolParsedProgram prog, MigolExecutionSession session,
+            String engine) throws MigolExecutionException {
+        if (engine.equals("compiled")) {
+            CompiledProgram compiled = null;
+            try {
+                compiled = MigolCompiler.compile(prog);
+            } catch (MigolCompilationException ex) {
+                System.err.println("Compilation failed, using the interpreter: "
+                        + ex.getMessage());
+            }
+            if (compiled != null) {
+                compiled.executeProgram(session);
+                return;
+            }
+        } else if (engine.equals("quickened")) {
+            prog = StatementQuickener.lower(prog);
+        } else if (engine.equals("compact")) {
+            CompactProgram compact = CompactProgram.encode(prog);
+            prog = null; // Only the encoded program is kept
+            compact.executeProgram(session);
+            return;
+        } else if (engine.equals("tracing")) {
+            new TracingInterpreter(prog).executeProgram(session);
+            return;
+        }
+        session.executeProgram(prog);
+    }
+
     private static int parseSize(String arg) {
         
         Pattern p = Pattern.compile("(\\d+)([mk]?)");
@@ -0,0 +1,459 @@
+/*
+ * Copyright (c) 2009 John Eriksson
+
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package se.migomipo.migol.compact;
+
+import java.io.Serializable;
+import java.util.List;
+import se.migomipo.migol.*;
+import static se.migomipo.migol.AssignmentOperation.*;
+
+/**
+ * A Migol program encoded in flat integer arrays.
+ *
+ * A {@link MigolParsedProgram} holds one object graph per statement. Large
+ * generated programs therefore take a lot of heap, and the interpreter
+ * follows pointers between unrelated objects for every statement. A
+ * <code>CompactProgram</code> stores the same program in six
+ * <code>int</code> arrays, and executes it with a single loop which
+ * dispatches on the statement kind with a <code>switch</code>.
+ *
+ * Each statement has a header and a range of operand slots:
+ * <ul>
+ * <li><code>header</code>: the statement kind in the low four bits and the
+ * conditional operator (0 for none) in the following bits.</li>
+ * <li><code>start</code>: the first operand slot of the statement. The
+ * slots of statement <i>i</i> end where the slots of statement <i>i + 1</i>
+ * start.</li>
+ * </ul>
+ * The operand slots of a statement are the condition value (if the
+ * statement is conditional), the target or output value, and for
+ * assignments one slot for each assignment operation. Every slot has:
+ * <ul>
+ * <li><code>opcode</code>: the assignment operator, or 0.</li>
+ * <li><code>kinds</code>: the kind of the base value, a constant or one of
+ * the special Migol registers.</li>
+ * <li><code>values</code>: the constant, if the kind is <code>CONST</code>.</li>
+ * <li><code>defers</code>: the number of memory lookups applied to the
+ * base value, which is the number of brackets in the source.</li>
+ * </ul>
+ * Execution is equivalent to {@link MigolExecutionSession#executeProgram(MigolParsedProgram)},
+ * including interrupts.
+ *
+ * Instances of this class are immutable.
+ * @see MigolParsedProgram
+ * @author John Eriksson
+ */
+public class CompactProgram implements Serializable {
+
+    private static final long serialVersionUID = -5094183516022812751L;
+
+    static final int STMT_NOP = 0;
+    static final int STMT_ASSIGN = 1;
+    static final int STMT_PRINT_ASCII = 2;
+    static final int STMT_PRINT_INT = 3;
+    static final int STMT_INTERPRETED = 4;
+
+    static final int KIND_CONST = 0;
+    static final int KIND_BRANCH = 1;
+    static final int KIND_LEAVE_HANDLER = 2;
+    static final int KIND_INPUT = 3;
+    static final int KIND_EXEC = 4;
+    static final int KIND_HANDLER = 5;
+    static final int KIND_RESULT = 6;
+    static final int KIND_RETURN = 7;
+    static final int KIND_WAIT = 8;
+
+    /**
+     * The singleton reference objects for the special kinds, used for the
+     * operations which can't be done on the arrays alone.
+     */
+    private static final MigolReference[] SPECIAL = {
+        null,
+        BranchReference.getInstance(),
+        BranchLeaveHandlerReference.getInstance(),
+        ConsoleInputReference.getInstance(),
+        ExecReference.getInstance(),
+        InterruptHandlerReference.getInstance(),
+        InterruptResultReference.getInstance(),
+        InterruptReturnAddressReference.getInstance(),
+        InterruptWaitReference.getInstance()
+    };
+    private final int[] header;
+    private final int[] start;
+    private final int[] opcode;
+    private final int[] kinds;
+    private final int[] values;
+    private final int[] defers;
+    /**
+     * Statements of unknown classes, executed through the interpreter.
+     * Empty for all programs created by the parser.
+     */
+    private final MigolStatement[] interpreted;
+
+    private CompactProgram(int[] header, int[] start, int[] opcode, int[] kinds,
+            int[] values, int[] defers, MigolStatement[] interpreted) {
+        this.header = header;
+        this.start = start;
+        this.opcode = opcode;
+        this.kinds = kinds;
+        this.values = values;
+        this.defers = defers;
+        this.interpreted = interpreted;
+    }
+
+    /**
+     * Encodes a parsed program.
+     *
+     * The parsed program is not referenced by the result, and can be
+     * discarded afterwards.
+     * @param program   The parsed program.
+     * @return  The encoded program.
+     */
+    public static CompactProgram encode(MigolParsedProgram program) {
+        List<MigolStatement> statements = program.getStatements();
+        Encoder enc = new Encoder(statements.size());
+        for (int i = 0; i < statements.size(); i++) {
+            enc.statement(i, statements.get(i));
+        }
+        return enc.finish();
+    }
+
+    /**
+     * Returns the number of statements in the program.
+     * @return The number of statements in the program as an integer.
+     */
+    public int size() {
+        return header.length;
+    }
+
+    /**
+     * Returns the approximate number of bytes used by the encoded program,
+     * not counting object headers.
+     * @return  The size of the arrays in bytes.
+     */
+    public long getEncodedSize() {
+        return 4L * (header.length + start.length + opcode.length
+                + kinds.length + values.length + defers.length)
+                + 4L * interpreted.length;
+    }
+
+    /**
+     * Executes the program with the given session.
+     *
+     * Execution starts at the current program pointer of the session.
+     * @param session   The session which will be manipulated in this program
+     * execution.
+     * @throws se.migomipo.migol.MigolExecutionException
+     * If an error occurs during execution.
+     */
+    public void executeProgram(MigolExecutionSession session) throws MigolExecutionException {
+        new Machine(session).run();
+    }
+
+    /**
+     * The registers of a running program.
+     */
+    private class Machine {
+
+        private final MigolExecutionSession session;
+        private final int[] mem;
+        private int pp;
+        private boolean locked;
+
+        private Machine(MigolExecutionSession session) {
+            this.session = session;
+            this.mem = session.getMemory();
+            this.pp = session.getPP();
+        }
+
+        private void run() throws MigolExecutionException {
+            final int[] header = CompactProgram.this.header;
+            final int[] start = CompactProgram.this.start;
+            final int[] opcode = CompactProgram.this.opcode;
+            final int size = header.length;
+            try {
+                while (pp > 0 && pp <= size) {
+                    int i = pp - 1;
+                    int h = header[i];
+                    int slot = start[i];
+                    int end = start[i + 1];
+                    locked = false;
+                    int cond = h >>> 4;
+                    if (cond == 0 || ConditionalStatement.test(cond, get(slot++), session)) {
+                        switch (h & 15) {
+                            case STMT_NOP:
+                                break;
+                            case STMT_ASSIGN:
+                                for (int op = slot + 1; op < end; op++) {
+                                    int result;
+                                    if (opcode[op] == OP_ASSIGN) {
+                                        result = get(op);
+                                    } else {
+                                        int current = deferTarget(slot);
+                                        result = calculate(opcode[op], current, get(op), session);
+                                    }
+                                    set(slot, result);
+                                }
+                                break;
+                            case STMT_PRINT_ASCII:
+                                System.out.write(get(slot));
+                                System.out.flush();
+                                break;
+                            case STMT_PRINT_INT:
+                                System.out.print(get(slot));
+                                break;
+                            default:
+                                sync();
+                                try {
+                                    interpreted[values[slot]].executeStatement(session);
+                                } catch (ArrayIndexOutOfBoundsException ex) {
+                                    // Rewritten statements may report another
+                                    // position than their own
+                                    pp = session.getPP();
+                                    throw ex;
+                                }
+                                readBack();
+                        }
+                    }
+                    if (!locked) {
+                        pp++;
+                    }
+                    if (session.isInterruptPending()) {
+                        pp = session.dispatchInterrupt(pp);
+                    }
+                }
+            } catch (ArrayIndexOutOfBoundsException ex) {
+                throw new MigolExecutionException("Memory index out of bounds", ex, pp);
+            } finally {
+                session.setPP(pp);
+            }
+        }
+
+        private void sync() {
+            session.setPP(pp);
+            session.setPPLocked(false);
+        }
+
+        private void readBack() {
+            if (session.getPPLocked()) {
+                pp = session.getPP();
+                locked = true;
+            }
+        }
+
+        /**
+         * Returns the value of the base of a slot without any brackets.
+         */
+        private int base(int slot) throws MigolExecutionException {
+            int kind = kinds[slot];
+            switch (kind) {
+                case KIND_CONST:
+                    return mem[values[slot]];
+                case KIND_BRANCH:
+                case KIND_LEAVE_HANDLER:
+                    return pp;
+                default:
+                    sync();
+                    return SPECIAL[kind].defer(session);
+            }
+        }
+
+        /**
+         * Reads a value, like {@link MigolValue#get(MigolExecutionSession)}.
+         */
+        private int get(int slot) throws MigolExecutionException {
+            int d = defers[slot];
+            if (d == 0) {
+                return values[slot];
+            }
+            int address = base(slot);
+            for (int i = 1; i < d; i++) {
+                address = mem[address];
+            }
+            return address;
+        }
+
+        /**
+         * Reads the current value of a target, like
+         * {@link MigolReference#defer(MigolExecutionSession)}.
+         */
+        private int deferTarget(int slot) throws MigolExecutionException {
+            if (defers[slot] == 0) {
+                return base(slot);
+            }
+            return mem[get(slot)];
+        }
+
+        /**
+         * Writes a target, like
+         * {@link MigolReference#set(MigolExecutionSession, int)}.
+         */
+        private void set(int slot, int val) throws MigolExecutionException {
+            if (defers[slot] > 0) {
+                mem[get(slot)] = val;
+                return;
+            }
+            int kind = kinds[slot];
+            if (kind == KIND_CONST) {
+                mem[values[slot]] = val;
+            } else if (kind == KIND_BRANCH) {
+                pp = val;
+                locked = true;
+            } else {
+                sync();
+                SPECIAL[kind].set(session, val);
+                readBack();
+            }
+        }
+    }
+
+    /**
+     * Builds the arrays of a compact program.
+     */
+    private static class Encoder {
+
+        private final int[] header;
+        private final int[] start;
+        private int[] opcode = new int[64];
+        private int[] kinds = new int[64];
+        private int[] values = new int[64];
+        private int[] defers = new int[64];
+        private int slots = 0;
+        private final List<MigolStatement> interpreted = new java.util.ArrayList<MigolStatement>();
+
+        private Encoder(int size) {
+            header = new int[size];
+            start = new int[size + 1];
+        }
+
+        private void statement(int i, MigolStatement stmt) {
+            start[i] = slots;
+            int cond = 0;
+            if (stmt instanceof ConditionalStatement
+                    && isEncodable(((ConditionalStatement) stmt).getStatement())) {
+                ConditionalStatement c = (ConditionalStatement) stmt;
+                cond = c.getCondtype();
+                operand(0, c.getValue());
+                stmt = c.getStatement();
+            }
+            int kind;
+            if (stmt instanceof NopStatement) {
+                kind = STMT_NOP;
+            } else if (stmt instanceof AssignmentStatement) {
+                AssignmentStatement assign = (AssignmentStatement) stmt;
+                kind = STMT_ASSIGN;
+                operand(0, assign.getTarget());
+                for (AssignmentOperation op : assign.getOperations()) {
+                    operand(op.getOperation(), op.getValue());
+                }
+            } else if (stmt instanceof ConsoleIOStatement
+                    && isEncodable(stmt)) {
+                ConsoleIOStatement out = (ConsoleIOStatement) stmt;
+                kind = (out.getMode() == ConsoleIOStatement.ASCII)
+                        ? STMT_PRINT_ASCII : STMT_PRINT_INT;
+                operand(0, out.getVal());
+            } else {
+                // Only statements created outside the parser end up here
+                kind = STMT_INTERPRETED;
+                cond = 0;
+                slots = start[i];
+                slot(0, KIND_CONST, interpreted.size(), 0);
+                interpreted.add(stmt);
+            }
+            header[i] = kind | (cond << 4);
+        }
+
+        private static boolean isEncodable(MigolStatement stmt) {
+            if (stmt instanceof ConsoleIOStatement) {
+                int mode = ((ConsoleIOStatement) stmt).getMode();
+                return mode == ConsoleIOStatement.ASCII || mode == ConsoleIOStatement.INT;
+            }
+            return stmt instanceof NopStatement || stmt instanceof AssignmentStatement;
+        }
+
+        private void operand(int op, MigolReference ref) {
+            int d = 0;
+            while (ref instanceof DeferValue) {
+                DeferValue defer = (DeferValue) ref;
+                d += defer.getDefers();
+                ref = defer.getReference();
+            }
+            if (ref instanceof LabelValue) {
+                ref = ((LabelValue) ref).getValue();
+            }
+            int kind;
+            int value = 0;
+            if (ref instanceof IntegerValue) {
+                kind = KIND_CONST;
+                value = ((IntegerValue) ref).getInternalValue();
+            } else {
+                kind = -1;
+                for (int k = 1; k < SPECIAL.length; k++) {
+                    if (SPECIAL[k] == ref) {
+                        kind = k;
+                    }
+                }
+                if (kind < 0) {
+                    throw new IllegalArgumentException("Unknown value type");
+                }
+            }
+            slot(op, kind, value, d);
+        }
+
+        private void slot(int op, int kind, int value, int d) {
+            if (slots == opcode.length) {
+                opcode = grow(opcode);
+                kinds = grow(kinds);
+                values = grow(values);
+                defers = grow(defers);
+            }
+            opcode[slots] = op;
+            kinds[slots] = kind;
+            values[slots] = value;
+            defers[slots] = d;
+            slots++;
+        }
+
+        private static int[] grow(int[] array) {
+            int[] n = new int[array.length * 2];
+            System.arraycopy(array, 0, n, 0, array.length);
+            return n;
+        }
+
+        private static int[] trim(int[] array, int length) {
+            int[] n = new int[length];
+            System.arraycopy(array, 0, n, 0, length);
+            return n;
+        }
+
+        private CompactProgram finish() {
+            start[header.length] = slots;
+            return new CompactProgram(header, start, trim(opcode, slots),
+                    trim(kinds, slots), trim(values, slots), trim(defers, slots),
+                    interpreted.toArray(new MigolStatement[interpreted.size()]));
+        }
+    }
+}
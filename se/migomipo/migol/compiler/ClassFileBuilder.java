@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2009 John Eriksson
+
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package se.migomipo.migol.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a minimal JVM class file.
+ *
+ * Only the parts of the class file format needed by the Migol compiler are
+ * supported: a constant pool, a super class and a number of methods with
+ * code and exception tables. No fields, interfaces or debug attributes are
+ * written.
+ *
+ * The class file version is 49 (Java 5). Class files of this version do not
+ * need a <code>StackMapTable</code> attribute, they are verified by type
+ * inference instead, which keeps the code generator simple.
+ * @author John Eriksson
+ */
+class ClassFileBuilder {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PROTECTED = 0x0004;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACEMETHODREF = 11;
+    private static final int CONSTANT_NAMEANDTYPE = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolEntries = new HashMap<String, Integer>();
+    private int poolCount = 1;
+    private final List<byte[]> methods = new ArrayList<byte[]>();
+    private final String name;
+    private final String superName;
+
+    /**
+     * Creates a new class file builder.
+     * @param name  The internal name of the class, for example
+     * <code>se/migomipo/migol/compiler/Foo</code>.
+     * @param superName The internal name of the super class.
+     */
+    ClassFileBuilder(String name, String superName) {
+        this.name = name;
+        this.superName = superName;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getSuperName() {
+        return superName;
+    }
+
+    int utf8(String str) throws MigolCompilationException {
+        String key = "U" + str;
+        Integer idx = poolEntries.get(key);
+        if (idx == null) {
+            try {
+                pool.writeByte(CONSTANT_UTF8);
+                pool.writeUTF(str);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex); // Never thrown by a ByteArrayOutputStream
+            }
+            idx = newEntry(key);
+        }
+        return idx.intValue();
+    }
+
+    int integer(int value) throws MigolCompilationException {
+        String key = "I" + value;
+        Integer idx = poolEntries.get(key);
+        if (idx == null) {
+            try {
+                pool.writeByte(CONSTANT_INTEGER);
+                pool.writeInt(value);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+            idx = newEntry(key);
+        }
+        return idx.intValue();
+    }
+
+    int classRef(String internalName) throws MigolCompilationException {
+        String key = "C" + internalName;
+        Integer idx = poolEntries.get(key);
+        if (idx == null) {
+            int nameIdx = utf8(internalName);
+            write(CONSTANT_CLASS, nameIdx);
+            idx = newEntry(key);
+        }
+        return idx.intValue();
+    }
+
+    int fieldRef(String owner, String field, String desc) throws MigolCompilationException {
+        return memberRef(CONSTANT_FIELDREF, owner, field, desc);
+    }
+
+    int methodRef(String owner, String method, String desc) throws MigolCompilationException {
+        return memberRef(CONSTANT_METHODREF, owner, method, desc);
+    }
+
+    int interfaceMethodRef(String owner, String method, String desc) throws MigolCompilationException {
+        return memberRef(CONSTANT_INTERFACEMETHODREF, owner, method, desc);
+    }
+
+    private int nameAndType(String member, String desc) throws MigolCompilationException {
+        String key = "N" + member + ":" + desc;
+        Integer idx = poolEntries.get(key);
+        if (idx == null) {
+            int nameIdx = utf8(member);
+            int descIdx = utf8(desc);
+            write(CONSTANT_NAMEANDTYPE, nameIdx, descIdx);
+            idx = newEntry(key);
+        }
+        return idx.intValue();
+    }
+
+    private int memberRef(int tag, String owner, String member, String desc) throws MigolCompilationException {
+        String key = "M" + tag + owner + "." + member + ":" + desc;
+        Integer idx = poolEntries.get(key);
+        if (idx == null) {
+            int classIdx = classRef(owner);
+            int ntIdx = nameAndType(member, desc);
+            write(tag, classIdx, ntIdx);
+            idx = newEntry(key);
+        }
+        return idx.intValue();
+    }
+
+    private void write(int tag, int... u2) {
+        try {
+            pool.writeByte(tag);
+            for (int i : u2) {
+                pool.writeShort(i);
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private Integer newEntry(String key) throws MigolCompilationException {
+        if (poolCount >= 0xFFFF) {
+            throw new MigolCompilationException("Constant pool overflow");
+        }
+        Integer idx = Integer.valueOf(poolCount++);
+        poolEntries.put(key, idx);
+        return idx;
+    }
+
+    /**
+     * Adds a method to the class.
+     * @param access    The access flags of the method.
+     * @param method    The method name.
+     * @param desc      The method descriptor.
+     * @param code      The assembled code of the method.
+     * @param maxStack  The maximum operand stack depth of the method.
+     * @param maxLocals The number of local variable slots, including
+     * <code>this</code> and the parameters.
+     * @throws se.migomipo.migol.compiler.MigolCompilationException
+     * If the method is too large for the class file format.
+     */
+    void addMethod(int access, String method, String desc, CodeBuilder code,
+            int maxStack, int maxLocals) throws MigolCompilationException {
+        byte[] bytecode = code.toByteArray();
+        if (bytecode.length >= 0xFFFF) {
+            throw new MigolCompilationException("Method " + method
+                    + " exceeds the maximum code size");
+        }
+        int[][] handlers = code.getExceptionTable();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(method));
+            out.writeShort(utf8(desc));
+            out.writeShort(1); // Attribute count
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + bytecode.length + 8 * handlers.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(bytecode.length);
+            out.write(bytecode);
+            out.writeShort(handlers.length);
+            for (int[] handler : handlers) {
+                for (int i : handler) {
+                    out.writeShort(i);
+                }
+            }
+            out.writeShort(0); // Code attribute count
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    /**
+     * Returns the finished class file.
+     * @return  The class file as a byte array.
+     * @throws se.migomipo.migol.compiler.MigolCompilationException
+     * If the constant pool overflows.
+     */
+    byte[] toByteArray() throws MigolCompilationException {
+        int thisIdx = classRef(name);
+        int superIdx = classRef(superName);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.flush();
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_SUPER);
+            out.writeShort(thisIdx);
+            out.writeShort(superIdx);
+            out.writeShort(0); // Interfaces
+            out.writeShort(0); // Fields
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0); // Class attributes
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2009 John Eriksson
+
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package se.migomipo.migol.compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Assembles the bytecode of a single method.
+ *
+ * Jumps are written with symbolic {@link Label} objects, which are resolved
+ * when the code is finished. Conditional jumps and <code>goto</code> use
+ * 16-bit offsets and should only be used for jumps within a statement,
+ * jumps between statements use <code>goto_w</code>.
+ * @author John Eriksson
+ */
+class CodeBuilder {
+
+    static final int ICONST_0 = 0x03;
+    static final int ICONST_1 = 0x04;
+    static final int IALOAD = 0x2e;
+    static final int AALOAD = 0x32;
+    static final int IASTORE = 0x4f;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int IMUL = 0x68;
+    static final int IDIV = 0x6c;
+    static final int IREM = 0x70;
+    static final int ISHL = 0x78;
+    static final int ISHR = 0x7a;
+    static final int IUSHR = 0x7c;
+    static final int IAND = 0x7e;
+    static final int IOR = 0x80;
+    static final int IXOR = 0x82;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int IF_ICMPEQ = 0x9f;
+    static final int IF_ICMPNE = 0xa0;
+    static final int IF_ICMPLT = 0xa1;
+    static final int IF_ICMPGE = 0xa2;
+    static final int IF_ICMPGT = 0xa3;
+    static final int IF_ICMPLE = 0xa4;
+    static final int GOTO = 0xa7;
+    static final int TABLESWITCH = 0xaa;
+    static final int IRETURN = 0xac;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int ATHROW = 0xbf;
+    static final int GOTO_W = 0xc8;
+
+    /**
+     * A position in the code which can be used as a jump target.
+     */
+    static class Label {
+
+        private int pos = -1;
+    }
+
+    private static class Fixup {
+
+        private final Label label;
+        private final int instructionPos;
+        private final int offsetPos;
+        private final boolean wide;
+
+        private Fixup(Label label, int instructionPos, int offsetPos, boolean wide) {
+            this.label = label;
+            this.instructionPos = instructionPos;
+            this.offsetPos = offsetPos;
+            this.wide = wide;
+        }
+    }
+
+    private final ClassFileBuilder cls;
+    private byte[] code = new byte[1024];
+    private int length = 0;
+    private final List<Fixup> fixups = new ArrayList<Fixup>();
+    private final List<Label[]> handlers = new ArrayList<Label[]>();
+    private final List<Integer> handlerTypes = new ArrayList<Integer>();
+
+    CodeBuilder(ClassFileBuilder cls) {
+        this.cls = cls;
+    }
+
+    int length() {
+        return length;
+    }
+
+    private void u1(int b) {
+        if (length == code.length) {
+            byte[] n = new byte[code.length * 2];
+            System.arraycopy(code, 0, n, 0, length);
+            code = n;
+        }
+        code[length++] = (byte) b;
+    }
+
+    private void u2(int s) {
+        u1(s >> 8);
+        u1(s);
+    }
+
+    private void u4(int i) {
+        u2(i >> 16);
+        u2(i);
+    }
+
+    void op(int opcode) {
+        u1(opcode);
+    }
+
+    void pushInt(int value) throws MigolCompilationException {
+        if (value >= -1 && value <= 5) {
+            u1(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            u1(0x10); // bipush
+            u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            u1(0x11); // sipush
+            u2(value);
+        } else {
+            int idx = cls.integer(value);
+            if (idx < 256) {
+                u1(0x12); // ldc
+                u1(idx);
+            } else {
+                u1(0x13); // ldc_w
+                u2(idx);
+            }
+        }
+    }
+
+    void iload(int local) {
+        u1(0x15);
+        u1(local);
+    }
+
+    void istore(int local) {
+        u1(0x36);
+        u1(local);
+    }
+
+    void aload(int local) {
+        u1(0x19);
+        u1(local);
+    }
+
+    void astore(int local) {
+        u1(0x3a);
+        u1(local);
+    }
+
+    void iinc(int local, int delta) {
+        u1(0x84);
+        u1(local);
+        u1(delta);
+    }
+
+    void field(int opcode, String owner, String name, String desc) throws MigolCompilationException {
+        u1(opcode);
+        u2(cls.fieldRef(owner, name, desc));
+    }
+
+    void invoke(int opcode, String owner, String name, String desc) throws MigolCompilationException {
+        u1(opcode);
+        u2(cls.methodRef(owner, name, desc));
+    }
+
+    void invokeInterface(String owner, String name, String desc, int argSlots) throws MigolCompilationException {
+        u1(INVOKEINTERFACE);
+        u2(cls.interfaceMethodRef(owner, name, desc));
+        u1(argSlots + 1);
+        u1(0);
+    }
+
+    /**
+     * Writes a jump instruction with a 16-bit offset.
+     * @param opcode    A conditional jump opcode or <code>GOTO</code>.
+     * @param target    The jump target.
+     */
+    void jump(int opcode, Label target) {
+        int pos = length;
+        u1(opcode);
+        fixups.add(new Fixup(target, pos, length, false));
+        u2(0);
+    }
+
+    /**
+     * Writes an unconditional jump with a 32-bit offset.
+     * @param target    The jump target.
+     */
+    void gotoWide(Label target) {
+        int pos = length;
+        u1(GOTO_W);
+        fixups.add(new Fixup(target, pos, length, true));
+        u4(0);
+    }
+
+    /**
+     * Writes a <code>tableswitch</code> instruction for the keys
+     * <code>low</code> to <code>low + targets.length - 1</code>.
+     * @param low   The lowest key.
+     * @param dflt  The default jump target.
+     * @param targets   The jump targets.
+     */
+    void tableswitch(int low, Label dflt, Label[] targets) {
+        int pos = length;
+        u1(TABLESWITCH);
+        while (length % 4 != 0) {
+            u1(0);
+        }
+        fixups.add(new Fixup(dflt, pos, length, true));
+        u4(0);
+        u4(low);
+        u4(low + targets.length - 1);
+        for (Label target : targets) {
+            fixups.add(new Fixup(target, pos, length, true));
+            u4(0);
+        }
+    }
+
+    void mark(Label label) {
+        label.pos = length;
+    }
+
+    /**
+     * Adds an entry to the exception table.
+     * @param start The start of the protected code (inclusive).
+     * @param end   The end of the protected code (exclusive).
+     * @param handler   The exception handler.
+     * @param type  The internal name of the caught exception class, or
+     * <code>null</code> to catch everything.
+     * @throws se.migomipo.migol.compiler.MigolCompilationException
+     * If the constant pool overflows.
+     */
+    void addHandler(Label start, Label end, Label handler, String type) throws MigolCompilationException {
+        handlers.add(new Label[]{start, end, handler});
+        handlerTypes.add(type == null ? 0 : cls.classRef(type));
+    }
+
+    int[][] getExceptionTable() {
+        int[][] table = new int[handlers.size()][];
+        for (int i = 0; i < table.length; i++) {
+            Label[] h = handlers.get(i);
+            table[i] = new int[]{h[0].pos, h[1].pos, h[2].pos, handlerTypes.get(i)};
+        }
+        return table;
+    }
+
+    /**
+     * Resolves all jumps and returns the finished code.
+     * @return  The bytecode.
+     * @throws se.migomipo.migol.compiler.MigolCompilationException
+     * If a jump target is undefined or out of reach.
+     */
+    byte[] toByteArray() throws MigolCompilationException {
+        for (Fixup f : fixups) {
+            if (f.label.pos < 0) {
+                throw new MigolCompilationException("Undefined jump target");
+            }
+            int offset = f.label.pos - f.instructionPos;
+            if (f.wide) {
+                code[f.offsetPos] = (byte) (offset >> 24);
+                code[f.offsetPos + 1] = (byte) (offset >> 16);
+                code[f.offsetPos + 2] = (byte) (offset >> 8);
+                code[f.offsetPos + 3] = (byte) offset;
+            } else {
+                if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                    throw new MigolCompilationException("Jump offset out of range");
+                }
+                code[f.offsetPos] = (byte) (offset >> 8);
+                code[f.offsetPos + 1] = (byte) offset;
+            }
+        }
+        byte[] ret = new byte[length];
+        System.arraycopy(code, 0, ret, 0, length);
+        return ret;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2009 John Eriksson
+
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package se.migomipo.migol.compiler;
+
+import se.migomipo.migol.MigolExecutionException;
+import se.migomipo.migol.MigolExecutionSession;
+import se.migomipo.migol.MigolStatement;
+
+/**
+ * A Migol program compiled into a JVM class.
+ *
+ * Instances are created by {@link MigolCompiler}. The generated subclass
+ * implements {@link #run(MigolExecutionSession)} as a single method, which
+ * keeps the program pointer and the memory array in local variables and
+ * dispatches computed branches with a <code>tableswitch</code> instruction.
+ *
+ * Statements which the compiler does not translate are executed through
+ * their {@link MigolStatement#executeStatement(MigolExecutionSession)}
+ * method, so a compiled program behaves exactly like the interpreted
+ * program, including interrupts and I/O.
+ * @see MigolCompiler
+ * @author John Eriksson
+ */
+public abstract class CompiledProgram {
+
+    /**
+     * The statements of the source program, used by statements which are
+     * executed through the interpreter.
+     */
+    protected final MigolStatement[] statements;
+
+    protected CompiledProgram(MigolStatement[] statements) {
+        this.statements = statements;
+    }
+
+    /**
+     * Executes the program with the given session.
+     *
+     * Execution starts at the current program pointer of the session, and the
+     * program pointer is written back to the session when the program ends.
+     * @param session   The session which will be manipulated in this program
+     * execution.
+     * @throws se.migomipo.migol.MigolExecutionException
+     * If an error occurs during execution.
+     */
+    public void executeProgram(MigolExecutionSession session) throws MigolExecutionException {
+        try {
+            run(session);
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new MigolExecutionException("Memory index out of bounds", ex, session.getPP());
+        }
+    }
+
+    /**
+     * Returns the number of statements in the program.
+     * @return The number of statements in the program as an integer.
+     */
+    public int size() {
+        return statements.length;
+    }
+
+    /**
+     * The generated program code.
+     *
+     * Whenever an exception escapes from this method, the position of the
+     * failing statement has been written to the session.
+     * @param session   The session object.
+     * @throws se.migomipo.migol.MigolExecutionException
+     * If an error occurs during execution.
+     */
+    protected abstract void run(MigolExecutionSession session) throws MigolExecutionException;
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2009 John Eriksson
+
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package se.migomipo.migol.compiler;
+
+import se.migomipo.migol.MigolExecutionSession;
+import se.migomipo.migol.MigolStatement;
+
+/**
+ * A recorded loop trace compiled into a JVM class.
+ *
+ * Instances are created by {@link TracingInterpreter}. The generated
+ * subclass executes the statements of the trace in the recorded order, and
+ * loops back to the first statement when the end of the trace is reached.
+ * Before every statement which may take another path than the recorded
+ * one, a guard compares the actual next program pointer with the recorded
+ * one, and leaves the trace if they differ.
+ * @see TracingInterpreter
+ * @author John Eriksson
+ */
+public abstract class CompiledTrace {
+
+    /**
+     * The traced statements in the recorded order.
+     */
+    protected final MigolStatement[] statements;
+
+    protected CompiledTrace(MigolStatement[] statements) {
+        this.statements = statements;
+    }
+
+    /**
+     * Returns the number of statements in one iteration of the trace.
+     * @return  The length of the trace.
+     */
+    public int length() {
+        return statements.length;
+    }
+
+    /**
+     * Executes the trace, starting at its first statement.
+     *
+     * The method returns when a guard fails, or when an interrupt is
+     * pending at the end of an iteration. Whenever an exception escapes
+     * from this method, the position of the failing statement has been
+     * written to the session.
+     * @param session   The session object.
+     * @return  The position of the next statement to be executed.
+     */
+    public abstract int run(MigolExecutionSession session);
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2009 John Eriksson
+
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package se.migomipo.migol.compiler;
+
+/**
+ * Signaled by the compiler if a parsed program can not be translated into a
+ * JVM class, for example because the generated code exceeds the size limits
+ * of the class file format.
+ *
+ * Programs which can not be compiled can still be executed by the
+ * interpreter in {@link se.migomipo.migol.MigolExecutionSession}.
+ * @see MigolCompiler
+ * @author John Eriksson
+ */
+public class MigolCompilationException extends Exception {
+
+    private static final long serialVersionUID = -6470835526093814283L;
+
+    /**
+     * Constructs a {@code MigolCompilationException} object with a specified
+     * detail message.
+     * @param message   The detail message.
+     */
+    public MigolCompilationException(String message) {
+        super(message);
+    }
+
+    /**
+     * Constructs a {@code MigolCompilationException} object with a specified
+     * detail message and cause.
+     * @param message   The detail message.
+     * @param cause     The cause.
+     */
+    public MigolCompilationException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2009 John Eriksson
+
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package se.migomipo.migol.compiler;
+
+import java.util.List;
+import se.migomipo.migol.MigolParsedProgram;
+import se.migomipo.migol.MigolStatement;
+import static se.migomipo.migol.compiler.CodeBuilder.*;
+import static se.migomipo.migol.compiler.StatementEmitter.*;
+
+/**
+ * Compiles parsed Migol programs into JVM classes.
+ *
+ * The whole program is translated into a single method. The program pointer
+ * and the memory array are kept in local variables, branches to computed
+ * addresses are dispatched with a <code>tableswitch</code> instruction, and
+ * consecutive statements fall through into each other. This lets the JIT
+ * compiler of the virtual machine optimize the program as a whole instead of
+ * a statement at a time.
+ *
+ * After every statement the compiled code checks for pending interrupts in
+ * the same way as the interpreter does, and statements which can not be
+ * translated, for example I/O calls and console input, are executed through
+ * {@link MigolStatement#executeStatement(se.migomipo.migol.MigolExecutionSession)},
+ * so the compiled program behaves exactly like the interpreted program.
+ *
+ * Since the code of a JVM method is limited to 64 kB, large programs can not
+ * be compiled. A {@link MigolCompilationException} is thrown in that case.
+ * @see CompiledProgram
+ * @author John Eriksson
+ */
+public class MigolCompiler {
+
+    private static final String BASE = "se/migomipo/migol/compiler/CompiledProgram";
+    private static final String TRACE_BASE = "se/migomipo/migol/compiler/CompiledTrace";
+    private static final String STATEMENT = "se/migomipo/migol/MigolStatement";
+    private static final int LOCAL_EXCEPTION = LOCAL_COUNT;
+    private static int classCount = 0;
+
+    private MigolCompiler() {
+    }
+
+    /**
+     * Compiles a parsed program.
+     * @param program   The program to be compiled.
+     * @return  The compiled program.
+     * @throws se.migomipo.migol.compiler.MigolCompilationException
+     * If the program can not be compiled.
+     */
+    public static CompiledProgram compile(MigolParsedProgram program) throws MigolCompilationException {
+        List<MigolStatement> list = program.getStatements();
+        MigolStatement[] statements = list.toArray(new MigolStatement[list.size()]);
+        String name = nextClassName("MigolProgram");
+        ClassFileBuilder cls = new ClassFileBuilder(name, BASE);
+        addConstructor(cls, BASE);
+
+        CodeBuilder code = new CodeBuilder(cls);
+        StatementEmitter emitter = new StatementEmitter(code);
+        Label start = new Label();
+        Label afterJump = new Label();
+        Label dispatch = new Label();
+        Label loop = new Label();
+        Label exit = new Label();
+        Label handler = new Label();
+        Label[] labels = new Label[statements.length];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = new Label();
+        }
+
+        code.aload(LOCAL_SESSION);
+        code.invoke(INVOKEVIRTUAL, SESSION, "getMemory", "()[I");
+        code.astore(LOCAL_MEM);
+        code.aload(LOCAL_SESSION);
+        code.invoke(INVOKEVIRTUAL, SESSION, "getPP", "()I");
+        code.istore(LOCAL_PP);
+        code.mark(start);
+        code.jump(GOTO, loop);
+
+        // Entered after a branch, with the new program pointer in LOCAL_PP
+        code.mark(afterJump);
+        code.aload(LOCAL_SESSION);
+        code.invoke(INVOKEVIRTUAL, SESSION, "isInterruptPending", "()Z");
+        code.jump(IFEQ, loop);
+        code.mark(dispatch);
+        code.aload(LOCAL_SESSION);
+        code.iload(LOCAL_PP);
+        code.invoke(INVOKEVIRTUAL, SESSION, "dispatchInterrupt", "(I)I");
+        code.istore(LOCAL_PP);
+        code.mark(loop);
+        code.iload(LOCAL_PP);
+        if (statements.length > 0) {
+            code.tableswitch(1, exit, labels);
+        } else {
+            code.jump(GOTO, exit);
+        }
+
+        for (int i = 0; i < statements.length; i++) {
+            code.mark(labels[i]);
+            MigolStatement stmt = statements[i];
+            if (isCompilable(stmt)) {
+                emitter.emitStatement(stmt, afterJump);
+            } else {
+                emitInterpreted(code, i, afterJump);
+            }
+            Label next = (i + 1 < labels.length) ? labels[i + 1] : new Label();
+            code.iinc(LOCAL_PP, 1);
+            code.aload(LOCAL_SESSION);
+            code.invoke(INVOKEVIRTUAL, SESSION, "isInterruptPending", "()Z");
+            code.jump(IFEQ, next);
+            code.gotoWide(dispatch);
+            if (i + 1 == labels.length) {
+                code.mark(next);
+                code.gotoWide(loop);
+            }
+        }
+
+        code.mark(exit);
+        code.aload(LOCAL_SESSION);
+        code.iload(LOCAL_PP);
+        code.invoke(INVOKEVIRTUAL, SESSION, "setPP", "(I)V");
+        code.op(RETURN);
+
+        // Writes the program pointer back to the session before any
+        // exception leaves the method
+        code.mark(handler);
+        code.astore(LOCAL_EXCEPTION);
+        code.aload(LOCAL_SESSION);
+        code.iload(LOCAL_PP);
+        code.invoke(INVOKEVIRTUAL, SESSION, "setPP", "(I)V");
+        code.aload(LOCAL_EXCEPTION);
+        code.op(ATHROW);
+        code.addHandler(start, exit, handler, null);
+
+        cls.addMethod(ClassFileBuilder.ACC_PROTECTED, "run",
+                "(L" + SESSION + ";)V", code, emitter.getMaxStack(), LOCAL_EXCEPTION + 1);
+        return (CompiledProgram) instantiate(cls, statements);
+    }
+
+    /**
+     * Compiles a recorded trace.
+     *
+     * The trace is a sequence of statement positions where each statement
+     * was followed by the next one in the sequence, and the last statement
+     * was followed by the first. All statements must be accepted by
+     * {@link StatementEmitter#isCompilable(MigolStatement)}.
+     * @param program   The program the trace was recorded in.
+     * @param positions The statement positions of the trace.
+     * @return  The compiled trace.
+     * @throws se.migomipo.migol.compiler.MigolCompilationException
+     * If the trace can not be compiled.
+     */
+    static CompiledTrace compileTrace(MigolParsedProgram program, int[] positions)
+            throws MigolCompilationException {
+        MigolStatement[] statements = new MigolStatement[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            statements[i] = program.getStatement(positions[i]);
+            if (!isCompilable(statements[i])) {
+                throw new MigolCompilationException("Trace contains an interpreted statement");
+            }
+        }
+        ClassFileBuilder cls = new ClassFileBuilder(nextClassName("MigolTrace"), TRACE_BASE);
+        addConstructor(cls, TRACE_BASE);
+
+        CodeBuilder code = new CodeBuilder(cls);
+        StatementEmitter emitter = new StatementEmitter(code);
+        Label start = new Label();
+        Label loop = new Label();
+        Label end = new Label();
+        Label handler = new Label();
+
+        code.aload(LOCAL_SESSION);
+        code.invoke(INVOKEVIRTUAL, SESSION, "getMemory", "()[I");
+        code.astore(LOCAL_MEM);
+        code.op(ICONST_0);
+        code.istore(LOCAL_PP);
+        code.mark(start);
+        code.mark(loop);
+        for (int i = 0; i < positions.length; i++) {
+            int pos = positions[i];
+            int next = positions[(i + 1) % positions.length];
+            Label taken = new Label();
+            Label cont = new Label();
+            code.pushInt(pos);
+            code.istore(LOCAL_PP);
+            emitter.emitStatement(statements[i], taken);
+            // The statement did not branch
+            if (pos + 1 == next) {
+                code.jump(GOTO, cont);
+            } else {
+                code.pushInt(pos + 1);
+                code.op(IRETURN);
+            }
+            if (isBranch(statements[i])) {
+                code.mark(taken);
+                code.iload(LOCAL_PP);
+                code.pushInt(next);
+                code.jump(IF_ICMPEQ, cont);
+                code.iload(LOCAL_PP);
+                code.op(IRETURN);
+            }
+            code.mark(cont);
+        }
+        // Interrupts are only checked between iterations, since traced
+        // statements can not change the interrupt state
+        Label exit = new Label();
+        code.aload(LOCAL_SESSION);
+        code.invoke(INVOKEVIRTUAL, SESSION, "isInterruptPending", "()Z");
+        code.jump(IFNE, exit);
+        code.gotoWide(loop);
+        code.mark(exit);
+        code.pushInt(positions[0]);
+        code.op(IRETURN);
+        code.mark(end);
+
+        code.mark(handler);
+        code.astore(LOCAL_EXCEPTION);
+        code.aload(LOCAL_SESSION);
+        code.iload(LOCAL_PP);
+        code.invoke(INVOKEVIRTUAL, SESSION, "setPP", "(I)V");
+        code.aload(LOCAL_EXCEPTION);
+        code.op(ATHROW);
+        code.addHandler(start, end, handler, null);
+
+        cls.addMethod(ClassFileBuilder.ACC_PUBLIC, "run",
+                "(L" + SESSION + ";)I", code, emitter.getMaxStack(), LOCAL_EXCEPTION + 1);
+        return (CompiledTrace) instantiate(cls, statements);
+    }
+
+    /**
+     * Emits code which executes a statement through the interpreter.
+     */
+    private static void emitInterpreted(CodeBuilder code, int index, Label afterJump) throws MigolCompilationException {
+        Label notLocked = new Label();
+        code.aload(LOCAL_SESSION);
+        code.iload(LOCAL_PP);
+        code.invoke(INVOKEVIRTUAL, SESSION, "setPP", "(I)V");
+        code.aload(LOCAL_SESSION);
+        code.op(ICONST_0);
+        code.invoke(INVOKEVIRTUAL, SESSION, "setPPLocked", "(Z)V");
+        code.aload(0);
+        code.field(GETFIELD, BASE, "statements", "[L" + STATEMENT + ";");
+        code.pushInt(index);
+        code.op(AALOAD);
+        code.aload(LOCAL_SESSION);
+        code.invokeInterface(STATEMENT, "executeStatement", "(L" + SESSION + ";)V", 1);
+        code.aload(LOCAL_SESSION);
+        code.invoke(INVOKEVIRTUAL, SESSION, "getPPLocked", "()Z");
+        code.jump(IFEQ, notLocked);
+        code.aload(LOCAL_SESSION);
+        code.invoke(INVOKEVIRTUAL, SESSION, "getPP", "()I");
+        code.istore(LOCAL_PP);
+        code.gotoWide(afterJump);
+        code.mark(notLocked);
+    }
+
+    static synchronized String nextClassName(String prefix) {
+        return "se/migomipo/migol/compiler/" + prefix + "$" + (++classCount);
+    }
+
+    /**
+     * Adds a constructor taking the statement array to a generated class.
+     */
+    static void addConstructor(ClassFileBuilder cls, String base) throws MigolCompilationException {
+        CodeBuilder init = new CodeBuilder(cls);
+        init.aload(0);
+        init.aload(1);
+        init.invoke(INVOKESPECIAL, base, "<init>", "([L" + STATEMENT + ";)V");
+        init.op(RETURN);
+        cls.addMethod(ClassFileBuilder.ACC_PUBLIC, "<init>",
+                "([L" + STATEMENT + ";)V", init, 2, 2);
+    }
+
+    /**
+     * Loads a generated class and creates an instance of it.
+     */
+    static Object instantiate(ClassFileBuilder cls, MigolStatement[] statements) throws MigolCompilationException {
+        byte[] bytes = cls.toByteArray();
+        try {
+            Class<?> c = new ProgramClassLoader().define(cls.getName().replace('/', '.'), bytes);
+            return c.getConstructor(MigolStatement[].class).newInstance((Object) statements);
+        } catch (LinkageError ex) {
+            throw new MigolCompilationException("Generated class rejected by the virtual machine", ex);
+        } catch (Exception ex) {
+            throw new MigolCompilationException("Generated class could not be instantiated", ex);
+        }
+    }
+
+    /**
+     * Every generated class gets its own class loader, so the class can be
+     * unloaded when the program is no longer used.
+     */
+    private static class ProgramClassLoader extends ClassLoader {
+
+        private ProgramClassLoader() {
+            super(CompiledProgram.class.getClassLoader());
+        }
+
+        private Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
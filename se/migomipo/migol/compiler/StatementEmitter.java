@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) 2009 John Eriksson
+
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package se.migomipo.migol.compiler;
+
+import se.migomipo.migol.*;
+import static se.migomipo.migol.AssignmentOperation.*;
+import static se.migomipo.migol.ConditionalStatement.*;
+import static se.migomipo.migol.compiler.CodeBuilder.*;
+
+/**
+ * Translates single Migol statements into bytecode.
+ *
+ * The generated code expects the following local variable layout:
+ * <ul>
+ * <li>0: <code>this</code></li>
+ * <li>1: the {@link MigolExecutionSession}</li>
+ * <li>2: the memory array of the session</li>
+ * <li>3: the program pointer, which must be equal to the position of the
+ * statement when the statement code is entered</li>
+ * <li>4: a temporary address</li>
+ * </ul>
+ * Only statements accepted by {@link #isCompilable(MigolStatement)} can be
+ * translated. These statements may read and write memory and the program
+ * pointer, and read the interrupt registers, but they never call back into
+ * the interpreter.
+ * @author John Eriksson
+ */
+class StatementEmitter {
+
+    static final int LOCAL_SESSION = 1;
+    static final int LOCAL_MEM = 2;
+    static final int LOCAL_PP = 3;
+    static final int LOCAL_TMP = 4;
+    static final int LOCAL_COUNT = 5;
+    static final String SESSION = "se/migomipo/migol/MigolExecutionSession";
+    private final CodeBuilder code;
+    private int maxDepth = 0;
+
+    StatementEmitter(CodeBuilder code) {
+        this.code = code;
+    }
+
+    /**
+     * Returns the operand stack depth needed by the emitted code.
+     * @return  The maximum stack depth.
+     */
+    int getMaxStack() {
+        return 8 + 2 * maxDepth;
+    }
+
+    /**
+     * Checks if a statement can be translated by this class.
+     * @param stmt  The statement.
+     * @return  <b>true</b> if the statement can be translated.
+     */
+    static boolean isCompilable(MigolStatement stmt) {
+        if (stmt instanceof NopStatement) {
+            return true;
+        } else if (stmt instanceof ConsoleIOStatement) {
+            ConsoleIOStatement out = (ConsoleIOStatement) stmt;
+            return (out.getMode() == ConsoleIOStatement.ASCII
+                    || out.getMode() == ConsoleIOStatement.INT)
+                    && isCompilableValue(out.getVal());
+        } else if (stmt instanceof ConditionalStatement) {
+            ConditionalStatement cond = (ConditionalStatement) stmt;
+            return cond.getCondtype() >= COND_GT && cond.getCondtype() <= COND_NEQ
+                    && isCompilableValue(cond.getValue())
+                    && isCompilable(cond.getStatement());
+        } else if (stmt instanceof AssignmentStatement) {
+            AssignmentStatement assign = (AssignmentStatement) stmt;
+            if (!isCompilableTarget(assign.getTarget())) {
+                return false;
+            }
+            for (AssignmentOperation op : assign.getOperations()) {
+                if (op.getOperation() < OP_ASSIGN || op.getOperation() > OP_GTEQ
+                        || !isCompilableValue(op.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks if a statement writes the program pointer when it is executed.
+     * @param stmt  A statement accepted by {@link #isCompilable(MigolStatement)}.
+     * @return  <b>true</b> if the statement may branch.
+     */
+    static boolean isBranch(MigolStatement stmt) {
+        if (stmt instanceof ConditionalStatement) {
+            return isBranch(((ConditionalStatement) stmt).getStatement());
+        } else if (stmt instanceof AssignmentStatement) {
+            return ((AssignmentStatement) stmt).getTarget() instanceof BranchReference;
+        }
+        return false;
+    }
+
+    private static boolean isCompilableTarget(MigolReference ref) {
+        if (ref instanceof IntegerValue || ref instanceof BranchReference) {
+            return true;
+        } else if (ref instanceof LabelValue) {
+            return ((LabelValue) ref).getValue() != null;
+        } else if (ref instanceof DeferValue) {
+            return isCompilableValue((DeferValue) ref);
+        }
+        return false;
+    }
+
+    static boolean isCompilableValue(MigolValue val) {
+        if (val instanceof IntegerValue) {
+            return true;
+        } else if (val instanceof LabelValue) {
+            return ((LabelValue) val).getValue() != null;
+        } else if (val instanceof DeferValue) {
+            return isCompilableDefer(((DeferValue) val).getReference());
+        }
+        return false;
+    }
+
+    private static boolean isCompilableDefer(MigolReference ref) {
+        if (ref instanceof MigolValue) {
+            return isCompilableValue((MigolValue) ref);
+        }
+        return ref instanceof BranchReference
+                || ref instanceof BranchLeaveHandlerReference
+                || ref instanceof InterruptResultReference
+                || ref instanceof InterruptReturnAddressReference
+                || ref instanceof InterruptHandlerReference
+                || ref instanceof ExecReference
+                || ref instanceof InterruptWaitReference;
+    }
+
+    /**
+     * Emits the code for a statement.
+     *
+     * If the statement does not write the program pointer, the code falls
+     * through to the code following it, with the program pointer unchanged.
+     * Otherwise the program pointer variable holds the branch target, and
+     * the code jumps to <code>branch</code>.
+     * @param stmt  The statement, which must be accepted by
+     * {@link #isCompilable(MigolStatement)}.
+     * @param branch    The jump target for branches.
+     * @throws se.migomipo.migol.compiler.MigolCompilationException
+     * If the constant pool overflows.
+     */
+    void emitStatement(MigolStatement stmt, Label branch) throws MigolCompilationException {
+        if (stmt instanceof NopStatement) {
+            return;
+        } else if (stmt instanceof ConsoleIOStatement) {
+            emitConsole((ConsoleIOStatement) stmt);
+        } else if (stmt instanceof ConditionalStatement) {
+            ConditionalStatement cond = (ConditionalStatement) stmt;
+            Label skip = new Label();
+            emitValue(cond.getValue());
+            code.jump(inverseCondition(cond.getCondtype()), skip);
+            emitStatement(cond.getStatement(), branch);
+            code.mark(skip);
+        } else if (stmt instanceof AssignmentStatement) {
+            emitAssignment((AssignmentStatement) stmt);
+            if (isBranch(stmt)) {
+                code.gotoWide(branch);
+            }
+        } else {
+            throw new MigolCompilationException("Unsupported statement type");
+        }
+    }
+
+    private void emitConsole(ConsoleIOStatement out) throws MigolCompilationException {
+        code.field(GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;");
+        emitValue(out.getVal());
+        if (out.getMode() == ConsoleIOStatement.ASCII) {
+            code.invoke(INVOKEVIRTUAL, "java/io/PrintStream", "write", "(I)V");
+            code.field(GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;");
+            code.invoke(INVOKEVIRTUAL, "java/io/PrintStream", "flush", "()V");
+        } else {
+            code.invoke(INVOKEVIRTUAL, "java/io/PrintStream", "print", "(I)V");
+        }
+    }
+
+    private void emitAssignment(AssignmentStatement assign) throws MigolCompilationException {
+        MigolReference target = assign.getTarget();
+        if (target instanceof LabelValue) {
+            target = ((LabelValue) target).getValue();
+        }
+        for (AssignmentOperation op : assign.getOperations()) {
+            boolean relative = op.getOperation() != OP_ASSIGN;
+            if (target instanceof BranchReference) {
+                if (relative) {
+                    code.iload(LOCAL_PP);
+                }
+                emitValue(op.getValue());
+                emitOperation(op.getOperation());
+                code.istore(LOCAL_PP);
+            } else {
+                if (target instanceof IntegerValue) {
+                    int address = ((IntegerValue) target).getInternalValue();
+                    code.aload(LOCAL_MEM);
+                    code.pushInt(address);
+                    if (relative) {
+                        code.aload(LOCAL_MEM);
+                        code.pushInt(address);
+                        code.op(IALOAD);
+                    }
+                } else {
+                    emitValue((DeferValue) target);
+                    code.istore(LOCAL_TMP);
+                    code.aload(LOCAL_MEM);
+                    code.iload(LOCAL_TMP);
+                    if (relative) {
+                        code.aload(LOCAL_MEM);
+                        code.iload(LOCAL_TMP);
+                        code.op(IALOAD);
+                    }
+                }
+                emitValue(op.getValue());
+                emitOperation(op.getOperation());
+                code.op(IASTORE);
+            }
+        }
+    }
+
+    /**
+     * Emits code that pushes the result of
+     * {@link MigolValue#get(MigolExecutionSession)}.
+     * @param val   A value accepted by {@link #isCompilableValue(MigolValue)}.
+     * @throws se.migomipo.migol.compiler.MigolCompilationException
+     * If the constant pool overflows.
+     */
+    void emitValue(MigolValue val) throws MigolCompilationException {
+        if (val instanceof IntegerValue) {
+            code.pushInt(((IntegerValue) val).getInternalValue());
+        } else if (val instanceof LabelValue) {
+            code.pushInt(((LabelValue) val).getValue().getInternalValue());
+        } else {
+            DeferValue defer = (DeferValue) val;
+            int levels = defer.getDefers() - 1;
+            maxDepth = Math.max(maxDepth, defer.getDefers() + depth(defer.getReference()));
+            for (int i = 0; i < levels; i++) {
+                code.aload(LOCAL_MEM);
+            }
+            emitDefer(defer.getReference());
+            for (int i = 0; i < levels; i++) {
+                code.op(IALOAD);
+            }
+        }
+    }
+
+    private static int depth(MigolReference ref) {
+        if (ref instanceof DeferValue) {
+            DeferValue defer = (DeferValue) ref;
+            return defer.getDefers() + depth(defer.getReference());
+        }
+        return 0;
+    }
+
+    private void emitDefer(MigolReference ref) throws MigolCompilationException {
+        if (ref instanceof MigolValue) {
+            code.aload(LOCAL_MEM);
+            emitValue((MigolValue) ref);
+            code.op(IALOAD);
+        } else if (ref instanceof BranchReference
+                || ref instanceof BranchLeaveHandlerReference) {
+            code.iload(LOCAL_PP);
+        } else if (ref instanceof InterruptResultReference) {
+            code.aload(LOCAL_SESSION);
+            code.invoke(INVOKEVIRTUAL, SESSION, "getResult", "()I");
+        } else if (ref instanceof InterruptReturnAddressReference) {
+            code.aload(LOCAL_SESSION);
+            code.invoke(INVOKEVIRTUAL, SESSION, "getReturn", "()I");
+        } else if (ref instanceof InterruptHandlerReference) {
+            code.aload(LOCAL_SESSION);
+            code.invoke(INVOKEVIRTUAL, SESSION, "getHandler", "()I");
+        } else {
+            code.op(ICONST_0); // ExecReference and InterruptWaitReference
+        }
+    }
+
+    /**
+     * Emits an assignment operator. The current target value and the operand
+     * must be on the stack, and are replaced by the result.
+     */
+    private void emitOperation(int operation) throws MigolCompilationException {
+        switch (operation) {
+            case OP_ASSIGN:
+                break;
+            case OP_PLUS:
+                code.op(IADD);
+                break;
+            case OP_MINUS:
+                code.op(ISUB);
+                break;
+            case OP_MUL:
+                code.op(IMUL);
+                break;
+            case OP_DIVIDE:
+                code.op(IDIV);
+                break;
+            case OP_MOD:
+                code.op(IREM);
+                break;
+            case OP_AND:
+                code.op(IAND);
+                break;
+            case OP_OR:
+                code.op(IOR);
+                break;
+            case OP_XOR:
+                code.op(IXOR);
+                break;
+            case OP_LSH:
+                code.op(ISHL);
+                break;
+            case OP_RSHA:
+                code.op(ISHR);
+                break;
+            case OP_RSHL:
+                code.op(IUSHR);
+                break;
+            case OP_LRO:
+                code.invoke(INVOKESTATIC, "java/lang/Integer", "rotateLeft", "(II)I");
+                break;
+            case OP_RRO:
+                code.invoke(INVOKESTATIC, "java/lang/Integer", "rotateRight", "(II)I");
+                break;
+            case OP_EQ:
+                emitComparison(IF_ICMPEQ);
+                break;
+            case OP_NEQ:
+                emitComparison(IF_ICMPNE);
+                break;
+            case OP_LT:
+                emitComparison(IF_ICMPLT);
+                break;
+            case OP_GT:
+                emitComparison(IF_ICMPGT);
+                break;
+            case OP_LTEQ:
+                emitComparison(IF_ICMPLE);
+                break;
+            case OP_GTEQ:
+                emitComparison(IF_ICMPGE);
+                break;
+            default:
+                throw new MigolCompilationException("Unknown assignment operator");
+        }
+    }
+
+    private void emitComparison(int opcode) {
+        Label isTrue = new Label();
+        Label end = new Label();
+        code.jump(opcode, isTrue);
+        code.op(ICONST_0);
+        code.jump(GOTO, end);
+        code.mark(isTrue);
+        code.op(ICONST_1);
+        code.mark(end);
+    }
+
+    /**
+     * Returns the jump opcode which jumps if the given condition is false.
+     */
+    private static int inverseCondition(int condtype) throws MigolCompilationException {
+        switch (condtype) {
+            case COND_GT:
+                return IFLE;
+            case COND_LT:
+                return IFGE;
+            case COND_GTEQ:
+                return IFLT;
+            case COND_LTEQ:
+                return IFGT;
+            case COND_EQ:
+                return IFNE;
+            case COND_NEQ:
+                return IFEQ;
+            default:
+                throw new MigolCompilationException("Unknown conditional operator");
+        }
+    }
+}
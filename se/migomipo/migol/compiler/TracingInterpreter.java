@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2009 John Eriksson
+
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package se.migomipo.migol.compiler;
+
+import se.migomipo.migol.*;
+
+/**
+ * An interpreter which compiles hot loops into bytecode while the program
+ * runs.
+ *
+ * The interpreter executes statements like
+ * {@link MigolExecutionSession#executeProgram(MigolParsedProgram)}, and
+ * counts how often every statement is the target of a backward branch.
+ * When a statement becomes hot, the interpreter records the positions of
+ * the statements executed from there until control returns to it. The
+ * recorded path is compiled into a {@link CompiledTrace}, which is run
+ * every time execution reaches the start of the trace.
+ *
+ * Since a trace follows the branches which were actually taken, it also
+ * covers loops which branch through computed targets such as
+ * <code>#&lt;[x]</code>. Each branch in the trace is guarded, and
+ * execution returns to the interpreter as soon as the program takes
+ * another path than the recorded one.
+ *
+ * Recording is abandoned if the path reaches a statement which can not be
+ * compiled, for example an I/O call, if it enters another trace, if an
+ * interrupt is delivered, or if the path grows too long. Traced statements
+ * can not change the interrupt state, so the compiled trace only checks
+ * for pending interrupts at the end of each iteration.
+ *
+ * Instances of this class keep the traces of a single program, and are not
+ * safe for use by multiple concurrent threads.
+ * @see CompiledTrace
+ * @author John Eriksson
+ */
+public class TracingInterpreter {
+
+    /**
+     * The number of backward branches to a statement before a trace is
+     * recorded from it.
+     */
+    private static final int HOT_LOOP = 64;
+    /**
+     * The maximum number of statements in a trace.
+     */
+    private static final int MAX_TRACE_LENGTH = 512;
+    /**
+     * The maximum number of traces compiled for one program.
+     */
+    private static final int MAX_TRACES = 256;
+    /**
+     * The counter value a statement gets when recording from it failed, to
+     * delay the next attempt.
+     */
+    private static final int BACKOFF = -16 * HOT_LOOP;
+    private final MigolParsedProgram program;
+    private final CompiledTrace[] traces;
+    private final int[] counters;
+    private int traceCount = 0;
+    private int[] recording = null;
+    private int recordingLength = 0;
+
+    /**
+     * Creates a tracing interpreter for a program.
+     * @param program   The program to be executed.
+     */
+    public TracingInterpreter(MigolParsedProgram program) {
+        this.program = program;
+        this.traces = new CompiledTrace[program.size() + 1];
+        this.counters = new int[program.size() + 1];
+    }
+
+    /**
+     * Returns the number of traces compiled so far.
+     * @return  The number of compiled traces.
+     */
+    public int getTraceCount() {
+        return traceCount;
+    }
+
+    /**
+     * Executes the program with the given session.
+     *
+     * The session will not be reset, and traces compiled during earlier
+     * executions are reused.
+     * @param session   The session which will be manipulated in this program
+     * execution.
+     * @throws se.migomipo.migol.MigolExecutionException
+     * If an error occurs during execution.
+     */
+    public void executeProgram(MigolExecutionSession session) throws MigolExecutionException {
+        int size = program.size();
+        int pp = session.getPP();
+        try {
+            while (pp > 0 && pp <= size) {
+                CompiledTrace trace = traces[pp];
+                if (trace != null) {
+                    if (recording != null) {
+                        if (pp == recording[0]) {
+                            finishRecording();
+                        } else {
+                            abortRecording();
+                        }
+                    }
+                    pp = trace.run(session);
+                } else {
+                    if (recording != null && pp == recording[0] && recordingLength > 0) {
+                        finishRecording();
+                        continue;
+                    }
+                    session.setPP(pp);
+                    session.setPPLocked(false);
+                    MigolStatement next = program.getStatement(pp);
+                    if (recording != null) {
+                        record(pp, next);
+                    }
+                    next.executeStatement(session);
+                    if (session.getPPLocked()) {
+                        int target = session.getPP();
+                        if (target <= pp && target > 0 && target <= size) {
+                            countBackwardBranch(target);
+                        }
+                        pp = target;
+                    } else {
+                        pp++;
+                    }
+                }
+                if (session.isInterruptPending()) {
+                    if (recording != null) {
+                        abortRecording();
+                    }
+                    pp = session.dispatchInterrupt(pp);
+                }
+            }
+            session.setPP(pp);
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new MigolExecutionException("Memory index out of bounds", ex, session.getPP());
+        }
+    }
+
+    private void countBackwardBranch(int target) {
+        // A loop head with a trace is entered through the trace, so a side
+        // exit branching back to it must not record it again
+        if (recording == null && traces[target] == null && traceCount < MAX_TRACES
+                && ++counters[target] >= HOT_LOOP) {
+            counters[target] = 0;
+            recording = new int[MAX_TRACE_LENGTH];
+            recording[0] = target;
+            recordingLength = 0;
+        }
+    }
+
+    private void record(int pp, MigolStatement stmt) {
+        if (recordingLength == 0 && pp != recording[0]) {
+            // The branch which started the recording was not followed by
+            // the trace head, for example because an interrupt intervened
+            abortRecording();
+        } else if (recordingLength == MAX_TRACE_LENGTH
+                || !StatementEmitter.isCompilable(stmt)) {
+            abortRecording();
+        } else {
+            recording[recordingLength++] = pp;
+        }
+    }
+
+    private void finishRecording() {
+        if (recordingLength == 0) {
+            // Nothing was recorded, so there is nothing to compile
+            recording = null;
+            return;
+        }
+        int[] positions = new int[recordingLength];
+        System.arraycopy(recording, 0, positions, 0, recordingLength);
+        recording = null;
+        try {
+            traces[positions[0]] = MigolCompiler.compileTrace(program, positions);
+            traceCount++;
+        } catch (MigolCompilationException ex) {
+            counters[positions[0]] = BACKOFF;
+        }
+    }
+
+    private void abortRecording() {
+        counters[recording[0]] = BACKOFF;
+        recording = null;
+    }
+}
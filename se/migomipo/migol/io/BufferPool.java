@@ -0,0 +1,198 @@
+package se.migomipo.migol.io;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A pool of direct byte buffers for moving data between channels and
+ * memory.
+ *
+ * Buffers are kept in classes of power-of-two sizes from 4 kB up to 1 MB,
+ * so a buffer is reused by every transfer of about the same length.
+ * Longer transfers get a heap buffer which is not pooled. Each class keeps
+ * at most a few free buffers, the rest are left to the garbage collector.
+ *
+ * The pool also copies between buffers and memory cells, one byte per
+ * cell. The copy goes through a byte array in blocks, since a loop over an
+ * array is much faster than a loop over a buffer and is vectorized by the
+ * JIT compiler.
+ *
+ * In packed mode, four bytes are stored in each cell in big-endian order:
+ * the first byte in the highest eight bits and the fourth byte in the
+ * lowest. If the length is not a multiple of four, the last cell holds the
+ * remaining bytes in its highest bits and zeroes below them. Packed copies
+ * move whole cells at a time through an int view of the buffer.
+ */
+public class BufferPool {
+
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 20;
+    private static final int KEEP = 16;
+    private static final int BLOCK = 8192;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+    private static final ThreadLocal<byte[]> blocks = new ThreadLocal<byte[]>() {
+
+        protected byte[] initialValue() {
+            return new byte[BLOCK];
+        }
+    };
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool() {
+        free = new ConcurrentLinkedQueue[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+        }
+    }
+
+    private static int sizeClass(int len) {
+        int shift = MIN_SHIFT;
+        while (shift <= MAX_SHIFT && (1 << shift) < len) {
+            shift++;
+        }
+        return shift - MIN_SHIFT;
+    }
+
+    /**
+     * Returns a cleared buffer with room for <code>len</code> bytes. The
+     * limit of the buffer is set to <code>len</code>.
+     * @throws IllegalArgumentException If the length is negative.
+     */
+    public ByteBuffer acquire(int len) {
+        if (len < 0) {
+            throw new IllegalArgumentException();
+        }
+        int c = sizeClass(len);
+        if (c >= free.length) {
+            return ByteBuffer.allocate(len);
+        }
+        ByteBuffer buf = free[c].poll();
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(1 << (c + MIN_SHIFT));
+        }
+        buf.clear();
+        buf.limit(len);
+        return buf;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used afterwards.
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null || !buf.isDirect()) {
+            return;
+        }
+        ConcurrentLinkedQueue<ByteBuffer> q = free[sizeClass(buf.capacity())];
+        // The size is only an estimate, which is good enough for a bound
+        if (q.size() < KEEP) {
+            q.add(buf);
+        }
+    }
+
+    /**
+     * Copies the remaining bytes of a buffer into memory, one byte per
+     * cell.
+     * @param buf   The buffer, which is read to its limit.
+     * @param mem   The memory.
+     * @param pos   The address of the first cell.
+     */
+    public static void copyIn(ByteBuffer buf, int[] mem, int pos) {
+        int len = buf.remaining();
+        if (pos < 0 || pos + len > mem.length || pos + len < 0) {
+            throw new ArrayIndexOutOfBoundsException(pos + len);
+        }
+        byte[] block = blocks.get();
+        while (len > 0) {
+            int n = Math.min(len, BLOCK);
+            buf.get(block, 0, n);
+            for (int i = 0; i < n; i++) {
+                mem[pos + i] = block[i] & 0xFF;
+            }
+            pos += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Copies cells of memory into a buffer up to its limit, one byte per
+     * cell. Only the lowest eight bits of each cell are kept.
+     * @param mem   The memory.
+     * @param pos   The address of the first cell.
+     * @param buf   The buffer.
+     */
+    public static void copyOut(int[] mem, int pos, ByteBuffer buf) {
+        int len = buf.remaining();
+        if (pos < 0 || pos + len > mem.length || pos + len < 0) {
+            throw new ArrayIndexOutOfBoundsException(pos + len);
+        }
+        byte[] block = blocks.get();
+        while (len > 0) {
+            int n = Math.min(len, BLOCK);
+            for (int i = 0; i < n; i++) {
+                block[i] = (byte) mem[pos + i];
+            }
+            buf.put(block, 0, n);
+            pos += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Returns the number of cells holding <code>len</code> packed bytes.
+     */
+    public static int packedCells(int len) {
+        return (len + 3) >>> 2;
+    }
+
+    /**
+     * Copies the remaining bytes of a buffer into memory, four bytes per
+     * cell.
+     * @param buf   The buffer, which is read to its limit.
+     * @param mem   The memory.
+     * @param pos   The address of the first cell.
+     */
+    public static void copyInPacked(ByteBuffer buf, int[] mem, int pos) {
+        int len = buf.remaining();
+        int cells = packedCells(len);
+        if (pos < 0 || pos + cells > mem.length || pos + cells < 0) {
+            throw new ArrayIndexOutOfBoundsException(pos + cells);
+        }
+        int whole = len >>> 2;
+        buf.order(ByteOrder.BIG_ENDIAN);
+        buf.asIntBuffer().get(mem, pos, whole);
+        buf.position(buf.position() + (whole << 2));
+        if (whole < cells) {
+            int cell = 0;
+            for (int shift = 24; buf.hasRemaining(); shift -= 8) {
+                cell |= (buf.get() & 0xFF) << shift;
+            }
+            mem[pos + whole] = cell;
+        }
+    }
+
+    /**
+     * Copies cells of memory into a buffer up to its limit, four bytes per
+     * cell.
+     * @param mem   The memory.
+     * @param pos   The address of the first cell.
+     * @param buf   The buffer.
+     */
+    public static void copyOutPacked(int[] mem, int pos, ByteBuffer buf) {
+        int len = buf.remaining();
+        int cells = packedCells(len);
+        if (pos < 0 || pos + cells > mem.length || pos + cells < 0) {
+            throw new ArrayIndexOutOfBoundsException(pos + cells);
+        }
+        int whole = len >>> 2;
+        buf.order(ByteOrder.BIG_ENDIAN);
+        buf.asIntBuffer().put(mem, pos, whole);
+        buf.position(buf.position() + (whole << 2));
+        if (whole < cells) {
+            int cell = mem[pos + whole];
+            for (int shift = 24; buf.hasRemaining(); shift -= 8) {
+                buf.put((byte) (cell >>> shift));
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package se.migomipo.migol.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A channel with a read-ahead and a write-behind buffer.
+ *
+ * A read smaller than the buffer fills the read-ahead buffer with one read
+ * on the channel, and the following reads are served from it. Writes
+ * smaller than the buffer are collected in the write-behind buffer, which
+ * is written to the channel when it is full, when it is flushed and when
+ * the channel is closed. Reads and writes larger than the buffer go
+ * straight to the channel.
+ *
+ * {@link #readBuffered(ByteBuffer)} and {@link #writeBuffered(ByteBuffer)}
+ * never block, so a request they can serve completes on the thread
+ * submitting it.
+ *
+ * If the channel is a {@link FileChannel}, the two buffers share the
+ * position of the file. Pending writes are flushed before a read, and the
+ * unread bytes of the read-ahead buffer are given back to the file before
+ * a write. On other channels, such as the standard streams, the two
+ * directions are independent, but pending writes are still flushed before
+ * the channel is read, so a prompt is shown before the program waits for
+ * input.
+ */
+public class BufferedChannel implements ByteChannel {
+
+    /**
+     * Returned by {@link #readBuffered(ByteBuffer)} and
+     * {@link #writeBuffered(ByteBuffer)} when the request cannot be served
+     * without blocking.
+     */
+    public static final int WOULD_BLOCK = -2;
+    /**
+     * The largest buffer size, the same as the largest buffer kept by the
+     * {@link BufferPool}.
+     */
+    public static final int MAX_SIZE = 1 << 20;
+    private final ByteChannel channel;
+    private final ByteBuffer readBuf;
+    private final ByteBuffer writeBuf;
+    private final ReentrantLock lock = new ReentrantLock();
+    private boolean eof = false;
+
+    /**
+     * Creates a buffered channel.
+     * @param channel   The channel.
+     * @param size      The size of each buffer in bytes.
+     * @throws IllegalArgumentException If the size is not positive or
+     * larger than {@link #MAX_SIZE}.
+     */
+    public BufferedChannel(ByteChannel channel, int size) {
+        if (size <= 0 || size > MAX_SIZE) {
+            throw new IllegalArgumentException();
+        }
+        this.channel = channel;
+        readBuf = ByteBuffer.allocateDirect(size);
+        readBuf.flip();
+        writeBuf = ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Returns the channel below the buffers.
+     */
+    public ByteChannel getChannel() {
+        return channel;
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        lock.lock();
+        try {
+            flushWrites();
+            if (readBuf.hasRemaining()) {
+                return take(dst);
+            }
+            if (dst.remaining() >= readBuf.capacity()) {
+                return channel.read(dst);
+            }
+            readBuf.clear();
+            int n = channel.read(readBuf);
+            readBuf.flip();
+            if (n < 0) {
+                eof = true;
+                return -1;
+            }
+            return take(dst);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads from the read-ahead buffer without blocking.
+     * @return  The number of bytes read, -1 at the end of the stream, or
+     * {@link #WOULD_BLOCK} if the channel has to be read.
+     */
+    public int readBuffered(ByteBuffer dst) {
+        if (!lock.tryLock()) {
+            return WOULD_BLOCK;
+        }
+        try {
+            if (readBuf.hasRemaining() && !hasPendingWrites()) {
+                return take(dst);
+            }
+            // The end of a file may move, so only streams stay at the end
+            if (eof && !(channel instanceof FileChannel)) {
+                return -1;
+            }
+            return WOULD_BLOCK;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean hasPendingWrites() {
+        return writeBuf.position() > 0 && channel instanceof FileChannel;
+    }
+
+    private int take(ByteBuffer dst) {
+        int n = Math.min(dst.remaining(), readBuf.remaining());
+        int limit = readBuf.limit();
+        readBuf.limit(readBuf.position() + n);
+        dst.put(readBuf);
+        readBuf.limit(limit);
+        return n;
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        lock.lock();
+        try {
+            dropReadAhead();
+            int n = src.remaining();
+            if (n > writeBuf.remaining()) {
+                flushWrites();
+            }
+            if (n >= writeBuf.capacity()) {
+                while (src.hasRemaining()) {
+                    channel.write(src);
+                }
+            } else {
+                writeBuf.put(src);
+                if (!writeBuf.hasRemaining()) {
+                    flushWrites();
+                }
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds bytes to the write-behind buffer without blocking.
+     * @return  The number of bytes written, or {@link #WOULD_BLOCK} if the
+     * channel has to be written.
+     */
+    public int writeBuffered(ByteBuffer src) {
+        if (!lock.tryLock()) {
+            return WOULD_BLOCK;
+        }
+        try {
+            // A full buffer is written at once, which needs the channel
+            if (src.remaining() >= writeBuf.remaining()
+                    || (readBuf.hasRemaining() && channel instanceof FileChannel)) {
+                return WOULD_BLOCK;
+            }
+            int n = src.remaining();
+            writeBuf.put(src);
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the pending bytes of the write-behind buffer to the channel.
+     */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            flushWrites();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushWrites() throws IOException {
+        writeBuf.flip();
+        try {
+            while (writeBuf.hasRemaining()) {
+                channel.write(writeBuf);
+            }
+        } finally {
+            writeBuf.compact();
+        }
+    }
+
+    /**
+     * Moves a file back over the bytes which have been read ahead but not
+     * used, and empties the read-ahead buffer. Other channels keep their
+     * read-ahead, since their input does not depend on the output.
+     */
+    private void dropReadAhead() throws IOException {
+        if (channel instanceof FileChannel) {
+            FileChannel fc = (FileChannel) channel;
+            if (readBuf.hasRemaining()) {
+                fc.position(fc.position() - readBuf.remaining());
+            }
+            readBuf.clear();
+            readBuf.flip();
+            eof = false;
+        }
+    }
+
+    /**
+     * Flushes the pending writes and returns the channel below the buffers.
+     * The unread bytes of the read-ahead buffer are given back to a file,
+     * and are lost for other channels.
+     * @return  The channel.
+     */
+    public ByteChannel release() throws IOException {
+        lock.lock();
+        try {
+            flushWrites();
+            dropReadAhead();
+            return channel;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            flushWrites();
+        } finally {
+            lock.unlock();
+            channel.close();
+        }
+    }
+}
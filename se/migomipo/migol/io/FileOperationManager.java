@@ -1,30 +1,42 @@
 package se.migomipo.migol.io;
 
 import se.migomipo.migol.MigolExecutionSession;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 public class FileOperationManager {
 
     private IOManager io;
+    private final Map<FileChannel, GroupCommit> commits = new WeakHashMap<FileChannel, GroupCommit>();
 
     public FileOperationManager(IOManager io) {
         this.io = io;
     }
 
-    private class FileOpenRequest implements Runnable {
+    private class FileOpenRequest extends IORequest {
 
         // structpos : Function ID
         // structpos + 1: file name position
         // structpos + 2: file name length
-        // structpos + 3: mode
-        private MigolExecutionSession session;
-        private int structPos;
+        // structpos + 3: mode (0 = read, 1 = read and write, 2 = append)
+        // structpos + 4: error num
+        // structpos + 5: file handle
+        // Modes 1 and 2 create the file if it does not exist. In mode 2 the
+        // file can only be written, and every write goes to its end.
 
         public FileOpenRequest(MigolExecutionSession session, int structPos) {
-            this.session = session;
-            this.structPos = structPos;
+            super(session, structPos);
+        }
+
+        protected void fail(int error) {
+            int[] mem = session.getMemory();
+            mem[structPos + 4] = error;
+            mem[structPos + 5] = -1;
         }
 
         public void run() {
@@ -40,15 +52,17 @@ public class FileOperationManager {
             }
             try {
                 int filemode = mem[structPos + 3];
-                String mode;
+                String name = new String(bytes, "utf-8");
+                FileChannel f;
                 if (filemode == 0) {
-                    mode = "r";
+                    f = new RandomAccessFile(name, "r").getChannel();
                 } else if (filemode == 1) {
-                    mode = "rw";
+                    f = new RandomAccessFile(name, "rw").getChannel();
+                } else if (filemode == 2) {
+                    f = new FileOutputStream(name, true).getChannel();
                 } else {
                     throw new IllegalArgumentException();
                 }
-                FileChannel f = new RandomAccessFile(new String(bytes, "utf-8"), mode).getChannel();
                 handle = io.addObject(f);
 
             } catch (IOException ex) {
@@ -67,28 +81,57 @@ public class FileOperationManager {
         }
     }
 
-    private class FileTellRequest implements Runnable {
+    /**
+     * Reads a 64-bit value stored in two cells, the high 32 bits first.
+     */
+    static long getLong(int[] mem, int pos) {
+        return ((long) mem[pos] << 32) | (mem[pos + 1] & 0xFFFFFFFFL);
+    }
 
-        private MigolExecutionSession session;
-        private int structPos;
+    /**
+     * Stores a 64-bit value in two cells, the high 32 bits first.
+     */
+    private static void putLong(int[] mem, int pos, long value) {
+        mem[pos] = (int) (value >>> 32);
+        mem[pos + 1] = (int) value;
+    }
 
-        public FileTellRequest(MigolExecutionSession session, int structPos) {
-            this.session = session;
-            this.structPos = structPos;
+    /**
+     * Checks that a position or size fits in a single cell.
+     * @throws IllegalArgumentException If it does not.
+     */
+    private static void checkCell(long value) {
+        if (value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    private class FileTellRequest extends IORequest {
+
+        private final boolean wide;
+
+        public FileTellRequest(MigolExecutionSession session, int structPos, boolean wide) {
+            super(session, structPos);
+            this.wide = wide;
         }
 
         // structPos : function ID
         // structPos + 1: file handle
         // structPos + 2: error num
         // structPos + 3: file position
-        public void run() {
+        // If wide, the position is stored in two cells, structPos + 3 and
+        // structPos + 4, with the high 32 bits first. Otherwise a position
+        // past 2 GB is an error.
+        public void complete() {
             int error = 0;
-            int fileposition = -1;
+            long fileposition = -1;
             int[] mem = session.getMemory();
             try {
                 FileChannel fc = (FileChannel) io.getObject(mem[structPos + 1]);
-                fileposition = (int) fc.position();
-
+                fileposition = fc.position();
+                if (!wide) {
+                    checkCell(fileposition);
+                }
             } catch (ClassCastException ex) {
                 error = 4;
             } catch (IOException ex) {
@@ -98,34 +141,58 @@ public class FileOperationManager {
                 }
             } catch (NullPointerException ex) {
                 error = 2;
+            } catch (IllegalArgumentException ex) {
+                error = 3;
+            }
+            if (error != 0) {
+                fileposition = -1;
             }
             mem[structPos + 2] = error;
-            mem[structPos + 3] = fileposition;
-            session.getResultQueue().add(structPos);
+            if (wide) {
+                putLong(mem, structPos + 3, fileposition);
+            } else {
+                mem[structPos + 3] = (int) fileposition;
+            }
+        }
 
+        protected void fail(int error) {
+            int[] mem = session.getMemory();
+            mem[structPos + 2] = error;
+            if (wide) {
+                putLong(mem, structPos + 3, -1);
+            } else {
+                mem[structPos + 3] = -1;
+            }
+        }
+
+        public void run() {
+            complete();
+            session.getResultQueue().add(structPos);
         }
     }
 
-    private class FileSeekRequest implements Runnable {
+    private class FileSeekRequest extends IORequest {
 
-        private MigolExecutionSession session;
-        private int structPos;
+        private final boolean wide;
 
-        public FileSeekRequest(MigolExecutionSession session, int structPos) {
-            this.session = session;
-            this.structPos = structPos;
+        public FileSeekRequest(MigolExecutionSession session, int structPos, boolean wide) {
+            super(session, structPos);
+            this.wide = wide;
         }
 
         // structPos : function ID
         // structPos + 1: file handle
         // structPos + 2: new position
-        // structPos + 3: error num    
-        public void run() {
+        // structPos + 3: error num
+        // If wide, the position is stored in two cells, structPos + 2 and
+        // structPos + 3, with the high 32 bits first, and the error is
+        // stored in structPos + 4.
+        public void complete() {
             int error = 0;
             int[] mem = session.getMemory();
             try {
                 FileChannel fc = (FileChannel) io.getObject(mem[structPos + 1]);
-                fc.position(mem[structPos + 2]);
+                fc.position(wide ? getLong(mem, structPos + 2) : mem[structPos + 2]);
 
             } catch (ClassCastException ex) {
                 error = 4;
@@ -136,35 +203,229 @@ public class FileOperationManager {
                 }
             } catch (NullPointerException ex) {
                 error = 2;
+            } catch (IllegalArgumentException ex) {
+                error = 3;
             }
-            mem[structPos + 3] = error;
-            session.getResultQueue().add(structPos);
+            mem[structPos + (wide ? 4 : 3)] = error;
+        }
 
+        protected void fail(int error) {
+            session.getMemory()[structPos + (wide ? 4 : 3)] = error;
+        }
+
+        public void run() {
+            complete();
+            session.getResultQueue().add(structPos);
         }
     }
 
-    private class FileSizeRequest implements Runnable {
+    private class FileSizeRequest extends IORequest {
 
-        private MigolExecutionSession session;
-        private int structPos;
+        private final boolean wide;
 
-        public FileSizeRequest(MigolExecutionSession session, int structPos) {
-            this.session = session;
-            this.structPos = structPos;
+        public FileSizeRequest(MigolExecutionSession session, int structPos, boolean wide) {
+            super(session, structPos);
+            this.wide = wide;
         }
 
         // structPos : function ID
         // structPos + 1: file handle
         // structPos + 2: error num
-        // structPos + 3: file size    
+        // structPos + 3: file size
+        // If wide, the size is stored in two cells, structPos + 3 and
+        // structPos + 4, with the high 32 bits first. Otherwise a size
+        // past 2 GB is an error.
+        public void complete() {
+            int error = 0;
+            long size = -1;
+            int[] mem = session.getMemory();
+            try {
+                FileChannel fc = (FileChannel) io.getObject(mem[structPos + 1]);
+                size = fc.size();
+                if (!wide) {
+                    checkCell(size);
+                }
+            } catch (ClassCastException ex) {
+                error = 4;
+            } catch (IOException ex) {
+                error = 1;
+                if(session.isDebugMode()){
+                    ex.printStackTrace();
+                }
+            } catch (NullPointerException ex) {
+                error = 2;
+            } catch (IllegalArgumentException ex) {
+                error = 3;
+            }
+            if (error != 0) {
+                size = -1;
+            }
+            mem[structPos + 2] = error;
+            if (wide) {
+                putLong(mem, structPos + 3, size);
+            } else {
+                mem[structPos + 3] = (int) size;
+            }
+        }
+
+        protected void fail(int error) {
+            int[] mem = session.getMemory();
+            mem[structPos + 2] = error;
+            if (wide) {
+                putLong(mem, structPos + 3, -1);
+            } else {
+                mem[structPos + 3] = -1;
+            }
+        }
+
+        public void run() {
+            complete();
+            session.getResultQueue().add(structPos);
+        }
+    }
+
+    private class PositionalRequest extends IORequest {
+
+        // structPos : function ID
+        // structPos + 1: file handle
+        // structPos + 2: buffer address
+        // structPos + 3: buffer length
+        // structPos + 4: file position
+        // structPos + 5: error num
+        // structPos + 6: bytes read or written
+        // The position of the file handle is neither used nor changed, so
+        // any number of these requests may run on one file at the same time.
+        // If wide, the file position is stored in two cells, structPos + 4
+        // and structPos + 5, with the high 32 bits first, and the results
+        // follow one cell later.
+
+        private final boolean write;
+        private final boolean wide;
+
+        public PositionalRequest(MigolExecutionSession session, int structPos,
+                boolean write, boolean wide) {
+            super(session, structPos);
+            this.write = write;
+            this.wide = wide;
+        }
+
+        protected void fail(int error) {
+            int[] mem = session.getMemory();
+            int result = structPos + (wide ? 6 : 5);
+            mem[result] = error;
+            mem[result + 1] = -1;
+        }
+
         public void run() {
             int error = 0;
-            int size = -1;
+            int bytes = -1;
             int[] mem = session.getMemory();
+            BufferPool pool = io.getBufferPool();
+            ByteBuffer buf = null;
             try {
                 FileChannel fc = (FileChannel) io.getObject(mem[structPos + 1]);
-                size = (int) fc.size();
+                if (fc == null) {
+                    throw new NullPointerException();
+                }
+                buf = pool.acquire(mem[structPos + 3]);
+                long position = wide ? getLong(mem, structPos + 4) : mem[structPos + 4];
+                if (write) {
+                    BufferPool.copyOut(mem, mem[structPos + 2], buf);
+                    buf.flip();
+                    bytes = 0;
+                    while (buf.hasRemaining()) {
+                        bytes += fc.write(buf, position + bytes);
+                    }
+                } else {
+                    bytes = fc.read(buf, position);
+                    buf.flip();
+                    BufferPool.copyIn(buf, mem, mem[structPos + 2]);
+                }
+            } catch (ClassCastException ex) {
+                error = 4;
+            } catch (IOException ex) {
+                error = 1;
+                if(session.isDebugMode()){
+                    ex.printStackTrace();
+                }
+            } catch (NullPointerException ex) {
+                error = 2;
+            } catch (IllegalArgumentException ex) {
+                error = 3;
+            } catch (ArrayIndexOutOfBoundsException ex) {
+                error = 3;
+            } catch (NonWritableChannelException ex) {
+                error = 4;
+            } catch (NonReadableChannelException ex) {
+                error = 4;
+            } finally {
+                pool.release(buf);
+            }
+            if (error != 0) {
+                bytes = -1;
+            }
+            int result = structPos + (wide ? 6 : 5);
+            mem[result] = error;
+            mem[result + 1] = bytes;
+            session.getResultQueue().add(structPos);
+        }
+    }
+
+    private class DurableWriteRequest extends IORequest implements GroupCommit.Member {
 
+        // structPos : function ID
+        // structPos + 1: file handle
+        // structPos + 2: buffer address
+        // structPos + 3: buffer length
+        // structPos + 4: error num
+        // structPos + 5: bytes written
+        // The interrupt occurs when the bytes have been forced to the disk.
+        // Writes to the same file which finish while a force is running
+        // share the next force, see GroupCommit.
+
+        private int bytes = -1;
+
+        public DurableWriteRequest(MigolExecutionSession session, int structPos) {
+            super(session, structPos);
+        }
+
+        protected void fail(int error) {
+            int[] mem = session.getMemory();
+            mem[structPos + 4] = error;
+            mem[structPos + 5] = -1;
+        }
+
+        public void run() {
+            int error = 0;
+            int[] mem = session.getMemory();
+            BufferPool pool = io.getBufferPool();
+            ByteBuffer buf = null;
+            FileChannel fc = null;
+            try {
+                Object o = io.getObject(mem[structPos + 1]);
+                if (o == null) {
+                    throw new NullPointerException();
+                }
+                BufferedChannel buffered = null;
+                if (o instanceof BufferedChannel) {
+                    // The pending writes of the buffer are forced too
+                    buffered = (BufferedChannel) o;
+                    o = buffered.getChannel();
+                }
+                fc = (FileChannel) o;
+                buf = pool.acquire(mem[structPos + 3]);
+                BufferPool.copyOut(mem, mem[structPos + 2], buf);
+                buf.flip();
+                int len = buf.remaining();
+                if (buffered != null) {
+                    buffered.write(buf);
+                    buffered.flush();
+                } else {
+                    while (buf.hasRemaining()) {
+                        fc.write(buf);
+                    }
+                }
+                bytes = len;
             } catch (ClassCastException ex) {
                 error = 4;
             } catch (IOException ex) {
@@ -174,37 +435,204 @@ public class FileOperationManager {
                 }
             } catch (NullPointerException ex) {
                 error = 2;
+            } catch (IllegalArgumentException ex) {
+                error = 3;
+            } catch (ArrayIndexOutOfBoundsException ex) {
+                error = 3;
+            } catch (NonWritableChannelException ex) {
+                error = 4;
+            } finally {
+                pool.release(buf);
             }
-            mem[structPos + 2] = error;
-            mem[structPos + 3] = size;
+            if (error != 0) {
+                fail(error);
+                session.getResultQueue().add(structPos);
+                return;
+            }
+            getGroupCommit(fc).commit(fc, this);
+        }
+
+        public void committed(int error) {
+            int[] mem = session.getMemory();
+            mem[structPos + 4] = error;
+            mem[structPos + 5] = bytes;
             session.getResultQueue().add(structPos);
+        }
+    }
 
+    private GroupCommit getGroupCommit(FileChannel fc) {
+        synchronized (commits) {
+            GroupCommit group = commits.get(fc);
+            if (group == null) {
+                group = new GroupCommit();
+                commits.put(fc, group);
+            }
+            return group;
         }
     }
+
+    private class TransferRequest extends IORequest {
+
+        public TransferRequest(MigolExecutionSession session, int structPos) {
+            super(session, structPos);
+        }
+
+        // structPos : function ID
+        // structPos + 1: source handle
+        // structPos + 2: destination handle
+        // structPos + 3: file position, or -1 for the current position
+        // structPos + 4: number of bytes
+        // structPos + 5: error num
+        // structPos + 6: bytes transferred
+        // One of the handles must be a file. The bytes are moved by the
+        // operating system where possible, and never pass through memory.
+        // If the current position is used, it is moved past the bytes.
+        protected void fail(int error) {
+            int[] mem = session.getMemory();
+            mem[structPos + 5] = error;
+            mem[structPos + 6] = -1;
+        }
+
+        public void run() {
+            int error = 0;
+            long done = -1;
+            int[] mem = session.getMemory();
+            try {
+                Object src = io.getObject(mem[structPos + 1]);
+                Object dst = io.getObject(mem[structPos + 2]);
+                if (src == null || dst == null) {
+                    throw new NullPointerException();
+                }
+                long position = mem[structPos + 3];
+                long count = mem[structPos + 4];
+                if (count < 0) {
+                    throw new IllegalArgumentException();
+                }
+                boolean fromFile = src instanceof FileChannel;
+                FileChannel fc = (FileChannel) (fromFile ? src : dst);
+                long start = (position < 0) ? fc.position() : position;
+                done = 0;
+                long n;
+                do {
+                    if (fromFile) {
+                        n = fc.transferTo(start + done, count - done, (WritableByteChannel) dst);
+                    } else {
+                        n = fc.transferFrom((ReadableByteChannel) src, start + done, count - done);
+                    }
+                    done += n;
+                } while (n > 0 && done < count);
+                if (position < 0) {
+                    fc.position(start + done);
+                }
+            } catch (ClassCastException ex) {
+                error = 4;
+            } catch (IOException ex) {
+                error = 1;
+                if(session.isDebugMode()){
+                    ex.printStackTrace();
+                }
+            } catch (NullPointerException ex) {
+                error = 2;
+            } catch (IllegalArgumentException ex) {
+                error = 3;
+            } catch (NonWritableChannelException ex) {
+                error = 4;
+            } catch (NonReadableChannelException ex) {
+                error = 4;
+            }
+            if (error != 0) {
+                done = -1;
+            }
+            mem[structPos + 5] = error;
+            mem[structPos + 6] = (int) done;
+            session.getResultQueue().add(structPos);
+        }
+    }
+    private MigolIOFunction createFileTellFunction(final boolean wide) {
+        return new SynchronousIOFunction() {
+
+            public void executeIO(MigolExecutionSession session, int structPos) {
+                io.submit(new FileTellRequest(session, structPos, wide));
+            }
+
+            public void executeSynchronously(MigolExecutionSession session, int structPos) {
+                new FileTellRequest(session, structPos, wide).complete();
+            }
+        };
+    }
+    private MigolIOFunction createFileSeekFunction(final boolean wide) {
+        return new SynchronousIOFunction() {
+
+            public void executeIO(MigolExecutionSession session, int structPos) {
+                io.submit(new FileSeekRequest(session, structPos, wide));
+            }
+
+            public void executeSynchronously(MigolExecutionSession session, int structPos) {
+                new FileSeekRequest(session, structPos, wide).complete();
+            }
+        };
+    }
+    private MigolIOFunction createFileSizeFunction(final boolean wide) {
+        return new SynchronousIOFunction() {
+
+            public void executeIO(MigolExecutionSession session, int structPos) {
+                io.submit(new FileSizeRequest(session, structPos, wide));
+            }
+
+            public void executeSynchronously(MigolExecutionSession session, int structPos) {
+                new FileSizeRequest(session, structPos, wide).complete();
+            }
+        };
+    }
     private MigolIOFunction openFileFunc = new MigolIOFunction() {
 
         public void executeIO(MigolExecutionSession session, int structPos) {
             io.submit(new FileOpenRequest(session, structPos));
         }
     };
-    private MigolIOFunction fileTellFunc = new MigolIOFunction() {
+    private MigolIOFunction createPositionalFunction(final boolean write, final boolean wide) {
+        return new MigolIOFunction() {
 
-        public void executeIO(MigolExecutionSession session, int structPos) {
-            io.submit(new FileTellRequest(session, structPos));
-        }
-    };
-    private MigolIOFunction fileSeekFunc = new MigolIOFunction() {
+            public void executeIO(MigolExecutionSession session, int structPos) {
+                io.submit(new PositionalRequest(session, structPos, write, wide));
+            }
+        };
+    }
+    private MigolIOFunction positionalReadFunc = createPositionalFunction(false, false);
+    private MigolIOFunction positionalWriteFunc = createPositionalFunction(true, false);
+    private MigolIOFunction positionalReadFunc64 = createPositionalFunction(false, true);
+    private MigolIOFunction positionalWriteFunc64 = createPositionalFunction(true, true);
+    private MigolIOFunction durableWriteFunc = new MigolIOFunction() {
 
         public void executeIO(MigolExecutionSession session, int structPos) {
-            io.submit(new FileSeekRequest(session, structPos));
+            io.submit(new DurableWriteRequest(session, structPos));
         }
     };
-    private MigolIOFunction fileSizeFunc = new MigolIOFunction() {
+    private MigolIOFunction transferFunc = new MigolIOFunction() {
 
         public void executeIO(MigolExecutionSession session, int structPos) {
-            io.submit(new FileSizeRequest(session, structPos));
+            int[] mem = session.getMemory();
+            Object src = io.getObject(mem[structPos + 1]);
+            Object dst = io.getObject(mem[structPos + 2]);
+            if (src instanceof FileChannel && dst instanceof SelectableChannel
+                    && !((SelectableChannel) dst).isBlocking()) {
+                try {
+                    io.getEventLoop().transfer(session, structPos, (FileChannel) src,
+                            (SelectableChannel) dst);
+                    return;
+                } catch (IOException ex) {
+                    // Without an event loop, no channel is non-blocking
+                }
+            }
+            io.submit(new TransferRequest(session, structPos));
         }
     };
+    private MigolIOFunction fileTellFunc = createFileTellFunction(false);
+    private MigolIOFunction fileTellFunc64 = createFileTellFunction(true);
+    private MigolIOFunction fileSeekFunc = createFileSeekFunction(false);
+    private MigolIOFunction fileSeekFunc64 = createFileSeekFunction(true);
+    private MigolIOFunction fileSizeFunc = createFileSizeFunction(false);
+    private MigolIOFunction fileSizeFunc64 = createFileSizeFunction(true);
 
     public MigolIOFunction getOpenFileFunc() {
         return openFileFunc;
@@ -221,6 +649,42 @@ public class FileOperationManager {
     public MigolIOFunction getFileSizeFunc() {
         return fileSizeFunc;
     }
+
+    public MigolIOFunction getPositionalReadFunc() {
+        return positionalReadFunc;
+    }
+
+    public MigolIOFunction getPositionalWriteFunc() {
+        return positionalWriteFunc;
+    }
+
+    public MigolIOFunction getTransferFunc() {
+        return transferFunc;
+    }
+
+    public MigolIOFunction getDurableWriteFunc() {
+        return durableWriteFunc;
+    }
+
+    public MigolIOFunction getFileSeek64Func() {
+        return fileSeekFunc64;
+    }
+
+    public MigolIOFunction getFileTell64Func() {
+        return fileTellFunc64;
+    }
+
+    public MigolIOFunction getFileSize64Func() {
+        return fileSizeFunc64;
+    }
+
+    public MigolIOFunction getPositionalRead64Func() {
+        return positionalReadFunc64;
+    }
+
+    public MigolIOFunction getPositionalWrite64Func() {
+        return positionalWriteFunc64;
+    }
     
     
 }
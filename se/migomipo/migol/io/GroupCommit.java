@@ -0,0 +1,78 @@
+package se.migomipo.migol.io;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Forces the writes of many requests on one file to the disk together.
+ *
+ * A request which has written its data joins the group waiting for the
+ * next force. If no force is running, the request's thread becomes the
+ * leader: it takes the whole group, forces the file once and completes
+ * every request of the group, and repeats as long as more requests have
+ * joined in the meantime. Other threads return at once and their requests
+ * are completed by the leader.
+ *
+ * A group is taken before its force starts, so every request in it has
+ * finished writing and is covered by the force. A request joining during
+ * a force waits for the next one.
+ */
+class GroupCommit {
+
+    /**
+     * A request waiting for its writes to reach the disk.
+     */
+    interface Member {
+
+        /**
+         * Writes the results of the request and adds it to the result
+         * queue.
+         * @param error The error number of the force, or 0.
+         */
+        void committed(int error);
+    }
+    private List<Member> waiting = new ArrayList<Member>();
+    private boolean forcing = false;
+
+    /**
+     * Adds a request whose data has been written, and forces the file if
+     * no other thread is doing it.
+     * @param channel   The file.
+     * @param member    The request.
+     */
+    void commit(FileChannel channel, Member member) {
+        List<Member> group;
+        synchronized (this) {
+            waiting.add(member);
+            if (forcing) {
+                return;
+            }
+            forcing = true;
+        }
+        while (true) {
+            synchronized (this) {
+                if (waiting.isEmpty()) {
+                    forcing = false;
+                    return;
+                }
+                group = waiting;
+                waiting = new ArrayList<Member>();
+            }
+            int error = 0;
+            try {
+                channel.force(false);
+            } catch (IOException ex) {
+                error = 1;
+            }
+            for (Member m : group) {
+                try {
+                    m.committed(error);
+                } catch (RuntimeException ex) {
+                    // One broken request must not keep the others waiting
+                }
+            }
+        }
+    }
+}
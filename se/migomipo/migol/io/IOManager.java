@@ -3,18 +3,51 @@ package se.migomipo.migol.io;
 import se.migomipo.migol.MigolExecutionSession;
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
 
 public class IOManager {
 
     private int allocFd = 20;
-    private ExecutorService threadPool;
+    private final IOScheduler scheduler;
     private Map<Integer, Object> map = new ConcurrentHashMap<Integer, Object>();
+    private ThreadLocal<List<IORequest>> batches = new ThreadLocal<List<IORequest>>();
+    private volatile SocketEventLoop eventLoop = null;
+    private final BufferPool buffers = new BufferPool();
+    private final boolean selecting;
 
     public IOManager() {
-        threadPool = Executors.newCachedThreadPool();
+        this(Executors.newCachedThreadPool(), false);
+    }
+
+    /**
+     * Creates an I/O manager.
+     * @param threadPool    The executor running the blocking requests. It is
+     * shut down when the manager is closed.
+     * @param selecting If <b>true</b>, sockets are non-blocking and completed
+     * by the event loop. Otherwise every socket request blocks a thread of
+     * the executor, which is cheap if the executor runs virtual threads.
+     * @see #newVirtualThreadExecutor()
+     */
+    public IOManager(ExecutorService threadPool, boolean selecting) {
+        this(new IOScheduler(threadPool), selecting);
+    }
+
+    /**
+     * Creates an I/O manager running the blocking requests on a scheduler,
+     * which may limit the number of threads and requests.
+     * @param scheduler The scheduler. It is shut down when the manager is
+     * closed.
+     * @param selecting If <b>true</b>, sockets are non-blocking and completed
+     * by the event loop.
+     */
+    public IOManager(IOScheduler scheduler, boolean selecting) {
+        this.scheduler = scheduler;
+        this.selecting = selecting;
         map.put(1, new StreamByteChannel(System.in, null));
         map.put(2, new StreamByteChannel(null, System.out));
         map.put(3, new StreamByteChannel(null, System.err));
@@ -22,7 +55,70 @@ public class IOManager {
     }
 
     public void close() {
-        threadPool.shutdown();
+        for (Object o : map.values()) {
+            if (o instanceof BufferedChannel) {
+                try {
+                    ((BufferedChannel) o).flush();
+                } catch (IOException ex) {
+                    // The program has ended, so there is no one to tell
+                }
+            }
+        }
+        scheduler.shutdown();
+        synchronized (this) {
+            if (eventLoop != null) {
+                eventLoop.close();
+            }
+        }
+    }
+
+    /**
+     * Creates an executor which starts a virtual thread for every request.
+     * Virtual threads need Java 21 or later, and are looked up by
+     * reflection so that the interpreter still runs on older versions.
+     * @return  The executor, or <b>null</b> if virtual threads are not
+     * supported.
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns <b>true</b> if sockets are non-blocking and completed by the
+     * event loop.
+     */
+    public boolean isSelecting() {
+        return selecting;
+    }
+
+    /**
+     * Returns the event loop which completes requests on non-blocking
+     * channels. The loop is started the first time this method is called.
+     * @return  The event loop.
+     * @throws IOException  If no selector could be opened.
+     */
+    public synchronized SocketEventLoop getEventLoop() throws IOException {
+        if (eventLoop == null) {
+            eventLoop = new SocketEventLoop(this);
+        }
+        return eventLoop;
+    }
+
+    /**
+     * Returns the object for a handle if it is a channel in non-blocking
+     * mode, which must be handled by the event loop.
+     */
+    private SelectableChannel getNonBlocking(MigolExecutionSession session, int structPos) {
+        Object o = map.get(session.getMemory()[structPos + 1]);
+        if (o instanceof SelectableChannel && !((SelectableChannel) o).isBlocking()) {
+            return (SelectableChannel) o;
+        }
+        return null;
     }
 
     public int addObject(Object o) {
@@ -35,11 +131,153 @@ public class IOManager {
         map.remove(pos);
     }
 
+    /**
+     * Puts a read-ahead and write-behind buffer in front of a channel, or
+     * removes it. Requests on the handle should not be pending while the
+     * buffer is changed.
+     * @param handle    The handle of the channel.
+     * @param size      The size of each buffer in bytes, or 0 to remove the
+     * buffers.
+     * @throws NullPointerException     If there is no such handle.
+     * @throws ClassCastException       If the handle is not a blocking
+     * channel.
+     * @throws IllegalArgumentException If the size is negative or larger
+     * than {@link BufferedChannel#MAX_SIZE}.
+     * @throws IOException  If the pending writes of a removed buffer could
+     * not be written.
+     * @see BufferedChannel
+     */
+    public void setBuffered(int handle, int size) throws IOException {
+        Object o = map.get(handle);
+        if (o == null) {
+            throw new NullPointerException();
+        }
+        if (size < 0 || size > BufferedChannel.MAX_SIZE) {
+            // The buffers are allocated on the thread running the program
+            throw new IllegalArgumentException();
+        }
+        if (o instanceof SelectableChannel && !((SelectableChannel) o).isBlocking()) {
+            // Only the event loop may use a non-blocking channel
+            throw new ClassCastException();
+        }
+        ByteChannel channel = (ByteChannel) o;
+        if (channel instanceof BufferedChannel) {
+            channel = ((BufferedChannel) channel).release();
+        }
+        map.put(handle, (size > 0) ? new BufferedChannel(channel, size) : channel);
+    }
+
+    /**
+     * Returns the pool of buffers used for transfers.
+     */
+    public BufferPool getBufferPool() {
+        return buffers;
+    }
+
+    /**
+     * Returns the scheduler running the blocking requests.
+     */
+    public IOScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Runs a task on a thread of the scheduler. The task writes its own
+     * results, so nothing is written if the scheduler rejects it. Tasks
+     * submitted this way share one session limit.
+     * @param runnable  The task.
+     * @see #submit(IORequest)
+     */
     public void submit(Runnable runnable) {
-        threadPool.execute(runnable);
+        submit(new RunnableRequest(runnable));
+    }
+
+    public void submit(IORequest request) {
+        List<IORequest> batch = batches.get();
+        if (batch != null) {
+            batch.add(request);
+        } else {
+            scheduler.execute(request);
+        }
+    }
+
+    /**
+     * Starts collecting the requests submitted by the current thread, so
+     * that they run in order on a single pool thread.
+     * @see #endBatch()
+     */
+    public void beginBatch() {
+        batches.set(new ArrayList<IORequest>());
+    }
+
+    /**
+     * Runs the requests collected since {@link #beginBatch()}, one after
+     * another, as one task in the thread pool.
+     */
+    public void endBatch() {
+        List<IORequest> batch = batches.get();
+        batches.remove();
+        if (batch != null && !batch.isEmpty()) {
+            scheduler.execute(new BatchRequest(batch));
+        }
+    }
+
+    /**
+     * Requests which run one after another. The batch counts as a single
+     * request of the session of its first request.
+     */
+    private static class BatchRequest extends IORequest {
+
+        private final List<IORequest> batch;
+
+        private BatchRequest(List<IORequest> batch) {
+            super(batch.get(0).getSession(), -1);
+            this.batch = batch;
+        }
+
+        protected void fail(int error) {
+            // Each request writes its own error, see reject
+        }
+
+        public void reject(int error) {
+            for (IORequest r : batch) {
+                r.reject(error);
+            }
+        }
+
+        public void run() {
+            for (IORequest r : batch) {
+                r.runSafely();
+            }
+        }
+    }
+
+    /**
+     * A task without a session or structure.
+     */
+    private static class RunnableRequest extends IORequest {
+
+        private final Runnable runnable;
+
+        private RunnableRequest(Runnable runnable) {
+            super(null, -1);
+            this.runnable = runnable;
+        }
+
+        protected void fail(int error) {
+            // The structure of the task is unknown
+        }
+
+        public void reject(int error) {
+            // There is no result queue to add the structure to
+        }
+
+        public void run() {
+            runnable.run();
+        }
     }
 
-    private class ReadRequest implements Runnable {
+    private class ReadRequest extends IORequest {
 
         // structPos    :  function id
         // structPos + 1:  stream handle
@@ -47,31 +285,78 @@ public class IOManager {
         // structPos + 3:  buffer length
         // structPos + 4:  error num
         // structPos + 5:  bytes read
+        // If packed, four bytes are stored in each cell of the buffer, and
+        // the length is still counted in bytes.
+
+        private final boolean packed;
+
+        private ReadRequest(MigolExecutionSession session, int structPos, boolean packed) {
+            super(session, structPos);
+            this.packed = packed;
+        }
 
-        private final int structPos;
-        private final MigolExecutionSession session;
+        /**
+         * Completes the request on the calling thread if it can be served
+         * from a read-ahead buffer.
+         * @return  <b>true</b> if the request has been completed.
+         */
+        private boolean runBuffered() {
+            int[] mem = session.getMemory();
+            Object o = map.get(mem[structPos + 1]);
+            int pos = mem[structPos + 2];
+            int len = mem[structPos + 3];
+            int cells = packed ? BufferPool.packedCells(len) : len;
+            if (!(o instanceof BufferedChannel) || len < 0 || pos < 0
+                    || pos + cells > mem.length || pos + cells < 0) {
+                // Errors are left to the thread pool
+                return false;
+            }
+            ByteBuffer buf = buffers.acquire(len);
+            int bytes;
+            try {
+                bytes = ((BufferedChannel) o).readBuffered(buf);
+                if (bytes == BufferedChannel.WOULD_BLOCK) {
+                    return false;
+                }
+                buf.flip();
+                if (packed) {
+                    BufferPool.copyInPacked(buf, mem, pos);
+                } else {
+                    BufferPool.copyIn(buf, mem, pos);
+                }
+            } finally {
+                buffers.release(buf);
+            }
+            mem[structPos + 4] = 0;
+            mem[structPos + 5] = bytes;
+            session.getResultQueue().add(structPos);
+            return true;
+        }
 
-        private ReadRequest(MigolExecutionSession session, int structPos) {
-            this.structPos = structPos;
-            this.session = session;
+        protected void fail(int error) {
+            int[] mem = session.getMemory();
+            mem[structPos + 4] = error;
+            mem[structPos + 5] = -1;
         }
 
         public void run() {
             int error = 0;
             int bytes = -1;
             int[] mem = session.getMemory();
+            ByteBuffer buf = null;
             try {
                 ByteChannel channel = (ByteChannel) map.get(mem[structPos + 1]);
 
                 if (channel == null) {
                     throw new NullPointerException();
                 }
-                ByteBuffer buf = ByteBuffer.allocate(mem[structPos + 3]);
+                buf = buffers.acquire(mem[structPos + 3]);
                 bytes = channel.read(buf);
                 buf.flip();
-                int i = mem[structPos + 2];
-                while (buf.hasRemaining()) {
-                    mem[i++] = buf.get() & 0xFF;
+                if (packed) {
+                    BufferPool.copyInPacked(buf, mem, mem[structPos + 2]);
+                } else {
+                    BufferPool.copyIn(buf, mem, mem[structPos + 2]);
                 }
 
             } catch (IOException ex) {
@@ -83,8 +368,16 @@ public class IOManager {
                 error = 2;
             } catch(IllegalArgumentException ex){
                 error = 3;
+            } catch(ArrayIndexOutOfBoundsException ex){
+                // The buffer is outside memory, and the bytes read are lost
+                error = 3;
+                bytes = -1;
             } catch(ClassCastException ex){
                 error = 4;
+            } catch(NonReadableChannelException ex){
+                error = 4;
+            } finally {
+                buffers.release(buf);
             }
             mem[structPos + 4] = error;
             mem[structPos + 5] = bytes;
@@ -92,7 +385,7 @@ public class IOManager {
         }
     }
 
-    private class WriteRequest implements Runnable {
+    private class WriteRequest extends IORequest {
 
         // structPos    :  function id
         // structPos + 1:  stream handle
@@ -100,29 +393,75 @@ public class IOManager {
         // structPos + 3:  buffer length
         // structPos + 4:  error num
         // structPos + 5:  bytes written
+        // If packed, four bytes are taken from each cell of the buffer, and
+        // the length is still counted in bytes.
+
+        private final boolean packed;
+
+        private WriteRequest(MigolExecutionSession session, int structPos, boolean packed) {
+            super(session, structPos);
+            this.packed = packed;
+        }
 
-        private final MigolExecutionSession session;
-        private final int structPos;
+        /**
+         * Completes the request on the calling thread if it fits in a
+         * write-behind buffer.
+         * @return  <b>true</b> if the request has been completed.
+         */
+        private boolean runBuffered() {
+            int[] mem = session.getMemory();
+            Object o = map.get(mem[structPos + 1]);
+            int pos = mem[structPos + 2];
+            int len = mem[structPos + 3];
+            int cells = packed ? BufferPool.packedCells(len) : len;
+            if (!(o instanceof BufferedChannel) || len < 0 || pos < 0
+                    || pos + cells > mem.length || pos + cells < 0) {
+                // Errors are left to the thread pool
+                return false;
+            }
+            ByteBuffer buf = buffers.acquire(len);
+            int bytes;
+            try {
+                if (packed) {
+                    BufferPool.copyOutPacked(mem, pos, buf);
+                } else {
+                    BufferPool.copyOut(mem, pos, buf);
+                }
+                buf.flip();
+                bytes = ((BufferedChannel) o).writeBuffered(buf);
+                if (bytes == BufferedChannel.WOULD_BLOCK) {
+                    return false;
+                }
+            } finally {
+                buffers.release(buf);
+            }
+            mem[structPos + 4] = 0;
+            mem[structPos + 5] = bytes;
+            session.getResultQueue().add(structPos);
+            return true;
+        }
 
-        private WriteRequest(MigolExecutionSession session, int structPos) {
-            this.session = session;
-            this.structPos = structPos;
+        protected void fail(int error) {
+            int[] mem = session.getMemory();
+            mem[structPos + 4] = error;
+            mem[structPos + 5] = -1;
         }
 
         public void run() {
             int bytes = -1;
             int error = 0;
             int[] mem = session.getMemory();
+            ByteBuffer buf = null;
             try {
                 ByteChannel channel = (ByteChannel) map.get(mem[structPos + 1]);
                 if (channel == null) {
                     throw new NullPointerException();
                 }
-                int len = mem[structPos + 3];
-                ByteBuffer buf = ByteBuffer.allocate(len);
-                int pos = mem[structPos + 2];
-                for (int i = 0; i < len; i++) {
-                    buf.put((byte) mem[pos++]);
+                buf = buffers.acquire(mem[structPos + 3]);
+                if (packed) {
+                    BufferPool.copyOutPacked(mem, mem[structPos + 2], buf);
+                } else {
+                    BufferPool.copyOut(mem, mem[structPos + 2], buf);
                 }
                 buf.flip();
                 bytes = channel.write(buf);
@@ -136,8 +475,14 @@ public class IOManager {
                 error = 2;
             } catch(IllegalArgumentException ex){
                 error = 3;
+            } catch(ArrayIndexOutOfBoundsException ex){
+                error = 3;
             } catch(ClassCastException ex){
                 error = 4;
+            } catch(NonWritableChannelException ex){
+                error = 4;
+            } finally {
+                buffers.release(buf);
             }
             
             mem[structPos + 4] = error;
@@ -146,29 +491,146 @@ public class IOManager {
         }
     }
 
-    private class CloseRequest implements Runnable {
+    private class VectorRequest extends IORequest {
+
+        // structPos    :  function id
+        // structPos + 1:  stream handle
+        // structPos + 2:  segment list address
+        // structPos + 3:  number of segments
+        // structPos + 4:  error num
+        // structPos + 5:  bytes read or written
+
+        private final boolean write;
+
+        private VectorRequest(MigolExecutionSession session, int structPos, boolean write) {
+            super(session, structPos);
+            this.write = write;
+        }
+
+        protected void fail(int error) {
+            int[] mem = session.getMemory();
+            mem[structPos + 4] = error;
+            mem[structPos + 5] = -1;
+        }
+
+        public void run() {
+            int error = 0;
+            long bytes = -1;
+            int[] mem = session.getMemory();
+            IOVector vector = null;
+            try {
+                ByteChannel channel = (ByteChannel) map.get(mem[structPos + 1]);
+                if (channel == null) {
+                    throw new NullPointerException();
+                }
+                vector = new IOVector(buffers, mem, mem[structPos + 2], mem[structPos + 3]);
+                if (write) {
+                    vector.copyOut(mem);
+                    bytes = 0;
+                    long n;
+                    do {
+                        n = vector.write(channel);
+                        bytes += n;
+                    } while (n > 0 && vector.hasRemaining());
+                } else {
+                    bytes = vector.read(channel);
+                    vector.copyIn(mem);
+                }
+            } catch (IOException ex) {
+                error = 1;
+                if(session.isDebugMode()){
+                    ex.printStackTrace();
+                }
+            } catch (NullPointerException ex) {
+                error = 2;
+            } catch(IllegalArgumentException ex){
+                error = 3;
+            } catch(ClassCastException ex){
+                error = 4;
+            } catch(NonReadableChannelException ex){
+                error = 4;
+            } catch(NonWritableChannelException ex){
+                error = 4;
+            } finally {
+                if (vector != null) {
+                    vector.release();
+                }
+            }
+            mem[structPos + 4] = error;
+            mem[structPos + 5] = (int) bytes;
+            session.getResultQueue().add(structPos);
+        }
+    }
+
+    private class FlushRequest extends IORequest {
 
         // structPos    :  function id
         // structPos + 1:  stream handle
         // structPos + 2:  error num
+        // A channel without a write-behind buffer has nothing to flush.
+
+        private FlushRequest(MigolExecutionSession session, int structPos) {
+            super(session, structPos);
+        }
+
+        protected void fail(int error) {
+            int[] mem = session.getMemory();
+            mem[structPos + 2] = error;
+        }
+
+        public void run() {
+            int error = 0;
+            int[] mem = session.getMemory();
+            try {
+                Object o = map.get(mem[structPos + 1]);
+                if (o == null) {
+                    throw new NullPointerException();
+                }
+                if (o instanceof BufferedChannel) {
+                    ((BufferedChannel) o).flush();
+                }
+            } catch (IOException ex) {
+                error = 1;
+                if(session.isDebugMode()){
+                    ex.printStackTrace();
+                }
+            } catch (NullPointerException ex) {
+                error = 2;
+            }
+            mem[structPos + 2] = error;
+            session.getResultQueue().add(structPos);
+        }
+    }
 
-        private final int structPos;
-        private final MigolExecutionSession session;
+    private class CloseRequest extends IORequest {
+
+        // structPos    :  function id
+        // structPos + 1:  stream handle
+        // structPos + 2:  error num
 
         private CloseRequest(MigolExecutionSession session, int structPos) {
-            this.structPos = structPos;
-            this.session = session;
+            super(session, structPos);
+        }
+
+        protected void fail(int error) {
+            int[] mem = session.getMemory();
+            mem[structPos + 2] = error;
         }
 
         public void run() {
             int error = 0;
             int[] mem = session.getMemory();
             try {
-                Channel channel = (Channel) map.get(mem[structPos + 1]);
-                if (channel == null) {
+                Object o = map.get(mem[structPos + 1]);
+                if (o == null) {
                     throw new NullPointerException();
                 }
-                channel.close();
+                if (o instanceof MappedByteBuffer) {
+                    // A mapping is released when it is no longer referenced
+                    map.remove(mem[structPos + 1]);
+                } else {
+                    ((Channel) o).close();
+                }
             } catch (IOException ex) {
                 error = 1;
                 if(session.isDebugMode()){
@@ -190,25 +652,125 @@ public class IOManager {
         
     }
     
-    private MigolIOFunction readStreamFunction = new MigolIOFunction() {
+    private MigolIOFunction createReadFunction(final boolean packed) {
+        return new MigolIOFunction() {
+
+            public void executeIO(MigolExecutionSession session, int structPos) {
+                SelectableChannel ch = getNonBlocking(session, structPos);
+                if (ch != null) {
+                    eventLoop.read(session, structPos, ch, packed);
+                } else {
+                    ReadRequest request = new ReadRequest(session, structPos, packed);
+                    if (!request.runBuffered()) {
+                        submit(request);
+                    }
+                }
+            }
+        };
+    }
+
+    private MigolIOFunction createWriteFunction(final boolean packed) {
+        return new MigolIOFunction() {
+
+            public void executeIO(MigolExecutionSession session, int structPos) {
+                SelectableChannel ch = getNonBlocking(session, structPos);
+                if (ch != null) {
+                    eventLoop.write(session, structPos, ch, packed);
+                } else {
+                    WriteRequest request = new WriteRequest(session, structPos, packed);
+                    if (!request.runBuffered()) {
+                        submit(request);
+                    }
+                }
+            }
+        };
+    }
+
+    private MigolIOFunction createVectorFunction(final boolean write) {
+        return new MigolIOFunction() {
+
+            public void executeIO(MigolExecutionSession session, int structPos) {
+                SelectableChannel ch = getNonBlocking(session, structPos);
+                if (ch != null) {
+                    eventLoop.transferVector(session, structPos, ch, write);
+                } else {
+                    submit(new VectorRequest(session, structPos, write));
+                }
+            }
+        };
+    }
+    private MigolIOFunction readStreamFunction = createReadFunction(false);
+    private MigolIOFunction writeStreamFunction = createWriteFunction(false);
+    private MigolIOFunction readPackedFunction = createReadFunction(true);
+    private MigolIOFunction writePackedFunction = createWriteFunction(true);
+    private MigolIOFunction readVectorFunction = createVectorFunction(false);
+    private MigolIOFunction writeVectorFunction = createVectorFunction(true);
+    private MigolIOFunction closeStreamFunction = new MigolIOFunction() {
 
         public void executeIO(MigolExecutionSession session, int structPos) {
-            submit(new ReadRequest(session, structPos));
+            SelectableChannel ch = getNonBlocking(session, structPos);
+            if (ch != null) {
+                eventLoop.close(session, structPos, ch);
+            } else {
+                submit(new CloseRequest(session, structPos));
+            }
         }
     };
-    private MigolIOFunction writeStreamFunction = new MigolIOFunction() {
+
+    private MigolIOFunction bufferStreamFunction = new SynchronousIOFunction() {
+        // structPos    :  function id
+        // structPos + 1:  stream handle
+        // structPos + 2:  buffer size in bytes, or 0 to remove the buffer
+        // structPos + 3:  error num
+
+        public void executeSynchronously(MigolExecutionSession session, int structPos) {
+            int error = 0;
+            int[] mem = session.getMemory();
+            try {
+                setBuffered(mem[structPos + 1], mem[structPos + 2]);
+            } catch (IOException ex) {
+                error = 1;
+                if(session.isDebugMode()){
+                    ex.printStackTrace();
+                }
+            } catch (NullPointerException ex) {
+                error = 2;
+            } catch(IllegalArgumentException ex){
+                error = 3;
+            } catch(ClassCastException ex){
+                error = 4;
+            }
+            mem[structPos + 3] = error;
+        }
 
         public void executeIO(MigolExecutionSession session, int structPos) {
-            submit(new WriteRequest(session, structPos));
+            executeSynchronously(session, structPos);
+            session.getResultQueue().add(structPos);
         }
     };
-    private MigolIOFunction closeStreamFunction = new MigolIOFunction() {
+    private MigolIOFunction flushStreamFunction = new MigolIOFunction() {
 
         public void executeIO(MigolExecutionSession session, int structPos) {
-            submit(new CloseRequest(session, structPos));
+            submit(new FlushRequest(session, structPos));
         }
     };
 
+    /**
+     * Returns the function putting a read-ahead and write-behind buffer in
+     * front of a stream.
+     * @see #setBuffered(int, int)
+     */
+    public MigolIOFunction getBufferStreamFunction() {
+        return bufferStreamFunction;
+    }
+
+    /**
+     * Returns the function writing the pending bytes of a buffered stream.
+     */
+    public MigolIOFunction getFlushStreamFunction() {
+        return flushStreamFunction;
+    }
+
     public MigolIOFunction getCloseStreamFunction() {
         return closeStreamFunction;
     }
@@ -220,7 +782,39 @@ public class IOManager {
     public MigolIOFunction getWriteStreamFunction() {
         return writeStreamFunction;
     }
+
+    /**
+     * Returns the function reading from a stream into memory with four
+     * bytes in each cell.
+     * @see BufferPool
+     */
+    public MigolIOFunction getReadPackedFunction() {
+        return readPackedFunction;
+    }
+
+    /**
+     * Returns the function writing from memory with four bytes in each
+     * cell to a stream.
+     * @see BufferPool
+     */
+    public MigolIOFunction getWritePackedFunction() {
+        return writePackedFunction;
+    }
     
+    /**
+     * Returns the function reading from a stream into a list of segments.
+     */
+    public MigolIOFunction getReadVectorFunction() {
+        return readVectorFunction;
+    }
+
+    /**
+     * Returns the function writing a list of segments to a stream.
+     */
+    public MigolIOFunction getWriteVectorFunction() {
+        return writeVectorFunction;
+    }
+
     public Map<Integer, Object> getObjectMap(){
         return map;
     }
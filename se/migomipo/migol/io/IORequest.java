@@ -0,0 +1,62 @@
+package se.migomipo.migol.io;
+
+import se.migomipo.migol.MigolExecutionSession;
+
+/**
+ * A request which runs on a thread of the {@link IOScheduler}.
+ *
+ * The request writes its results into the structure and adds the structure
+ * to the result queue when it is done. If the scheduler refuses to run it,
+ * {@link #reject(int)} writes an error instead, so the program gets an
+ * interrupt either way. The same happens if the request throws.
+ */
+public abstract class IORequest implements Runnable {
+
+    protected final MigolExecutionSession session;
+    protected final int structPos;
+
+    protected IORequest(MigolExecutionSession session, int structPos) {
+        this.session = session;
+        this.structPos = structPos;
+    }
+
+    public MigolExecutionSession getSession() {
+        return session;
+    }
+
+    /**
+     * Writes the results of a failed request, without adding the structure
+     * to the result queue.
+     * @param error The error number.
+     */
+    protected abstract void fail(int error);
+
+    /**
+     * Completes the request with an error without running it.
+     * @param error The error number.
+     */
+    public void reject(int error) {
+        try {
+            fail(error);
+            session.getResultQueue().add(structPos);
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            // The structure is outside memory, so there is no result
+        }
+    }
+
+    /**
+     * Runs the request. A request which throws is completed with error 3,
+     * since the program would otherwise wait for it forever. The exception
+     * is printed in debug mode, or always for a request without a session.
+     */
+    void runSafely() {
+        try {
+            run();
+        } catch (RuntimeException ex) {
+            if (session == null || session.isDebugMode()) {
+                ex.printStackTrace();
+            }
+            reject(3);
+        }
+    }
+}
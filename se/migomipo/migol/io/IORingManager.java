@@ -0,0 +1,268 @@
+package se.migomipo.migol.io;
+
+import java.util.ArrayDeque;
+import se.migomipo.migol.MigolExecutionSession;
+import se.migomipo.migol.ResultQueue;
+import se.migomipo.migol.ResultRedirect;
+
+/**
+ * Submission and completion rings in program memory.
+ *
+ * A program sets up a pair of rings with function 40, queues the addresses
+ * of many I/O structures in the submission ring, and starts all of them with
+ * one call to function 41. The addresses of completed structures are written
+ * to the completion ring instead of being delivered as one interrupt each.
+ * When a completion is written, the setup structure is delivered as an
+ * interrupt, unless one has already been delivered since function 41 was
+ * last called. The handler can then drain every completion that has
+ * arrived.
+ *
+ * Both rings have the same layout, where <code>n</code> is the number of
+ * entries:
+ * <pre>
+ * ring     : head, the next entry to be read
+ * ring + 1 : tail, the next entry to be written
+ * ring + 2 : entries 0 to n - 1
+ * </pre>
+ * Head and tail are counters which only grow, and the entry for counter
+ * <code>c</code> is at <code>ring + 2 + c % n</code>. The program writes the
+ * tail of the submission ring and the head of the completion ring, and the
+ * runtime writes the others. After draining the completion ring, a handler
+ * must write the head and then call function 41, which allows the next
+ * interrupt. If completions have arrived in the meantime, function 41
+ * delivers the next interrupt at once. The runtime never relies on reading
+ * the head while the program may be writing it, since program memory is
+ * not shared safely between threads.
+ *
+ * Normally every submitted structure runs on its own, like after a separate
+ * exec. If the submission is linked, the structures run one after another
+ * on a single pool thread, which is much cheaper for short requests, but a
+ * blocking request delays the requests after it.
+ *
+ * A structure must not be submitted again before it has completed. If the
+ * completion ring is full, completions are held back and written when the
+ * program calls function 41 again. A structure whose function fails before
+ * starting, for example because the structure is outside memory, is written
+ * to the completion ring at once with its fields unchanged, and function 41
+ * reports error 3.
+ */
+public class IORingManager {
+
+    private IOManager io;
+
+    public IORingManager(IOManager io) {
+        this.io = io;
+    }
+
+    private static class IORing implements ResultRedirect {
+
+        private final MigolExecutionSession session;
+        private final int structPos;
+        private final int sq;
+        private final int sqSize;
+        private final int cq;
+        private final int cqSize;
+        private final ArrayDeque<Integer> held = new ArrayDeque<Integer>();
+        private boolean raised = false;
+        private boolean failed = false;
+
+        private IORing(MigolExecutionSession session, int structPos,
+                int sq, int sqSize, int cq, int cqSize) {
+            this.session = session;
+            this.structPos = structPos;
+            this.sq = sq;
+            this.sqSize = sqSize;
+            this.cq = cq;
+            this.cqSize = cqSize;
+        }
+
+        public synchronized void complete(int value) {
+            if (!held.isEmpty() || !write(value)) {
+                held.add(value);
+            }
+        }
+
+        /**
+         * Writes a completion to the completion ring. Must be called with
+         * the lock of the ring held.
+         * @return  <b>false</b> if the ring is full. The head may be read
+         * before the program's latest write is seen, so the ring may look
+         * full for a while after it has been drained.
+         */
+        private boolean write(int value) {
+            int[] mem = session.getMemory();
+            int head = mem[cq];
+            int tail = mem[cq + 1];
+            if (tail - head >= cqSize) {
+                return false;
+            }
+            mem[cq + 2 + index(tail, cqSize)] = value;
+            mem[cq + 1] = tail + 1;
+            raise();
+            return true;
+        }
+
+        /**
+         * Delivers the setup structure as an interrupt, unless one has been
+         * delivered since the last call to function 41. Must be called with
+         * the lock of the ring held.
+         */
+        private void raise() {
+            if (!raised) {
+                raised = true;
+                session.getResultQueue().add(structPos);
+            }
+        }
+
+        /**
+         * Allows the next interrupt and writes held completions. Called by
+         * function 41 on the thread running the program, so the head it
+         * reads is the one the handler has written, and a completion
+         * written before takes the same lock and is seen as well.
+         */
+        private synchronized void flush() {
+            raised = false;
+            while (!held.isEmpty() && write(held.peek())) {
+                held.poll();
+            }
+            int[] mem = session.getMemory();
+            if (mem[cq] != mem[cq + 1]) {
+                raise();
+            }
+        }
+
+        /**
+         * Starts every structure queued in the submission ring.
+         * @param io        The manager running the requests.
+         * @param linked    If <b>true</b>, the structures run one after
+         * another on a single pool thread.
+         * @return  The number of started structures.
+         */
+        private int submit(IOManager io, boolean linked) {
+            flush();
+            failed = false;
+            ResultQueue results = session.getResultQueue();
+            int[] mem = session.getMemory();
+            int head = mem[sq];
+            int tail = mem[sq + 1];
+            int count = 0;
+            if (linked) {
+                io.beginBatch();
+            }
+            try {
+                while (head != tail) {
+                    int pos = mem[sq + 2 + index(head, sqSize)];
+                    MigolIOFunction func = session.getIOFunction(mem[pos]);
+                    if (func == null) {
+                        break;
+                    }
+                    results.redirect(pos, this);
+                    try {
+                        func.executeIO(session, pos);
+                    } catch (RuntimeException ex) {
+                        // Nothing has been started, so the structure is
+                        // completed at once unless the redirect was used
+                        failed = true;
+                        if (results.cancelRedirect(pos)) {
+                            complete(pos);
+                        }
+                    }
+                    head++;
+                    count++;
+                    mem[sq] = head;
+                }
+            } finally {
+                if (linked) {
+                    io.endBatch();
+                }
+            }
+            return count;
+        }
+
+        private static int index(int counter, int size) {
+            int i = counter % size;
+            return (i < 0) ? i + size : i;
+        }
+    }
+    private MigolIOFunction setupRingFunc = new SynchronousIOFunction() {
+        // structPos : function ID
+        // structPos + 1: submission ring address
+        // structPos + 2: submission ring entries
+        // structPos + 3: completion ring address
+        // structPos + 4: completion ring entries
+        // structPos + 5: error num
+        // structPos + 6: ring handle
+
+        public void executeSynchronously(MigolExecutionSession session, int structPos) {
+            int[] mem = session.getMemory();
+            int error = 0;
+            int handle = -1;
+            int sq = mem[structPos + 1];
+            int sqSize = mem[structPos + 2];
+            int cq = mem[structPos + 3];
+            int cqSize = mem[structPos + 4];
+            if (sqSize <= 0 || cqSize <= 0) {
+                error = 3;
+            } else if (sq < 0 || sq + 2 + sqSize > mem.length
+                    || cq < 0 || cq + 2 + cqSize > mem.length) {
+                error = 2;
+            } else {
+                mem[sq] = 0;
+                mem[sq + 1] = 0;
+                mem[cq] = 0;
+                mem[cq + 1] = 0;
+                handle = io.addObject(new IORing(session, structPos, sq, sqSize, cq, cqSize));
+            }
+            mem[structPos + 5] = error;
+            mem[structPos + 6] = handle;
+        }
+
+        public void executeIO(MigolExecutionSession session, int structPos) {
+            executeSynchronously(session, structPos);
+            session.getResultQueue().add(structPos);
+        }
+    };
+    private MigolIOFunction submitRingFunc = new SynchronousIOFunction() {
+        // structPos : function ID
+        // structPos + 1: ring handle
+        // structPos + 2: error num
+        // structPos + 3: number of started structures
+        // structPos + 4: 1 to run the structures in order on one thread
+
+        public void executeSynchronously(MigolExecutionSession session, int structPos) {
+            int[] mem = session.getMemory();
+            int error = 0;
+            int count = 0;
+            try {
+                IORing ring = (IORing) io.getObject(mem[structPos + 1]);
+                count = ring.submit(io, mem[structPos + 4] != 0);
+                if (mem[ring.sq] != mem[ring.sq + 1]) {
+                    error = 5; // Undefined function in a queued structure
+                } else if (ring.failed) {
+                    error = 3; // A queued structure could not be started
+                }
+            } catch (NullPointerException ex) {
+                error = 2;
+            } catch (ClassCastException ex) {
+                error = 4;
+            } catch (ArrayIndexOutOfBoundsException ex) {
+                error = 3;
+            }
+            mem[structPos + 2] = error;
+            mem[structPos + 3] = count;
+        }
+
+        public void executeIO(MigolExecutionSession session, int structPos) {
+            executeSynchronously(session, structPos);
+            session.getResultQueue().add(structPos);
+        }
+    };
+
+    public MigolIOFunction getSetupRingFunc() {
+        return setupRingFunc;
+    }
+
+    public MigolIOFunction getSubmitRingFunc() {
+        return submitRingFunc;
+    }
+}
@@ -0,0 +1,222 @@
+package se.migomipo.migol.io;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import se.migomipo.migol.MigolExecutionSession;
+
+/**
+ * Runs blocking I/O requests on the threads of an executor, within limits.
+ *
+ * At most a fixed number of requests run at the same time. Requests beyond
+ * that wait in a queue of limited depth, and each session may only have a
+ * limited number of requests running or waiting. When a limit is reached,
+ * the policy decides what happens to a new request:
+ * <ul>
+ * <li>{@link #REJECT} completes it at once with error {@link #REJECTED}.</li>
+ * <li>{@link #CALLER_RUNS} runs it on the thread submitting it, which stops
+ * the program until the request is done.</li>
+ * </ul>
+ * A scheduler created with only an executor has no limits, and every
+ * request gets a thread of its own.
+ *
+ * The number of running, queued and rejected requests can be read at any
+ * time by the host.
+ */
+public class IOScheduler {
+
+    /**
+     * Policy completing requests over the limits with an error.
+     */
+    public static final int REJECT = 0;
+    /**
+     * Policy running requests over the limits on the submitting thread.
+     */
+    public static final int CALLER_RUNS = 1;
+    /**
+     * The error number written into the structure of a rejected request.
+     */
+    public static final int REJECTED = 5;
+    private final ExecutorService executor;
+    private final int threads;
+    private final int queueDepth;
+    private final int sessionLimit;
+    private final int policy;
+    private final ArrayDeque<IORequest> queue = new ArrayDeque<IORequest>();
+    // Sessions compare equal by their memory, so they are kept by identity
+    private final Map<MigolExecutionSession, Integer> sessions =
+            new IdentityHashMap<MigolExecutionSession, Integer>();
+    private int running = 0;
+    private long rejected = 0;
+
+    /**
+     * Creates a scheduler without limits.
+     * @param executor  The executor running the requests.
+     */
+    public IOScheduler(ExecutorService executor) {
+        this(executor, Integer.MAX_VALUE, 0, Integer.MAX_VALUE, REJECT);
+    }
+
+    /**
+     * Creates a scheduler with a pool of at most <code>threads</code>
+     * threads.
+     * @param threads       The number of requests which may run at the same
+     * time.
+     * @param queueDepth    The number of requests which may wait for a
+     * thread.
+     * @param sessionLimit  The number of requests which a single session may
+     * have running or waiting.
+     * @param policy        {@link #REJECT} or {@link #CALLER_RUNS}.
+     */
+    public IOScheduler(int threads, int queueDepth, int sessionLimit, int policy) {
+        this(Executors.newCachedThreadPool(), threads, queueDepth, sessionLimit, policy);
+    }
+
+    /**
+     * Creates a scheduler running requests on an executor.
+     * @param executor      The executor running the requests. It is shut
+     * down with the scheduler.
+     * @param threads       The number of requests which may run at the same
+     * time.
+     * @param queueDepth    The number of requests which may wait for a
+     * thread.
+     * @param sessionLimit  The number of requests which a single session may
+     * have running or waiting.
+     * @param policy        {@link #REJECT} or {@link #CALLER_RUNS}.
+     */
+    public IOScheduler(ExecutorService executor, int threads, int queueDepth,
+            int sessionLimit, int policy) {
+        if (threads <= 0 || queueDepth < 0 || sessionLimit <= 0
+                || (policy != REJECT && policy != CALLER_RUNS)) {
+            throw new IllegalArgumentException();
+        }
+        this.executor = executor;
+        this.threads = threads;
+        this.queueDepth = queueDepth;
+        this.sessionLimit = sessionLimit;
+        this.policy = policy;
+    }
+
+    /**
+     * Runs a request as soon as there is a free thread, or handles it
+     * according to the policy if a limit has been reached.
+     * @param request   The request.
+     */
+    public void execute(IORequest request) {
+        boolean full;
+        boolean start = false;
+        synchronized (this) {
+            MigolExecutionSession session = request.getSession();
+            Integer count = sessions.get(session);
+            int n = (count == null) ? 0 : count;
+            full = n >= sessionLimit
+                    || (running >= threads && queue.size() >= queueDepth);
+            if (full) {
+                if (policy == REJECT) {
+                    rejected++;
+                }
+            } else {
+                sessions.put(session, n + 1);
+                if (running < threads) {
+                    running++;
+                    start = true;
+                } else {
+                    queue.add(request);
+                }
+            }
+        }
+        if (full) {
+            if (policy == REJECT) {
+                request.reject(REJECTED);
+            } else {
+                request.runSafely();
+            }
+        } else if (start) {
+            start(request);
+        }
+    }
+
+    private void start(final IORequest first) {
+        try {
+            executor.execute(new Runnable() {
+
+                public void run() {
+                    IORequest request = first;
+                    while (request != null) {
+                        request.runSafely();
+                        request = done(request);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // The executor has been shut down
+            synchronized (this) {
+                running--;
+                release(first.getSession());
+            }
+            first.reject(REJECTED);
+        }
+    }
+
+    /**
+     * Called when a request has finished.
+     * @return  The next waiting request, which runs on the same thread, or
+     * <b>null</b> if the thread is no longer needed.
+     */
+    private synchronized IORequest done(IORequest request) {
+        release(request.getSession());
+        IORequest next = queue.poll();
+        if (next == null) {
+            running--;
+        }
+        return next;
+    }
+
+    private void release(MigolExecutionSession session) {
+        int n = sessions.get(session) - 1;
+        if (n == 0) {
+            sessions.remove(session);
+        } else {
+            sessions.put(session, n);
+        }
+    }
+
+    /**
+     * Returns the number of requests currently running.
+     */
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+     * Returns the number of requests waiting for a thread.
+     */
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of requests running or waiting for a session.
+     */
+    public synchronized int getPending(MigolExecutionSession session) {
+        Integer count = sessions.get(session);
+        return (count == null) ? 0 : count;
+    }
+
+    /**
+     * Returns the number of requests rejected so far.
+     */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * Shuts down the executor. Running requests are allowed to finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
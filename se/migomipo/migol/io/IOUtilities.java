@@ -16,25 +16,72 @@ public class IOUtilities {
     public static MigolIOFunction getInstantInterruptFunction() {
         return instantInterruptFunction;
     }
+
+    private static final MigolIOFunction handlerVectorFunction = new SynchronousIOFunction() {
+        // structPos : function ID
+        // structPos + 1: function ID whose results get their own handler
+        // structPos + 2: handler address, or 0 for the default handler
+
+        public void executeSynchronously(MigolExecutionSession session, int structPos) {
+            int[] mem = session.getMemory();
+            session.setHandler(mem[structPos + 1], mem[structPos + 2]);
+        }
+
+        public void executeIO(MigolExecutionSession session, int structPos) {
+            executeSynchronously(session, structPos);
+            session.getResultQueue().add(structPos);
+        }
+    };
+
+    public static MigolIOFunction getHandlerVectorFunction() {
+        return handlerVectorFunction;
+    }
     
     public static void addStdIOFunctions(MigolExecutionSession session, IOManager io){
             session.addIOFunction(5, getInstantInterruptFunction());
+            session.addIOFunction(6, getHandlerVectorFunction());
             FileOperationManager file = new FileOperationManager(io);
             SocketManager soc = new SocketManager(io);
             session.addIOFunction(10, io.getReadStreamFunction());
             session.addIOFunction(11, io.getWriteStreamFunction());
             session.addIOFunction(12, io.getCloseStreamFunction());
+            session.addIOFunction(13, io.getReadPackedFunction());
+            session.addIOFunction(14, io.getWritePackedFunction());
+            session.addIOFunction(15, io.getReadVectorFunction());
+            session.addIOFunction(16, io.getWriteVectorFunction());
+            session.addIOFunction(17, file.getTransferFunc());
+            session.addIOFunction(18, io.getBufferStreamFunction());
+            session.addIOFunction(19, io.getFlushStreamFunction());
             session.addIOFunction(20, file.getOpenFileFunc());
+            session.addIOFunction(21, file.getPositionalReadFunc());
+            session.addIOFunction(22, file.getPositionalWriteFunc());
+            session.addIOFunction(23, file.getDurableWriteFunc());
             session.addIOFunction(24, file.getFileTellFunc());
             session.addIOFunction(25, file.getFileSeekFunc());
             session.addIOFunction(26, file.getFileSizeFunc());
+            MappedFileManager mapped = new MappedFileManager(io);
+            session.addIOFunction(27, mapped.getMapFunc());
+            session.addIOFunction(28, mapped.getCopyFromMappingFunc());
+            session.addIOFunction(29, mapped.getCopyToMappingFunc());
             session.addIOFunction(30, soc.getOpenSocketFunc());
             session.addIOFunction(31, soc.getCreateServerSocketFunc());
             session.addIOFunction(32, soc.getListenServerSocketFunc());
             session.addIOFunction(34, soc.getResolveDNSFunc());
+            IORingManager ring = new IORingManager(io);
+            session.addIOFunction(40, ring.getSetupRingFunc());
+            session.addIOFunction(41, ring.getSubmitRingFunc());
+            session.addIOFunction(50, file.getFileTell64Func());
+            session.addIOFunction(51, file.getFileSeek64Func());
+            session.addIOFunction(52, file.getFileSize64Func());
+            session.addIOFunction(53, file.getPositionalRead64Func());
+            session.addIOFunction(54, file.getPositionalWrite64Func());
+            session.addIOFunction(55, mapped.getMap64Func());
             InterruptTimer time = new InterruptTimer();
             session.addIOFunction(70, time.getCurrentTimeFunction());
             session.addIOFunction(71, time.getScheduleInterruptFunction());
+            session.addIOFunction(72, time.getSchedulePeriodicFunction());
+            session.addIOFunction(73, time.getCancelTimerFunction());
+            session.addIOFunction(74, time.getNanoTimeFunction());
     }
     
             
@@ -0,0 +1,148 @@
+package se.migomipo.migol.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The buffers of a vectored read or write.
+ *
+ * A vectored request points to a list of segments in memory, where each
+ * segment is two cells:
+ * <pre>
+ * segment     : address of the data
+ * segment + 1 : length of the data in bytes
+ * </pre>
+ * All segments are transferred with one call to the channel if it is a
+ * {@link ScatteringByteChannel} or {@link GatheringByteChannel}, and one at
+ * a time otherwise.
+ */
+class IOVector {
+
+    private final int[] addresses;
+    private final ByteBuffer[] buffers;
+    private final BufferPool pool;
+
+    /**
+     * Acquires a buffer for every segment of a list.
+     * @param pool  The pool providing the buffers.
+     * @param mem   The memory.
+     * @param list  The address of the segment list.
+     * @param count The number of segments.
+     * @throws IllegalArgumentException If a length or the count is
+     * negative, or the segment list or a segment does not fit in memory.
+     */
+    IOVector(BufferPool pool, int[] mem, int list, int count) {
+        // The count is checked before anything is allocated for it
+        if (count < 0 || list < 0 || list + 2L * count > mem.length) {
+            throw new IllegalArgumentException();
+        }
+        this.pool = pool;
+        addresses = new int[count];
+        buffers = new ByteBuffer[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                int address = mem[list + 2 * i];
+                int len = mem[list + 2 * i + 1];
+                if (address < 0 || (long) address + len > mem.length) {
+                    throw new IllegalArgumentException();
+                }
+                addresses[i] = address;
+                buffers[i] = pool.acquire(len);
+            }
+        } catch (RuntimeException ex) {
+            release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Fills the buffers with the data of the segments, for a write.
+     */
+    void copyOut(int[] mem) {
+        for (int i = 0; i < buffers.length; i++) {
+            BufferPool.copyOut(mem, addresses[i], buffers[i]);
+            buffers[i].flip();
+        }
+    }
+
+    /**
+     * Copies the data read into the buffers to the segments.
+     */
+    void copyIn(int[] mem) {
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i].flip();
+            BufferPool.copyIn(buffers[i], mem, addresses[i]);
+        }
+    }
+
+    boolean hasRemaining() {
+        for (ByteBuffer buf : buffers) {
+            if (buf.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads into the buffers with a single call if the channel supports
+     * it. Otherwise the buffers are read one at a time until a read does
+     * not fill its buffer.
+     * @return  The number of bytes read, or -1 at the end of the stream.
+     */
+    long read(ReadableByteChannel channel) throws IOException {
+        if (channel instanceof ScatteringByteChannel) {
+            return ((ScatteringByteChannel) channel).read(buffers);
+        }
+        long total = 0;
+        for (ByteBuffer buf : buffers) {
+            if (!buf.hasRemaining()) {
+                continue;
+            }
+            int n = channel.read(buf);
+            if (n < 0) {
+                return (total == 0) ? -1 : total;
+            }
+            total += n;
+            if (buf.hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Writes from the buffers with a single call if the channel supports
+     * it, and otherwise one buffer at a time. A blocking channel may need
+     * more than one call to write everything.
+     * @return  The number of bytes written.
+     */
+    long write(WritableByteChannel channel) throws IOException {
+        if (channel instanceof GatheringByteChannel) {
+            return ((GatheringByteChannel) channel).write(buffers);
+        }
+        long total = 0;
+        for (ByteBuffer buf : buffers) {
+            int n = channel.write(buf);
+            total += n;
+            if (buf.hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Returns the buffers to the pool. The vector must not be used
+     * afterwards.
+     */
+    void release() {
+        for (ByteBuffer buf : buffers) {
+            pool.release(buf);
+        }
+    }
+}
@@ -1,14 +1,12 @@
 
 package se.migomipo.migol.io;
 
-import java.util.Timer;
-import java.util.TimerTask;
 import se.migomipo.migol.MigolExecutionSession;
 
 
 public class InterruptTimer {
     
-    private Timer t = new Timer(true);
+    private TimingWheel wheel = new TimingWheel();
     
     
     
@@ -20,14 +18,7 @@ public class InterruptTimer {
         
         public void executeIO(final MigolExecutionSession session, final int structPos) {
             int delay = session.getMemory()[structPos + 1];
-            t.schedule(new TimerTask() {
-
-                @Override
-                public void run() {
-                    session.getMemory()[structPos + 2] = (int) System.currentTimeMillis();
-                    session.getResultQueue().add(structPos);
-                }
-            }, delay);
+            wheel.schedule(session, structPos, delay, 0);
         }
     };
 
@@ -35,11 +26,15 @@ public class InterruptTimer {
         return scheduleInterruptFunction;
     }
     
-    private MigolIOFunction currentTimeFunction = new MigolIOFunction() {
+    private MigolIOFunction currentTimeFunction = new SynchronousIOFunction() {
 
-        public void executeIO(MigolExecutionSession session, int structPos) {
+        public void executeSynchronously(MigolExecutionSession session, int structPos) {
             int cur = (int) System.currentTimeMillis();
             session.getMemory()[structPos + 1] = cur;
+        }
+
+        public void executeIO(MigolExecutionSession session, int structPos) {
+            executeSynchronously(session, structPos);
             session.getResultQueue().add(structPos);
         }
     };
@@ -48,7 +43,66 @@ public class InterruptTimer {
         return currentTimeFunction;
     }
     
-    
+    private MigolIOFunction schedulePeriodicFunction = new MigolIOFunction() {
+        // structpos : function ID
+        // structPos + 1: delay until the first expiration
+        // structPos + 2: period
+        // structPos + 3: number of expirations so far
+
+        public void executeIO(MigolExecutionSession session, int structPos) {
+            int[] mem = session.getMemory();
+            int delay = mem[structPos + 1];
+            int period = mem[structPos + 2];
+            mem[structPos + 3] = 0;
+            wheel.schedule(session, structPos, delay, Math.max(period, 1));
+        }
+    };
+
+    public MigolIOFunction getSchedulePeriodicFunction() {
+        return schedulePeriodicFunction;
+    }
+
+    private MigolIOFunction cancelTimerFunction = new SynchronousIOFunction() {
+        // structpos : function ID
+        // structPos + 1: address of the timer structure
+        // structPos + 2: 1 if a running timer was cancelled, otherwise 0
+
+        public void executeSynchronously(MigolExecutionSession session, int structPos) {
+            int[] mem = session.getMemory();
+            mem[structPos + 2] = wheel.cancel(mem[structPos + 1]) ? 1 : 0;
+        }
+
+        public void executeIO(MigolExecutionSession session, int structPos) {
+            executeSynchronously(session, structPos);
+            session.getResultQueue().add(structPos);
+        }
+    };
+
+    public MigolIOFunction getCancelTimerFunction() {
+        return cancelTimerFunction;
+    }
+
+    private MigolIOFunction nanoTimeFunction = new SynchronousIOFunction() {
+        // structpos : function ID
+        // structPos + 1: high 32 bits of the monotonic clock in nanoseconds
+        // structPos + 2: low 32 bits
+
+        public void executeSynchronously(MigolExecutionSession session, int structPos) {
+            long cur = System.nanoTime();
+            int[] mem = session.getMemory();
+            mem[structPos + 1] = (int) (cur >>> 32);
+            mem[structPos + 2] = (int) cur;
+        }
+
+        public void executeIO(MigolExecutionSession session, int structPos) {
+            executeSynchronously(session, structPos);
+            session.getResultQueue().add(structPos);
+        }
+    };
+
+    public MigolIOFunction getNanoTimeFunction() {
+        return nanoTimeFunction;
+    }
             
     
     
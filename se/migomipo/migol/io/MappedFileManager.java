@@ -0,0 +1,204 @@
+package se.migomipo.migol.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import se.migomipo.migol.MigolExecutionSession;
+
+/**
+ * Memory-mapped regions of files.
+ *
+ * Function 27 maps a region of an open file and returns a handle for the
+ * mapping. Functions 28 and 29 copy bytes between the mapping and memory.
+ * The copies read and write the page cache directly, without a system call
+ * per copy, and all three functions can complete synchronously, so a
+ * program can walk through a large file without waiting for interrupts.
+ * A mapping is released with function 12. Function 55 maps like function
+ * 27, but takes the file position in two cells, the high 32 bits first, so
+ * that regions past 2 GB can be mapped.
+ *
+ * The copy functions use the same layout, where the length is counted in
+ * bytes and may be stored packed, four bytes per cell, like with functions
+ * 13 and 14.
+ */
+public class MappedFileManager {
+
+    private IOManager io;
+
+    public MappedFileManager(IOManager io) {
+        this.io = io;
+    }
+    /**
+     * Creates a function mapping a region of a file.
+     * @param wide  If <b>true</b>, the file position is stored in two cells,
+     * and the following fields are moved one cell up.
+     */
+    private MigolIOFunction createMapFunction(final boolean wide) {
+        return new SynchronousIOFunction() {
+            // structPos : function ID
+            // structPos + 1: file handle
+            // structPos + 2: file position
+            // structPos + 3: length of the region
+            // structPos + 4: mode (0 = read only, 1 = read and write)
+            // structPos + 5: error num
+            // structPos + 6: mapping handle
+            // If wide, the position is stored in structPos + 2 and
+            // structPos + 3, with the high 32 bits first, and the other
+            // fields follow one cell later.
+
+            public void executeSynchronously(MigolExecutionSession session, int structPos) {
+                int[] mem = session.getMemory();
+                int fields = structPos + (wide ? 1 : 0);
+                int error = 0;
+                int handle = -1;
+                try {
+                    FileChannel fc = (FileChannel) io.getObject(mem[structPos + 1]);
+                    long position = wide ? FileOperationManager.getLong(mem, structPos + 2)
+                            : mem[structPos + 2];
+                    int mode = mem[fields + 4];
+                    FileChannel.MapMode mapMode;
+                    if (mode == 0) {
+                        mapMode = FileChannel.MapMode.READ_ONLY;
+                    } else if (mode == 1) {
+                        mapMode = FileChannel.MapMode.READ_WRITE;
+                    } else {
+                        throw new IllegalArgumentException();
+                    }
+                    MappedByteBuffer buf = fc.map(mapMode, position, mem[fields + 3]);
+                    handle = io.addObject(buf);
+                } catch (ClassCastException ex) {
+                    error = 4;
+                } catch (IOException ex) {
+                    error = 1;
+                    if (session.isDebugMode()) {
+                        ex.printStackTrace();
+                    }
+                } catch (NullPointerException ex) {
+                    error = 2;
+                } catch (IllegalArgumentException ex) {
+                    error = 3;
+                } catch (NonWritableChannelException ex) {
+                    error = 4;
+                } catch (NonReadableChannelException ex) {
+                    error = 4;
+                }
+                mem[fields + 5] = error;
+                mem[fields + 6] = handle;
+            }
+
+            public void executeIO(MigolExecutionSession session, int structPos) {
+                io.submit(new IORequest(session, structPos) {
+
+                    protected void fail(int error) {
+                        int[] mem = session.getMemory();
+                        int fields = structPos + (wide ? 1 : 0);
+                        mem[fields + 5] = error;
+                        mem[fields + 6] = -1;
+                    }
+
+                    public void run() {
+                        executeSynchronously(session, structPos);
+                        session.getResultQueue().add(structPos);
+                    }
+                });
+            }
+        };
+    }
+    private MigolIOFunction mapFunc = createMapFunction(false);
+    private MigolIOFunction map64Func = createMapFunction(true);
+
+    /**
+     * Creates a function copying between a mapping and memory.
+     * @param toMemory  If <b>true</b>, bytes are copied from the mapping into
+     * memory, otherwise from memory into the mapping.
+     */
+    private MigolIOFunction createCopyFunction(final boolean toMemory) {
+        return new SynchronousIOFunction() {
+            // structPos : function ID
+            // structPos + 1: mapping handle
+            // structPos + 2: offset in the mapping
+            // structPos + 3: memory address
+            // structPos + 4: number of bytes
+            // structPos + 5: 1 if the bytes are packed four to a cell
+            // structPos + 6: error num
+            // structPos + 7: bytes copied
+
+            public void executeSynchronously(MigolExecutionSession session, int structPos) {
+                int[] mem = session.getMemory();
+                int error = 0;
+                int bytes = -1;
+                try {
+                    ByteBuffer buf = ((MappedByteBuffer) io.getObject(mem[structPos + 1])).duplicate();
+                    int offset = mem[structPos + 2];
+                    int len = mem[structPos + 4];
+                    if (offset < 0 || len < 0) {
+                        throw new IllegalArgumentException();
+                    }
+                    buf.limit(offset + len);
+                    buf.position(offset);
+                    boolean packed = mem[structPos + 5] == 1;
+                    if (toMemory && packed) {
+                        BufferPool.copyInPacked(buf, mem, mem[structPos + 3]);
+                    } else if (toMemory) {
+                        BufferPool.copyIn(buf, mem, mem[structPos + 3]);
+                    } else if (packed) {
+                        BufferPool.copyOutPacked(mem, mem[structPos + 3], buf);
+                    } else {
+                        BufferPool.copyOut(mem, mem[structPos + 3], buf);
+                    }
+                    bytes = len;
+                } catch (ClassCastException ex) {
+                    error = 4;
+                } catch (NullPointerException ex) {
+                    error = 2;
+                } catch (IllegalArgumentException ex) {
+                    error = 3;
+                } catch (IndexOutOfBoundsException ex) {
+                    error = 3;
+                } catch (ReadOnlyBufferException ex) {
+                    error = 4;
+                }
+                mem[structPos + 6] = error;
+                mem[structPos + 7] = bytes;
+            }
+
+            public void executeIO(MigolExecutionSession session, int structPos) {
+                io.submit(new IORequest(session, structPos) {
+
+                    protected void fail(int error) {
+                        int[] mem = session.getMemory();
+                        mem[structPos + 6] = error;
+                        mem[structPos + 7] = -1;
+                    }
+
+                    public void run() {
+                        executeSynchronously(session, structPos);
+                        session.getResultQueue().add(structPos);
+                    }
+                });
+            }
+        };
+    }
+    private MigolIOFunction copyInFunc = createCopyFunction(true);
+    private MigolIOFunction copyOutFunc = createCopyFunction(false);
+
+    public MigolIOFunction getMapFunc() {
+        return mapFunc;
+    }
+
+    public MigolIOFunction getMap64Func() {
+        return map64Func;
+    }
+
+    public MigolIOFunction getCopyFromMappingFunc() {
+        return copyInFunc;
+    }
+
+    public MigolIOFunction getCopyToMappingFunc() {
+        return copyOutFunc;
+    }
+}
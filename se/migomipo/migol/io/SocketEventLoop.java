@@ -0,0 +1,665 @@
+package se.migomipo.migol.io;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import se.migomipo.migol.MigolExecutionSession;
+
+/**
+ * Completes socket requests from a single thread driven by a
+ * {@link Selector}.
+ *
+ * Socket channels are kept in non-blocking mode. A request is first tried
+ * immediately, and if the channel is not ready, it waits in the selector
+ * until it is. No thread is blocked by an idle connection, so a server can
+ * keep thousands of connections open.
+ *
+ * Requests on the same channel complete in the order they were submitted,
+ * with reads, accepts and connects in one line and writes in another. A
+ * write completes when all of its bytes have been written, just like a
+ * write to a blocking channel. A close is performed at once, and the
+ * requests still waiting for the channel fail with error 1.
+ */
+public class SocketEventLoop implements Runnable {
+
+    private final IOManager io;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Operation> submitted =
+            new ConcurrentLinkedQueue<Operation>();
+
+    public SocketEventLoop(IOManager io) throws IOException {
+        this.io = io;
+        this.selector = Selector.open();
+        Thread t = new Thread(this, "Migol socket event loop");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * A request waiting for a channel.
+     */
+    private abstract class Operation {
+
+        protected final MigolExecutionSession session;
+        protected final int structPos;
+        protected final SelectableChannel channel;
+        protected final int interest;
+
+        protected Operation(MigolExecutionSession session, int structPos,
+                SelectableChannel channel, int interest) {
+            this.session = session;
+            this.structPos = structPos;
+            this.channel = channel;
+            this.interest = interest;
+        }
+
+        /**
+         * Tries to perform the request.
+         * @return  <b>true</b> if the request is done and the results have
+         * been written.
+         */
+        abstract boolean perform() throws IOException;
+
+        /**
+         * Writes the results of a failed request.
+         */
+        abstract void fail(int error);
+
+        void complete() {
+            session.getResultQueue().add(structPos);
+        }
+    }
+
+    /**
+     * The requests waiting for one channel.
+     */
+    private static class Pending {
+
+        final ArrayDeque<Operation> reads = new ArrayDeque<Operation>();
+        final ArrayDeque<Operation> writes = new ArrayDeque<Operation>();
+    }
+
+    private class AcceptOperation extends Operation {
+
+        // structPos: function ID
+        // structPos + 1: server socket handle
+        // structPos + 2: error
+        // structPos + 3: stream handle
+
+        AcceptOperation(MigolExecutionSession session, int structPos, ServerSocketChannel server) {
+            super(session, structPos, server, SelectionKey.OP_ACCEPT);
+        }
+
+        boolean perform() throws IOException {
+            SocketChannel ch = ((ServerSocketChannel) channel).accept();
+            if (ch == null) {
+                return false;
+            }
+            ch.configureBlocking(false);
+            int[] mem = session.getMemory();
+            mem[structPos + 2] = 0;
+            mem[structPos + 3] = io.addObject(ch);
+            return true;
+        }
+
+        void fail(int error) {
+            int[] mem = session.getMemory();
+            mem[structPos + 2] = error;
+            mem[structPos + 3] = -1;
+        }
+    }
+
+    private class ConnectOperation extends Operation {
+
+        // structpos: function ID
+        // structpos + 1: address type
+        // structpos + 2: ip address address
+        // structpos + 3: port
+        // structpos + 4: error
+        // structpos + 5: handle
+
+        private final SocketAddress address;
+        private boolean started = false;
+
+        ConnectOperation(MigolExecutionSession session, int structPos,
+                SocketChannel ch, SocketAddress address) {
+            super(session, structPos, ch, SelectionKey.OP_CONNECT);
+            this.address = address;
+        }
+
+        boolean perform() throws IOException {
+            SocketChannel ch = (SocketChannel) channel;
+            if (!started) {
+                started = true;
+                if (!ch.connect(address)) {
+                    return false;
+                }
+            } else if (!ch.finishConnect()) {
+                return false;
+            }
+            int[] mem = session.getMemory();
+            mem[structPos + 4] = 0;
+            mem[structPos + 5] = io.addObject(ch);
+            return true;
+        }
+
+        void fail(int error) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+            }
+            int[] mem = session.getMemory();
+            mem[structPos + 4] = error;
+            mem[structPos + 5] = -1;
+        }
+    }
+
+    private class ReadOperation extends Operation {
+
+        // structPos    :  function id
+        // structPos + 1:  stream handle
+        // structPos + 2:  buffer address
+        // structPos + 3:  buffer length
+        // structPos + 4:  error num
+        // structPos + 5:  bytes read
+
+        private final boolean packed;
+
+        ReadOperation(MigolExecutionSession session, int structPos,
+                SelectableChannel ch, boolean packed) {
+            super(session, structPos, ch, SelectionKey.OP_READ);
+            this.packed = packed;
+        }
+
+        boolean perform() throws IOException {
+            int[] mem = session.getMemory();
+            ByteBuffer buf = io.getBufferPool().acquire(mem[structPos + 3]);
+            try {
+                int bytes = ((ReadableByteChannel) channel).read(buf);
+                if (bytes == 0 && buf.limit() > 0) {
+                    return false;
+                }
+                buf.flip();
+                try {
+                    if (packed) {
+                        BufferPool.copyInPacked(buf, mem, mem[structPos + 2]);
+                    } else {
+                        BufferPool.copyIn(buf, mem, mem[structPos + 2]);
+                    }
+                } catch (ArrayIndexOutOfBoundsException ex) {
+                    // Not the structure but the buffer is outside memory,
+                    // which fails with error 3 like a bad length
+                    throw new IllegalArgumentException();
+                }
+                mem[structPos + 4] = 0;
+                mem[structPos + 5] = bytes;
+                return true;
+            } finally {
+                io.getBufferPool().release(buf);
+            }
+        }
+
+        void fail(int error) {
+            int[] mem = session.getMemory();
+            mem[structPos + 4] = error;
+            mem[structPos + 5] = -1;
+        }
+    }
+
+    private class WriteOperation extends Operation {
+
+        // structPos    :  function id
+        // structPos + 1:  stream handle
+        // structPos + 2:  buffer address
+        // structPos + 3:  buffer length
+        // structPos + 4:  error num
+        // structPos + 5:  bytes written
+
+        private final ByteBuffer buf;
+
+        WriteOperation(MigolExecutionSession session, int structPos,
+                SelectableChannel ch, ByteBuffer buf) {
+            super(session, structPos, ch, SelectionKey.OP_WRITE);
+            this.buf = buf;
+        }
+
+        boolean perform() throws IOException {
+            ((WritableByteChannel) channel).write(buf);
+            if (buf.hasRemaining()) {
+                return false;
+            }
+            int[] mem = session.getMemory();
+            mem[structPos + 4] = 0;
+            mem[structPos + 5] = buf.limit();
+            io.getBufferPool().release(buf);
+            return true;
+        }
+
+        void fail(int error) {
+            io.getBufferPool().release(buf);
+            int[] mem = session.getMemory();
+            mem[structPos + 4] = error;
+            mem[structPos + 5] = -1;
+        }
+    }
+
+    private class VectorOperation extends Operation {
+
+        // structPos    :  function id
+        // structPos + 1:  stream handle
+        // structPos + 2:  segment list address
+        // structPos + 3:  number of segments
+        // structPos + 4:  error num
+        // structPos + 5:  bytes read or written
+
+        private final IOVector vector;
+        private final boolean write;
+        private long written = 0;
+
+        VectorOperation(MigolExecutionSession session, int structPos,
+                SelectableChannel ch, IOVector vector, boolean write) {
+            super(session, structPos, ch,
+                    write ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            this.vector = vector;
+            this.write = write;
+        }
+
+        boolean perform() throws IOException {
+            long bytes;
+            if (write) {
+                written += vector.write((WritableByteChannel) channel);
+                if (vector.hasRemaining()) {
+                    return false;
+                }
+                bytes = written;
+            } else {
+                bytes = vector.read((ReadableByteChannel) channel);
+                if (bytes == 0 && vector.hasRemaining()) {
+                    return false;
+                }
+                vector.copyIn(session.getMemory());
+            }
+            vector.release();
+            int[] mem = session.getMemory();
+            mem[structPos + 4] = 0;
+            mem[structPos + 5] = (int) bytes;
+            return true;
+        }
+
+        void fail(int error) {
+            vector.release();
+            int[] mem = session.getMemory();
+            mem[structPos + 4] = error;
+            mem[structPos + 5] = -1;
+        }
+    }
+
+    private class TransferOperation extends Operation {
+
+        // structPos : function ID
+        // structPos + 1: source handle
+        // structPos + 2: destination handle
+        // structPos + 3: file position, or -1 for the current position
+        // structPos + 4: number of bytes
+        // structPos + 5: error num
+        // structPos + 6: bytes transferred
+
+        private final FileChannel file;
+        private final boolean current;
+        private final long start;
+        private final long count;
+        private long done = 0;
+
+        TransferOperation(MigolExecutionSession session, int structPos, FileChannel file,
+                SelectableChannel ch, long position, long count) throws IOException {
+            super(session, structPos, ch, SelectionKey.OP_WRITE);
+            this.file = file;
+            this.current = position < 0;
+            this.start = current ? file.position() : position;
+            this.count = count;
+        }
+
+        boolean perform() throws IOException {
+            long n = file.transferTo(start + done, count - done, (WritableByteChannel) channel);
+            done += n;
+            // Nothing is transferred at the end of the file, and then the
+            // request is done even if the socket could take more
+            if (done < count && (n > 0 || start + done < file.size())) {
+                return false;
+            }
+            if (current) {
+                file.position(start + done);
+            }
+            int[] mem = session.getMemory();
+            mem[structPos + 5] = 0;
+            mem[structPos + 6] = (int) done;
+            return true;
+        }
+
+        void fail(int error) {
+            int[] mem = session.getMemory();
+            mem[structPos + 5] = error;
+            mem[structPos + 6] = -1;
+        }
+    }
+
+    private class CloseOperation extends Operation {
+
+        // structPos    :  function id
+        // structPos + 1:  stream handle
+        // structPos + 2:  error num
+
+        CloseOperation(MigolExecutionSession session, int structPos, SelectableChannel ch) {
+            super(session, structPos, ch, 0);
+        }
+
+        boolean perform() throws IOException {
+            SelectionKey key = channel.keyFor(selector);
+            if (key != null) {
+                Pending p = (Pending) key.attachment();
+                key.cancel();
+                failAll(p, 1);
+            }
+            channel.close();
+            session.getMemory()[structPos + 2] = 0;
+            return true;
+        }
+
+        void fail(int error) {
+            session.getMemory()[structPos + 2] = error;
+        }
+    }
+
+    /**
+     * Accepts a connection on a server socket.
+     */
+    public void accept(MigolExecutionSession session, int structPos, ServerSocketChannel server) {
+        submit(new AcceptOperation(session, structPos, server));
+    }
+
+    /**
+     * Opens a connection to an address. The handle of the new socket is
+     * written when the connection has been established.
+     */
+    public void connect(MigolExecutionSession session, int structPos, SocketAddress address) {
+        try {
+            SocketChannel ch = SocketChannel.open();
+            ch.configureBlocking(false);
+            submit(new ConnectOperation(session, structPos, ch, address));
+        } catch (IOException ex) {
+            if (session.isDebugMode()) {
+                ex.printStackTrace();
+            }
+            int[] mem = session.getMemory();
+            mem[structPos + 4] = 1;
+            mem[structPos + 5] = -1;
+            session.getResultQueue().add(structPos);
+        }
+    }
+
+    /**
+     * Reads from a non-blocking channel.
+     */
+    public void read(MigolExecutionSession session, int structPos, SelectableChannel ch) {
+        read(session, structPos, ch, false);
+    }
+
+    /**
+     * Reads from a non-blocking channel.
+     * @param packed    If <b>true</b>, four bytes are stored in each cell.
+     */
+    public void read(MigolExecutionSession session, int structPos,
+            SelectableChannel ch, boolean packed) {
+        submit(new ReadOperation(session, structPos, ch, packed));
+    }
+
+    /**
+     * Writes to a non-blocking channel. The bytes are copied from memory
+     * into a pooled buffer immediately.
+     */
+    public void write(MigolExecutionSession session, int structPos, SelectableChannel ch) {
+        write(session, structPos, ch, false);
+    }
+
+    /**
+     * Writes to a non-blocking channel.
+     * @param packed    If <b>true</b>, four bytes are taken from each cell.
+     */
+    public void write(MigolExecutionSession session, int structPos,
+            SelectableChannel ch, boolean packed) {
+        int[] mem = session.getMemory();
+        ByteBuffer buf;
+        try {
+            buf = io.getBufferPool().acquire(mem[structPos + 3]);
+        } catch (IllegalArgumentException ex) {
+            mem[structPos + 4] = 3;
+            mem[structPos + 5] = -1;
+            session.getResultQueue().add(structPos);
+            return;
+        }
+        try {
+            if (packed) {
+                BufferPool.copyOutPacked(mem, mem[structPos + 2], buf);
+            } else {
+                BufferPool.copyOut(mem, mem[structPos + 2], buf);
+            }
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            io.getBufferPool().release(buf);
+            mem[structPos + 4] = 3;
+            mem[structPos + 5] = -1;
+            session.getResultQueue().add(structPos);
+            return;
+        }
+        buf.flip();
+        submit(new WriteOperation(session, structPos, ch, buf));
+    }
+
+    /**
+     * Reads into or writes from a list of segments on a non-blocking
+     * channel. The segments of a write are copied immediately.
+     */
+    public void transferVector(MigolExecutionSession session, int structPos,
+            SelectableChannel ch, boolean write) {
+        int[] mem = session.getMemory();
+        IOVector vector;
+        try {
+            vector = new IOVector(io.getBufferPool(), mem, mem[structPos + 2], mem[structPos + 3]);
+        } catch (IllegalArgumentException ex) {
+            mem[structPos + 4] = 3;
+            mem[structPos + 5] = -1;
+            session.getResultQueue().add(structPos);
+            return;
+        }
+        if (write) {
+            vector.copyOut(mem);
+        }
+        submit(new VectorOperation(session, structPos, ch, vector, write));
+    }
+
+    /**
+     * Transfers bytes from a file to a non-blocking channel without copying
+     * them through memory.
+     */
+    public void transfer(MigolExecutionSession session, int structPos,
+            FileChannel file, SelectableChannel ch) {
+        int[] mem = session.getMemory();
+        int error;
+        try {
+            if (mem[structPos + 4] >= 0) {
+                submit(new TransferOperation(session, structPos, file, ch,
+                        mem[structPos + 3], mem[structPos + 4]));
+                return;
+            }
+            error = 3;
+        } catch (IOException ex) {
+            error = 1;
+        }
+        mem[structPos + 5] = error;
+        mem[structPos + 6] = -1;
+        session.getResultQueue().add(structPos);
+    }
+
+    /**
+     * Closes a non-blocking channel. Requests still waiting for the channel
+     * fail with error 1.
+     */
+    public void close(MigolExecutionSession session, int structPos, SelectableChannel ch) {
+        submit(new CloseOperation(session, structPos, ch));
+    }
+
+    private void submit(Operation op) {
+        submitted.add(op);
+        selector.wakeup();
+    }
+
+    public void run() {
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+                Operation op;
+                while ((op = submitted.poll()) != null) {
+                    register(op);
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    process(key);
+                }
+            } catch (IOException ex) {
+                // The selector has failed, nothing can be done
+                return;
+            } catch (ClosedSelectorException ex) {
+                return;
+            }
+        }
+    }
+
+    private void register(Operation op) {
+        if (op instanceof CloseOperation) {
+            // A close never waits behind other requests, which fail instead
+            attempt(op);
+            return;
+        }
+        SelectionKey key = op.channel.keyFor(selector);
+        Pending p = (key == null) ? null : (Pending) key.attachment();
+        ArrayDeque<Operation> line = null;
+        if (p != null) {
+            line = (op.interest == SelectionKey.OP_WRITE) ? p.writes : p.reads;
+        }
+        if (line == null || line.isEmpty()) {
+            // Nothing is waiting before this request, so try it directly
+            if (attempt(op)) {
+                return;
+            }
+        }
+        try {
+            if (key == null || !key.isValid()) {
+                p = new Pending();
+                key = op.channel.register(selector, 0, p);
+            }
+            line = (op.interest == SelectionKey.OP_WRITE) ? p.writes : p.reads;
+            line.add(op);
+            updateInterest(key, p);
+        } catch (IOException ex) {
+            finish(op, 1);
+        } catch (CancelledKeyException ex) {
+            finish(op, 1);
+        } catch (IllegalBlockingModeException ex) {
+            finish(op, 3);
+        }
+    }
+
+    /**
+     * Tries an operation.
+     * @return  <b>true</b> if the operation has completed or failed.
+     */
+    private boolean attempt(Operation op) {
+        try {
+            if (op.perform()) {
+                op.complete();
+                return true;
+            }
+            return false;
+        } catch (IOException ex) {
+            if (op.session.isDebugMode()) {
+                ex.printStackTrace();
+            }
+            finish(op, 1);
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            // The structure is outside memory, so there is no result
+        } catch (IllegalArgumentException ex) {
+            finish(op, 3);
+        } catch (IllegalBlockingModeException ex) {
+            finish(op, 3);
+        }
+        return true;
+    }
+
+    private void finish(Operation op, int error) {
+        try {
+            op.fail(error);
+            op.complete();
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            // The structure is outside memory, so there is no result
+        }
+    }
+
+    private void failAll(Pending p, int error) {
+        for (Operation op : p.reads) {
+            finish(op, error);
+        }
+        for (Operation op : p.writes) {
+            finish(op, error);
+        }
+        p.reads.clear();
+        p.writes.clear();
+    }
+
+    private void process(SelectionKey key) {
+        Pending p = (Pending) key.attachment();
+        try {
+            int ready = key.readyOps();
+            if ((ready & ~SelectionKey.OP_WRITE) != 0) {
+                drain(p.reads);
+            }
+            if ((ready & SelectionKey.OP_WRITE) != 0) {
+                drain(p.writes);
+            }
+            updateInterest(key, p);
+        } catch (CancelledKeyException ex) {
+            failAll(p, 1);
+        }
+    }
+
+    private void drain(ArrayDeque<Operation> line) {
+        while (!line.isEmpty() && attempt(line.peek())) {
+            line.poll();
+        }
+    }
+
+    private void updateInterest(SelectionKey key, Pending p) {
+        int ops = 0;
+        if (!p.reads.isEmpty()) {
+            ops |= p.reads.peek().interest;
+        }
+        if (!p.writes.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    /**
+     * Stops the event loop.
+     */
+    public void close() {
+        try {
+            selector.close();
+        } catch (IOException ex) {
+        }
+    }
+}
@@ -10,12 +10,50 @@ import se.migomipo.migol.MigolExecutionSession;
 public class SocketManager {
 
     private IOManager io;
+    private boolean selecting;
 
     public SocketManager(IOManager io) {
+        this(io, io.isSelecting());
+    }
+
+    /**
+     * Creates a socket manager.
+     * @param io    The I/O manager keeping the handles.
+     * @param selecting If <b>true</b>, sockets are non-blocking and their
+     * requests are completed by the event loop of the I/O manager.
+     * Otherwise every request blocks a thread of the pool until it is done.
+     */
+    public SocketManager(IOManager io, boolean selecting) {
         this.io = io;
+        this.selecting = selecting;
     }
   
-    private class OpenSocketRequest implements Runnable {
+    /**
+     * Reads the address of a connect request.
+     */
+    private static InetSocketAddress getAddress(int[] mem, int structPos)
+            throws UnknownHostException {
+        byte[] ip;
+        int ipaddresstype = mem[structPos + 1];
+        int addresspos = mem[structPos + 2];
+        int port = mem[structPos + 3];
+        if (ipaddresstype == 0) {
+            ip = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                ip[i] = (byte) mem[addresspos + i];
+            }
+        } else if (ipaddresstype == 1) {
+            ip = new byte[16];
+            for (int i = 0; i < 16; i++) {
+                ip[i] = (byte) mem[addresspos + i];
+            }
+        } else {
+            throw new IllegalArgumentException();
+        }
+        return new InetSocketAddress(InetAddress.getByAddress(ip), port);
+    }
+
+    private class OpenSocketRequest extends IORequest {
 
         // structpos: function ID
         // structpos + 1: address type
@@ -24,12 +62,14 @@ public class SocketManager {
         // structpos + 4: error
         // structpos + 5: handle
 
-        private final int structPos;
-        private final MigolExecutionSession session;
-
         private OpenSocketRequest(MigolExecutionSession session, int structPos) {
-            this.structPos = structPos;
-            this.session = session;
+            super(session, structPos);
+        }
+
+        protected void fail(int error) {
+            int[] mem = session.getMemory();
+            mem[structPos + 4] = error;
+            mem[structPos + 5] = -1;
         }
 
         public void run() {
@@ -37,24 +77,7 @@ public class SocketManager {
             int error = 0;
             int handle = -1;
             try {
-                byte[] ip;
-                int ipaddresstype = mem[structPos + 1];
-                int addresspos = mem[structPos + 2];
-                int port = mem[structPos + 3];
-                if (ipaddresstype == 0) {
-                    ip = new byte[4];
-                    for (int i = 0; i < 4; i++) {
-                        ip[i] = (byte) mem[addresspos + i];
-                    }
-                } else if (ipaddresstype == 1) {
-                    ip = new byte[16];
-                    for (int i = 0; i < 16; i++) {
-                        ip[i] = (byte) mem[addresspos + i];
-                    }
-                } else {
-                    throw new IllegalArgumentException();
-                }
-                SocketChannel ch = SocketChannel.open(new InetSocketAddress(InetAddress.getByAddress(ip), port));
+                SocketChannel ch = SocketChannel.open(getAddress(mem, structPos));
                 handle = io.addObject(ch);
                 
             } catch (IOException ex) {
@@ -72,7 +95,7 @@ public class SocketManager {
         
     }
         
-    private class ResolveDNSRequest implements Runnable {
+    private class ResolveDNSRequest extends IORequest {
         
         // structpos: function ID
         // structpos + 1: DNS name string address
@@ -81,12 +104,15 @@ public class SocketManager {
         // structpos + 4: error
         // structpos + 5: IP address type (0=ipv4, 1=ipv6)
         
-        private final int structPos;
-        private final MigolExecutionSession session;
 
         private ResolveDNSRequest(MigolExecutionSession session, int structPos) {
-            this.structPos = structPos;
-            this.session = session;
+            super(session, structPos);
+        }
+
+        protected void fail(int error) {
+            int[] mem = session.getMemory();
+            mem[structPos + 4] = error;
+            mem[structPos + 5] = -1;
         }
 
         public void run() {
@@ -125,21 +151,23 @@ public class SocketManager {
         }    
     }
     
-    private class CreateServerSocketRequest implements Runnable {
+    private class CreateServerSocketRequest extends IORequest {
         
         // structPos: function ID
         // structPos + 1: port
         // structPos + 2: error
         // structPos + 3: server socket handle
 
-        private final int structPos;
-        private final MigolExecutionSession session;
-
         private CreateServerSocketRequest(MigolExecutionSession session, int structPos) {
-            this.structPos = structPos;
-            this.session = session;
+            super(session, structPos);
         }
         
+        protected void fail(int error) {
+            int[] mem = session.getMemory();
+            mem[structPos + 2] = error;
+            mem[structPos + 3] = -1;
+        }
+
         public void run() {
             int[] mem = session.getMemory();
             int error = 0;
@@ -147,6 +175,9 @@ public class SocketManager {
             try {
                 ServerSocketChannel server = ServerSocketChannel.open();
                 server.socket().bind(new InetSocketAddress(mem[structPos + 1]));
+                if (selecting) {
+                    server.configureBlocking(false);
+                }
                 handle = io.addObject(server);
             } catch(IOException ex){
                 error = 1;
@@ -166,21 +197,23 @@ public class SocketManager {
     
     }
     
-    private class ListenServerSocketRequest implements Runnable {
+    private class ListenServerSocketRequest extends IORequest {
 
         // structPos: function ID
         // structPos + 1: server socket handle
         // structPos + 2: error
         // structPos + 3: stream handle
 
-        private final int structPos;
-        private final MigolExecutionSession session;
-
         private ListenServerSocketRequest(MigolExecutionSession session, int structPos) {
-            this.structPos = structPos;
-            this.session = session;
+            super(session, structPos);
         }
         
+        protected void fail(int error) {
+            int[] mem = session.getMemory();
+            mem[structPos + 2] = error;
+            mem[structPos + 3] = -1;
+        }
+
         public void run() {
             int error = 0;
             int handle = -1;
@@ -210,7 +243,21 @@ public class SocketManager {
     private MigolIOFunction openSocketFunc = new MigolIOFunction() {
 
         public void executeIO(MigolExecutionSession session, int structPos) {
-            io.submit(new OpenSocketRequest(session, structPos));
+            if (!selecting) {
+                io.submit(new OpenSocketRequest(session, structPos));
+                return;
+            }
+            int[] mem = session.getMemory();
+            try {
+                io.getEventLoop().connect(session, structPos, getAddress(mem, structPos));
+                return;
+            } catch (IOException ex) {
+                mem[structPos + 4] = 1;
+            } catch (IllegalArgumentException ex) {
+                mem[structPos + 4] = 3;
+            }
+            mem[structPos + 5] = -1;
+            session.getResultQueue().add(structPos);
         }
     };
     
@@ -231,7 +278,20 @@ public class SocketManager {
     private MigolIOFunction listenServerSocketFunc = new MigolIOFunction() {
 
         public void executeIO(MigolExecutionSession session, int structPos) {
-            io.submit(new ListenServerSocketRequest(session, structPos));
+            int[] mem = session.getMemory();
+            Object server = io.getObject(mem[structPos + 1]);
+            if (!(server instanceof ServerSocketChannel)
+                    || ((ServerSocketChannel) server).isBlocking()) {
+                io.submit(new ListenServerSocketRequest(session, structPos));
+                return;
+            }
+            try {
+                io.getEventLoop().accept(session, structPos, (ServerSocketChannel) server);
+            } catch (IOException ex) {
+                mem[structPos + 2] = 1;
+                mem[structPos + 3] = -1;
+                session.getResultQueue().add(structPos);
+            }
         }
     };
 
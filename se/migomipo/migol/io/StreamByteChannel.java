@@ -26,7 +26,7 @@ public class StreamByteChannel implements java.nio.channels.ByteChannel {
     }
 
     public boolean isOpen() {
-        return in.isOpen() || out.isOpen();
+        return (in != null && in.isOpen()) || (out != null && out.isOpen());
     }
 
     public void close() throws IOException {
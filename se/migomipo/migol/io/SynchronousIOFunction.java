@@ -0,0 +1,25 @@
+package se.migomipo.migol.io;
+
+import se.migomipo.migol.MigolExecutionSession;
+
+/**
+ * An I/O function which can complete while the exec statement executes.
+ *
+ * If the {@link #SYNCHRONOUS} bit is set in the function ID of the
+ * structure, {@link #executeSynchronously(MigolExecutionSession, int)} is
+ * called instead of {@link #executeIO(MigolExecutionSession, int)}. The
+ * results are written into the structure before the next statement, and
+ * nothing is added to the result queue, so no interrupt occurs.
+ *
+ * Only functions which never block for long should implement this
+ * interface, since the program stops while they run.
+ */
+public interface SynchronousIOFunction extends MigolIOFunction {
+
+    /**
+     * The bit in the function ID requesting synchronous completion.
+     */
+    public static final int SYNCHRONOUS = 0x10000;
+
+    public void executeSynchronously(MigolExecutionSession session, int structPos);
+}
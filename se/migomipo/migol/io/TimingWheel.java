@@ -0,0 +1,297 @@
+package se.migomipo.migol.io;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+import se.migomipo.migol.MigolExecutionSession;
+import se.migomipo.migol.ResultQueue;
+
+/**
+ * A hierarchical timing wheel delivering timer expirations to the result
+ * queue of a session.
+ *
+ * Time is divided into ticks of one millisecond. The wheel has six levels
+ * of 64 slots each, where a slot on level <i>n</i> covers 64<sup>n</sup>
+ * ticks. A timer is put in the slot matching its expiration time, and is
+ * moved to a lower level when the wheel reaches the slot. Scheduling and
+ * cancelling a timer therefore take constant time, no matter how many timers
+ * are running.
+ *
+ * Timers are identified by the address of their structure in memory, so at
+ * most one timer per address is running. Scheduling a timer for an address
+ * which already has one replaces the old timer.
+ *
+ * The wheel is advanced by a single daemon thread, which is started when the
+ * first timer is scheduled and only wakes up when a timer may expire. All
+ * timers expiring in the same tick are added to the result queue as one
+ * batch.
+ * @author John Eriksson
+ */
+public class TimingWheel {
+
+    private static final long TICK = 1000000L; // Nanoseconds per tick
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 6;
+
+    /**
+     * A running timer. The timers in a slot form a circular doubly linked
+     * list headed by a dummy entry, so a timer can be removed without
+     * searching for it.
+     */
+    private static class Entry {
+
+        MigolExecutionSession session;
+        int structPos;
+        long expires;
+        int period;
+        int count;
+        boolean periodic;
+        Entry prev = this;
+        Entry next = this;
+    }
+    private final Entry[][] wheel = new Entry[LEVELS][SLOTS];
+    private final Map<Integer, Entry> timers = new HashMap<Integer, Entry>();
+    private final long origin = System.nanoTime();
+    /**
+     * The next tick to be processed.
+     */
+    private long base = 0;
+    private Thread thread = null;
+    /**
+     * The time in ticks when the thread will wake up by itself.
+     */
+    private volatile long sleepUntil = Long.MAX_VALUE;
+    private int[] batch = new int[64];
+
+    public TimingWheel() {
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                wheel[level][slot] = new Entry();
+            }
+        }
+    }
+
+    /**
+     * Returns the current time of the wheel's clock.
+     * @return  The number of ticks since the wheel was created.
+     */
+    private long now() {
+        return (System.nanoTime() - origin) / TICK;
+    }
+
+    /**
+     * Schedules a timer.
+     * @param session   The session which will receive the interrupt.
+     * @param structPos The address of the timer structure, which is added to
+     * the result queue when the timer expires.
+     * @param delay     The number of milliseconds until the first expiration.
+     * @param period    The number of milliseconds between the following
+     * expirations, or 0 for a timer which only expires once.
+     */
+    public synchronized void schedule(MigolExecutionSession session, int structPos,
+            int delay, int period) {
+        Entry old = timers.remove(structPos);
+        if (old != null) {
+            unlink(old);
+        }
+        Entry e = new Entry();
+        e.session = session;
+        e.structPos = structPos;
+        // Rounded up, so that a timer never expires early
+        long at = System.nanoTime() - origin + Math.max(delay, 0) * TICK;
+        e.expires = Math.max((at + TICK - 1) / TICK, base);
+        e.period = Math.max(period, 1);
+        e.periodic = period > 0;
+        if (timers.isEmpty()) {
+            // Nothing has been running, so there is nothing to catch up on
+            base = Math.max(base, now());
+        }
+        timers.put(structPos, e);
+        insert(e);
+        if (thread == null) {
+            thread = new Thread(new Runnable() {
+
+                public void run() {
+                    runWheel();
+                }
+            }, "Migol timing wheel");
+            thread.setDaemon(true);
+            thread.start();
+        } else if (e.expires < sleepUntil) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Cancels a timer.
+     * @param structPos The address of the timer structure.
+     * @return  <b>true</b> if a running timer was cancelled, <b>false</b>
+     * if there was no timer for the address or it has already expired.
+     */
+    public synchronized boolean cancel(int structPos) {
+        Entry e = timers.remove(structPos);
+        if (e == null) {
+            return false;
+        }
+        unlink(e);
+        return true;
+    }
+
+    private void insert(Entry e) {
+        long delta = e.expires - base;
+        Entry head;
+        if (delta < 0) {
+            // Already expired, run it in the next processed tick
+            head = wheel[0][(int) base & MASK];
+        } else {
+            int level = 0;
+            while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+                level++;
+            }
+            head = wheel[level][(int) (e.expires >>> (BITS * level)) & MASK];
+        }
+        e.prev = head.prev;
+        e.next = head;
+        head.prev.next = e;
+        head.prev = e;
+    }
+
+    private static void unlink(Entry e) {
+        e.prev.next = e.next;
+        e.next.prev = e.prev;
+        e.prev = e;
+        e.next = e;
+    }
+
+    /**
+     * Moves the timers in a slot of a higher level to the lower levels.
+     * @return  The index of the slot.
+     */
+    private int cascade(int level) {
+        int index = (int) (base >>> (BITS * level)) & MASK;
+        Entry head = wheel[level][index];
+        Entry e = head.next;
+        head.next = head;
+        head.prev = head;
+        while (e != head) {
+            Entry next = e.next;
+            insert(e);
+            e = next;
+        }
+        return index;
+    }
+
+    /**
+     * Processes all ticks up to the given time.
+     * @param batcher   Receives the expired timers.
+     */
+    private void advance(long until, Batch batcher) {
+        while (base <= until && !timers.isEmpty()) {
+            int index = (int) base & MASK;
+            if (index == 0) {
+                int level = 1;
+                while (level < LEVELS && cascade(level) == 0) {
+                    level++;
+                }
+            }
+            Entry head = wheel[0][index];
+            base++;
+            while (head.next != head) {
+                Entry e = head.next;
+                unlink(e);
+                e.count++;
+                batcher.add(e);
+                if (e.periodic) {
+                    e.expires += e.period;
+                    insert(e);
+                } else {
+                    timers.remove(e.structPos);
+                }
+            }
+        }
+        if (timers.isEmpty()) {
+            base = Math.max(base, until + 1);
+        }
+    }
+
+    /**
+     * Returns the earliest tick at which a timer may expire. This is exact
+     * for timers on the lowest level, and for the other timers the next tick
+     * at which the lowest level wraps around.
+     */
+    private long nextWakeup() {
+        if (timers.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        for (long tick = base; tick < base + SLOTS; tick++) {
+            int index = (int) tick & MASK;
+            if (index == 0 || wheel[0][index].next != wheel[0][index]) {
+                return tick;
+            }
+        }
+        return base + SLOTS;
+    }
+
+    /**
+     * The expirations of one tick, grouped by session.
+     */
+    private class Batch {
+
+        MigolExecutionSession session = null;
+        int size = 0;
+
+        void add(Entry e) {
+            if (e.session != session) {
+                flush();
+                session = e.session;
+            }
+            if (size == batch.length) {
+                int[] grown = new int[size * 2];
+                System.arraycopy(batch, 0, grown, 0, size);
+                batch = grown;
+            }
+            try {
+                int[] mem = e.session.getMemory();
+                if (e.periodic) {
+                    mem[e.structPos + 3] = e.count;
+                } else {
+                    mem[e.structPos + 2] = (int) System.currentTimeMillis();
+                }
+                batch[size++] = e.structPos;
+            } catch (ArrayIndexOutOfBoundsException ex) {
+                // The structure is outside memory, so there is no result
+            }
+        }
+
+        void flush() {
+            if (size > 0) {
+                session.getResultQueue().addAll(batch, 0, size,
+                        ResultQueue.HIGH_PRIORITY);
+                size = 0;
+            }
+        }
+    }
+
+    private void runWheel() {
+        Batch batcher = new Batch();
+        while (true) {
+            long wakeup;
+            synchronized (this) {
+                advance(now(), batcher);
+                batcher.flush();
+                wakeup = nextWakeup();
+                sleepUntil = wakeup;
+            }
+            if (wakeup == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else {
+                long left = origin + wakeup * TICK - System.nanoTime();
+                if (left > 0) {
+                    LockSupport.parkNanos(this, left);
+                }
+            }
+        }
+    }
+}
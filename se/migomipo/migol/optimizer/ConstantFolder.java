@@ -0,0 +1,546 @@
+/*
+ * Copyright (c) 2009 John Eriksson
+
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package se.migomipo.migol.optimizer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import se.migomipo.migol.*;
+import static se.migomipo.migol.AssignmentOperation.*;
+
+/**
+ * Folds constants and removes dead statements from parsed programs.
+ *
+ * The pass does the following rewrites:
+ * <ul>
+ * <li>Resolved {@link LabelValue} objects are replaced by their
+ * {@link IntegerValue}, which removes one delegation from every access.</li>
+ * <li>Constant operations in an assignment chain are folded. Operations
+ * before a constant assignment are dropped, constant operations after it
+ * are applied at once, and adjacent constant additions and subtractions
+ * are merged. For example <code>0&lt;3&lt;$*2&lt;$+1</code> becomes
+ * <code>0&lt;7</code>.</li>
+ * <li>Conditional statements with a constant condition are replaced by the
+ * wrapped statement or by a no-op.</li>
+ * <li>Assignments to fixed memory cells which are never read are replaced
+ * by no-ops. A cell is only considered unread if the program never reads
+ * memory through pointers and never calls I/O functions, since these can
+ * read any cell.</li>
+ * <li>If the program only branches to constant addresses, all no-ops are
+ * removed and the constant branch targets are remapped. Otherwise the
+ * no-ops are kept, so that every statement keeps its position.</li>
+ * </ul>
+ *
+ * Only the memory cells read by the program count as its result. A program
+ * optimized by this pass produces the same output as the original program,
+ * but the final contents of unread cells may differ.
+ * @author John Eriksson
+ */
+public class ConstantFolder {
+
+    private ConstantFolder() {
+    }
+
+    /**
+     * Creates an optimized copy of a program.
+     * @param program   The program to be optimized.
+     * @param memsize   The number of memory cells the program will be
+     * executed with. Dead stores to cells outside the memory are kept, since
+     * they stop the program with an error.
+     * @param report    The report where the applied rewrites are recorded,
+     * or <code>null</code>.
+     * @return  The optimized program.
+     */
+    public static MigolParsedProgram fold(MigolParsedProgram program, int memsize,
+            OptimizationReport report) {
+        if (report == null) {
+            report = new OptimizationReport();
+        }
+        List<MigolStatement> statements = new ArrayList<MigolStatement>(program.getStatements());
+        boolean relocatable = true;
+        for (MigolStatement stmt : statements) {
+            if (!isRelocatable(stmt)) {
+                relocatable = false;
+                break;
+            }
+        }
+        for (int i = 0; i < statements.size(); i++) {
+            MigolStatement stmt = statements.get(i);
+            MigolStatement resolved = resolveLabels(stmt);
+            if (resolved != stmt) {
+                report.record("resolve-label", i + 1);
+            }
+            MigolStatement folded = foldStatement(resolved, i + 1, report);
+            statements.set(i, folded);
+        }
+        removeDeadStores(statements, memsize, report);
+        if (relocatable) {
+            statements = removeNops(statements, report);
+        }
+        return new MigolParsedProgram(statements);
+    }
+
+    private static MigolStatement resolveLabels(MigolStatement stmt) {
+        if (stmt instanceof ConditionalStatement) {
+            ConditionalStatement cond = (ConditionalStatement) stmt;
+            MigolValue value = (MigolValue) resolveLabels(cond.getValue());
+            MigolStatement inner = resolveLabels(cond.getStatement());
+            if (value != cond.getValue() || inner != cond.getStatement()) {
+                return new ConditionalStatement(inner, cond.getCondtype(), value);
+            }
+        } else if (stmt instanceof AssignmentStatement) {
+            AssignmentStatement assign = (AssignmentStatement) stmt;
+            MigolReference target = resolveLabels(assign.getTarget());
+            AssignmentOperation[] ops = assign.getOperations().clone();
+            boolean changed = target != assign.getTarget();
+            for (int i = 0; i < ops.length; i++) {
+                MigolValue value = (MigolValue) resolveLabels(ops[i].getValue());
+                if (value != ops[i].getValue()) {
+                    ops[i] = AssignmentOperation.getInstance(ops[i].getOperation(), value);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                return new AssignmentStatement(target, ops);
+            }
+        } else if (stmt instanceof ConsoleIOStatement) {
+            ConsoleIOStatement io = (ConsoleIOStatement) stmt;
+            MigolValue value = (MigolValue) resolveLabels(io.getVal());
+            if (value != io.getVal()) {
+                return new ConsoleIOStatement(value, io.getMode());
+            }
+        }
+        return stmt;
+    }
+
+    private static MigolReference resolveLabels(MigolReference ref) {
+        if (ref instanceof LabelValue && ((LabelValue) ref).getValue() != null) {
+            return ((LabelValue) ref).getValue();
+        } else if (ref instanceof DeferValue) {
+            DeferValue defer = (DeferValue) ref;
+            MigolReference inner = resolveLabels(defer.getReference());
+            if (inner != defer.getReference()) {
+                return DeferValue.getInstance(inner, defer.getDefers());
+            }
+        }
+        return ref;
+    }
+
+    private static MigolStatement foldStatement(MigolStatement stmt, int pos,
+            OptimizationReport report) {
+        if (stmt instanceof ConditionalStatement) {
+            ConditionalStatement cond = (ConditionalStatement) stmt;
+            MigolStatement inner = foldStatement(cond.getStatement(), pos, report);
+            if (cond.getValue() instanceof IntegerValue) {
+                report.record("constant-condition", pos);
+                int value = ((IntegerValue) cond.getValue()).getInternalValue();
+                try {
+                    return ConditionalStatement.test(cond.getCondtype(), value, null)
+                            ? inner : NopStatement.getInstance();
+                } catch (MigolExecutionException ex) {
+                    throw new IllegalStateException(ex); // Never thrown for parsed operators
+                }
+            }
+            if (inner != cond.getStatement()) {
+                return new ConditionalStatement(inner, cond.getCondtype(), cond.getValue());
+            }
+        } else if (stmt instanceof AssignmentStatement) {
+            AssignmentStatement assign = (AssignmentStatement) stmt;
+            MigolReference target = assign.getTarget();
+            if (target instanceof IntegerValue || target instanceof BranchReference) {
+                AssignmentOperation[] ops = foldOperations(assign.getOperations());
+                if (ops != null) {
+                    report.record("fold-chain", pos);
+                    return new AssignmentStatement(target, ops);
+                }
+            }
+        }
+        return stmt;
+    }
+
+    /**
+     * Folds the constant operations of an assignment chain.
+     * @return  The folded operations, or <code>null</code> if nothing could
+     * be folded.
+     */
+    private static AssignmentOperation[] foldOperations(AssignmentOperation[] ops) {
+        // Everything before the last constant assignment is overwritten, as
+        // long as it has no side effects
+        int start = 0;
+        for (int i = ops.length - 1; i > 0; i--) {
+            if (ops[i].getOperation() == OP_ASSIGN && ops[i].getValue() instanceof IntegerValue) {
+                boolean pure = true;
+                for (int j = 0; j < i; j++) {
+                    if (!(ops[j].getValue() instanceof IntegerValue) || mayFail(ops[j])) {
+                        pure = false;
+                    }
+                }
+                if (pure) {
+                    start = i;
+                }
+                break;
+            }
+        }
+        List<AssignmentOperation> folded = new ArrayList<AssignmentOperation>();
+        int i = start;
+        if (ops[i].getOperation() == OP_ASSIGN && ops[i].getValue() instanceof IntegerValue) {
+            int value = constant(ops[i]);
+            i++;
+            while (i < ops.length && ops[i].getValue() instanceof IntegerValue && !mayFail(ops[i])) {
+                value = apply(ops[i].getOperation(), value, constant(ops[i]));
+                i++;
+            }
+            folded.add(AssignmentOperation.getInstance(OP_ASSIGN, IntegerValue.getInstance(value)));
+        }
+        for (; i < ops.length; i++) {
+            AssignmentOperation op = ops[i];
+            AssignmentOperation prev = folded.isEmpty() ? null : folded.get(folded.size() - 1);
+            if (prev != null && isConstantAdd(prev) && isConstantAdd(op)) {
+                int sum = signedConstant(prev) + signedConstant(op);
+                folded.set(folded.size() - 1, AssignmentOperation.getInstance(
+                        sum < 0 ? OP_MINUS : OP_PLUS, IntegerValue.getInstance(Math.abs(sum))));
+            } else {
+                folded.add(op);
+            }
+        }
+        if (folded.size() == ops.length) {
+            return null;
+        }
+        return folded.toArray(new AssignmentOperation[folded.size()]);
+    }
+
+    private static int constant(AssignmentOperation op) {
+        return ((IntegerValue) op.getValue()).getInternalValue();
+    }
+
+    private static boolean isConstantAdd(AssignmentOperation op) {
+        return (op.getOperation() == OP_PLUS || op.getOperation() == OP_MINUS)
+                && op.getValue() instanceof IntegerValue;
+    }
+
+    private static int signedConstant(AssignmentOperation op) {
+        return op.getOperation() == OP_MINUS ? -constant(op) : constant(op);
+    }
+
+    /**
+     * Checks if an operation may stop the program with an error, that is a
+     * division or modulo which is not by a non-zero constant.
+     */
+    private static boolean mayFail(AssignmentOperation op) {
+        if (op.getOperation() != OP_DIVIDE && op.getOperation() != OP_MOD) {
+            return false;
+        }
+        return !(op.getValue() instanceof IntegerValue) || constant(op) == 0;
+    }
+
+    private static int apply(int operation, int value, int cal) {
+        try {
+            return calculate(operation, value, cal, null);
+        } catch (MigolExecutionException ex) {
+            throw new IllegalStateException(ex); // Never thrown for parsed operators
+        }
+    }
+
+    /**
+     * Replaces assignments to unread memory cells with no-ops, until no more
+     * assignments can be removed.
+     */
+    private static void removeDeadStores(List<MigolStatement> statements, int memsize,
+            OptimizationReport report) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            Set<Integer> read = new HashSet<Integer>();
+            for (MigolStatement stmt : statements) {
+                if (!collectReads(stmt, -1, read)) {
+                    return;
+                }
+            }
+            for (int i = 0; i < statements.size(); i++) {
+                int cell = deadStoreTarget(statements.get(i), memsize);
+                if (cell >= 0 && !read.contains(cell)) {
+                    statements.set(i, NopStatement.getInstance());
+                    report.record("dead-store", i + 1);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the memory cells read by a statement to a set. Reads of the cell
+     * written by the statement itself are not included.
+     * @param owner The cell written by the enclosing statement, or -1.
+     * @return  <code>false</code> if the statement may read memory cells
+     * which can not be known before execution.
+     */
+    private static boolean collectReads(MigolStatement stmt, int owner, Set<Integer> read) {
+        if (stmt instanceof ConditionalStatement) {
+            ConditionalStatement cond = (ConditionalStatement) stmt;
+            MigolStatement inner = cond.getStatement();
+            if (owner < 0 && inner instanceof AssignmentStatement
+                    && ((AssignmentStatement) inner).getTarget() instanceof IntegerValue) {
+                owner = ((IntegerValue) ((AssignmentStatement) inner).getTarget()).getInternalValue();
+            }
+            return collectReads(cond.getValue(), owner, read) && collectReads(inner, owner, read);
+        } else if (stmt instanceof AssignmentStatement) {
+            AssignmentStatement assign = (AssignmentStatement) stmt;
+            MigolReference target = assign.getTarget();
+            if (target instanceof ExecReference) {
+                // I/O functions read their arguments from memory
+                return false;
+            } else if (target instanceof IntegerValue) {
+                owner = ((IntegerValue) target).getInternalValue();
+            } else if (target instanceof DeferValue) {
+                DeferValue defer = (DeferValue) target;
+                MigolReference base = defer.getReference();
+                if (defer.getDefers() > 1 || !collectReads(base, owner, read)) {
+                    return false;
+                }
+                if (base instanceof IntegerValue) {
+                    // The pointer cell is read to find the target
+                    read.add(((IntegerValue) base).getInternalValue());
+                }
+                for (AssignmentOperation op : assign.getOperations()) {
+                    if (op.getOperation() != OP_ASSIGN) {
+                        return false;
+                    }
+                }
+            }
+            for (AssignmentOperation op : assign.getOperations()) {
+                if (!collectReads(op.getValue(), owner, read)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (stmt instanceof ConsoleIOStatement) {
+            return collectReads(((ConsoleIOStatement) stmt).getVal(), -1, read);
+        }
+        return true;
+    }
+
+    private static boolean collectReads(MigolReference ref, int owner, Set<Integer> read) {
+        if (ref instanceof ExecReference) {
+            return false;
+        } else if (ref instanceof DeferValue) {
+            DeferValue defer = (DeferValue) ref;
+            MigolReference inner = defer.getReference();
+            if (inner instanceof ExecReference) {
+                return false;
+            } else if (inner instanceof IntegerValue) {
+                if (defer.getDefers() > 1) {
+                    return false;
+                }
+                int cell = ((IntegerValue) inner).getInternalValue();
+                if (cell != owner) {
+                    read.add(cell);
+                }
+            } else if (defer.getDefers() > 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the cell written by a statement which has no other effect
+     * than writing that cell.
+     * @return  The cell, or -1 if the statement is not such a store.
+     */
+    private static int deadStoreTarget(MigolStatement stmt, int memsize) {
+        if (stmt instanceof ConditionalStatement) {
+            ConditionalStatement cond = (ConditionalStatement) stmt;
+            return isPure(cond.getValue(), memsize) ? deadStoreTarget(cond.getStatement(), memsize) : -1;
+        } else if (stmt instanceof AssignmentStatement) {
+            AssignmentStatement assign = (AssignmentStatement) stmt;
+            if (!(assign.getTarget() instanceof IntegerValue)) {
+                return -1;
+            }
+            int cell = ((IntegerValue) assign.getTarget()).getInternalValue();
+            if (cell < 0 || cell >= memsize) {
+                return -1;
+            }
+            for (AssignmentOperation op : assign.getOperations()) {
+                if (!isPure(op.getValue(), memsize) || mayFail(op)) {
+                    return -1;
+                }
+            }
+            return cell;
+        }
+        return -1;
+    }
+
+    /**
+     * Checks if a value can be read without side effects or errors.
+     */
+    private static boolean isPure(MigolValue value, int memsize) {
+        if (value instanceof IntegerValue) {
+            return true;
+        } else if (value instanceof DeferValue) {
+            DeferValue defer = (DeferValue) value;
+            if (defer.getDefers() == 1 && defer.getReference() instanceof IntegerValue) {
+                int cell = ((IntegerValue) defer.getReference()).getInternalValue();
+                return cell >= 0 && cell < memsize;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if a statement still works when statements are moved to other
+     * positions. This is the case if the statement does not read any
+     * position, and only writes constant addresses to the branch and
+     * interrupt references.
+     */
+    private static boolean isRelocatable(MigolStatement stmt) {
+        if (stmt instanceof ConditionalStatement) {
+            ConditionalStatement cond = (ConditionalStatement) stmt;
+            return isRelocatable(cond.getValue()) && isRelocatable(cond.getStatement());
+        } else if (stmt instanceof AssignmentStatement) {
+            AssignmentStatement assign = (AssignmentStatement) stmt;
+            MigolReference target = assign.getTarget();
+            AssignmentOperation[] ops = assign.getOperations();
+            if (isPositionReference(target)) {
+                if (ops.length != 1 || !(ops[0].getValue() instanceof IntegerValue
+                        || ops[0].getValue() instanceof LabelValue)) {
+                    return false;
+                }
+                int op = ops[0].getOperation();
+                // Relative writes are only meaningful for the program pointer
+                return op == OP_ASSIGN || (op == OP_PLUS || op == OP_MINUS)
+                        && (target instanceof BranchReference
+                        || target instanceof BranchLeaveHandlerReference);
+            }
+            if (!isRelocatable(target)) {
+                return false;
+            }
+            for (AssignmentOperation op : ops) {
+                if (!isRelocatable(op.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (stmt instanceof ConsoleIOStatement) {
+            return isRelocatable(((ConsoleIOStatement) stmt).getVal());
+        }
+        return true;
+    }
+
+    private static boolean isRelocatable(MigolReference ref) {
+        if (ref instanceof LabelValue) {
+            // A label used as data would change its value
+            return false;
+        } else if (ref instanceof DeferValue) {
+            return !isPositionReference(((DeferValue) ref).getReference())
+                    && isRelocatable(((DeferValue) ref).getReference());
+        }
+        return true;
+    }
+
+    private static boolean isPositionReference(MigolReference ref) {
+        return ref instanceof BranchReference || ref instanceof BranchLeaveHandlerReference
+                || ref instanceof InterruptHandlerReference
+                || ref instanceof InterruptReturnAddressReference;
+    }
+
+    /**
+     * Removes all no-ops and remaps the constant addresses written to the
+     * branch and interrupt references.
+     */
+    private static List<MigolStatement> removeNops(List<MigolStatement> statements,
+            OptimizationReport report) {
+        int size = statements.size();
+        // newpos[p] is the new position of the first kept statement at or
+        // after old position p
+        int[] newpos = new int[size + 2];
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            newpos[i + 1] = kept + 1;
+            if (!(statements.get(i) instanceof NopStatement)) {
+                kept++;
+            }
+        }
+        newpos[size + 1] = kept + 1;
+        if (kept == size) {
+            return statements;
+        }
+        List<MigolStatement> result = new ArrayList<MigolStatement>(kept);
+        for (int i = 0; i < size; i++) {
+            MigolStatement stmt = statements.get(i);
+            if (stmt instanceof NopStatement) {
+                report.record("remove-nop", i + 1);
+            } else {
+                result.add(remap(stmt, i + 1, newpos, report));
+            }
+        }
+        return result;
+    }
+
+    private static MigolStatement remap(MigolStatement stmt, int pos, int[] newpos,
+            OptimizationReport report) {
+        if (stmt instanceof ConditionalStatement) {
+            ConditionalStatement cond = (ConditionalStatement) stmt;
+            MigolStatement inner = remap(cond.getStatement(), pos, newpos, report);
+            if (inner != cond.getStatement()) {
+                return new ConditionalStatement(inner, cond.getCondtype(), cond.getValue());
+            }
+        } else if (stmt instanceof AssignmentStatement) {
+            AssignmentStatement assign = (AssignmentStatement) stmt;
+            if (!isPositionReference(assign.getTarget())) {
+                return stmt;
+            }
+            AssignmentOperation op = assign.getOperations()[0];
+            int value = ((IntegerValue) op.getValue()).getInternalValue();
+            int remapped;
+            if (op.getOperation() == OP_PLUS) {
+                remapped = map(pos + value, newpos) - map(pos, newpos);
+            } else if (op.getOperation() == OP_MINUS) {
+                remapped = map(pos, newpos) - map(pos - value, newpos);
+            } else {
+                remapped = map(value, newpos);
+            }
+            if (remapped != value) {
+                report.record("remap-branch", pos);
+                return new AssignmentStatement(assign.getTarget(), new AssignmentOperation[]{
+                            AssignmentOperation.getInstance(op.getOperation(),
+                            IntegerValue.getInstance(remapped))});
+            }
+        }
+        return stmt;
+    }
+
+    private static int map(int pos, int[] newpos) {
+        if (pos <= 0) {
+            return pos;
+        } else if (pos >= newpos.length) {
+            // Past the end of the program
+            int end = newpos.length - 1;
+            return pos - (end - newpos[end]);
+        }
+        return newpos[pos];
+    }
+}
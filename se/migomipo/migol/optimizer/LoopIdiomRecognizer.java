@@ -0,0 +1,383 @@
+/*
+ * Copyright (c) 2009 John Eriksson
+
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package se.migomipo.migol.optimizer;
+
+import java.util.Arrays;
+import se.migomipo.migol.*;
+import static se.migomipo.migol.AssignmentOperation.*;
+import static se.migomipo.migol.ConditionalStatement.*;
+import static se.migomipo.migol.optimizer.StatementQuickener.*;
+
+/**
+ * Replaces loops which clear, copy or scan memory with bulk operations.
+ *
+ * The recognized loops consist of unconditional statements followed by a
+ * conditional branch back to the first statement. Three shapes are
+ * recognized, where the statements of the body may come in any order:
+ * <pre>
+ * [p]&lt;k          fill: p and the counter n step by 1 or -1
+ * p&lt;$+1
+ * n&lt;$-1
+ * #&lt;loop?&gt;[n]
+ *
+ * [d]&lt;[[s]]      copy: d, s and the counter n step by 1 or -1
+ * d&lt;$+1
+ * s&lt;$+1
+ * n&lt;$-1
+ * #&lt;loop?&gt;[n]
+ *
+ * p&lt;$+1          scan: p steps by any constant
+ * #&lt;loop?&lt;&gt;[[p]]
+ * </pre>
+ *
+ * The loop is replaced by a statement at the position of its first
+ * statement. This statement computes the number of iterations, and checks
+ * that the bulk operation gives exactly the same memory contents as the
+ * loop. The checks fail if the loop would run out of memory, if the
+ * written block overlaps the pointer or counter cells, or if a copy reads
+ * cells it has already written. In that case the statement executes the
+ * original first statement of the loop, and the rest of the iteration is
+ * done by the original statements, which keep their positions. Since every
+ * iteration starts at the replaced statement, the bulk operation is tried
+ * again on the next iteration.
+ *
+ * A loop replaced by a bulk operation runs as a single statement. Pending
+ * interrupts are delivered after the whole loop instead of between its
+ * iterations, as if the I/O results had arrived when the loop was done. An
+ * interrupt handler therefore never sees a partially filled or copied
+ * block.
+ * @author John Eriksson
+ */
+public class LoopIdiomRecognizer {
+
+    private LoopIdiomRecognizer() {
+    }
+
+    /**
+     * Creates a copy of a program where clear, copy and scan loops have been
+     * replaced by bulk operations.
+     * @param program   The program to be optimized.
+     * @param report    The report where the recognized loops are recorded,
+     * or <code>null</code>.
+     * @return  The optimized program.
+     */
+    public static MigolParsedProgram recognize(MigolParsedProgram program, OptimizationReport report) {
+        if (report == null) {
+            report = new OptimizationReport();
+        }
+        MigolParsedProgram result = new MigolParsedProgram(program.getStatements());
+        boolean[] replaced = new boolean[program.size() + 1];
+        for (int end = 2; end <= program.size(); end++) {
+            int start = loopStart(program.getStatement(end), end);
+            if (start < 1 || start >= end || replaced[start]) {
+                continue;
+            }
+            MigolStatement idiom = match(program, start, end);
+            if (idiom != null) {
+                result.setStatement(start, idiom);
+                replaced[start] = true;
+                report.record(idiom instanceof ScanLoop ? "scan-loop"
+                        : ((BlockLoop) idiom).copy ? "copy-loop" : "fill-loop", start);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the target of a conditional constant branch, or -1.
+     */
+    private static int loopStart(MigolStatement stmt, int pos) {
+        if (!(stmt instanceof ConditionalStatement)) {
+            return -1;
+        }
+        ConditionalStatement cond = (ConditionalStatement) stmt;
+        if (operandKind(cond.getValue()) < 0
+                || !(cond.getStatement() instanceof AssignmentStatement)) {
+            return -1;
+        }
+        AssignmentStatement jump = (AssignmentStatement) cond.getStatement();
+        AssignmentOperation[] ops = jump.getOperations();
+        if (!(jump.getTarget() instanceof BranchReference) || ops.length != 1
+                || operandKind(ops[0].getValue()) != CONST) {
+            return -1;
+        }
+        int value = operandValue(ops[0].getValue());
+        switch (ops[0].getOperation()) {
+            case OP_ASSIGN:
+                return value;
+            case OP_PLUS:
+                return pos + value;
+            case OP_MINUS:
+                return pos - value;
+            default:
+                return -1;
+        }
+    }
+
+    private static MigolStatement match(MigolParsedProgram program, int start, int end) {
+        int length = end - start;
+        // Cells stepped by a constant, in the order of the body
+        int[] cells = new int[length];
+        int[] steps = new int[length];
+        int updates = 0;
+        int store = -1;
+        int storeCell = 0;
+        int storeKind = 0;
+        int storeValue = 0;
+        for (int i = 0; i < length; i++) {
+            MigolStatement stmt = program.getStatement(start + i);
+            if (!(stmt instanceof AssignmentStatement)) {
+                return null;
+            }
+            AssignmentStatement assign = (AssignmentStatement) stmt;
+            AssignmentOperation[] ops = assign.getOperations();
+            int targetKind = targetKind(assign.getTarget());
+            if (ops.length != 1 || (targetKind != CELL && targetKind != POINTER)) {
+                return null;
+            }
+            int operation = ops[0].getOperation();
+            int kind = operandKind(ops[0].getValue());
+            int value = (kind < 0) ? 0 : operandValue(ops[0].getValue());
+            int cell = operandValue((MigolValue) assign.getTarget());
+            if (targetKind == CELL && kind == CONST
+                    && (operation == OP_PLUS || operation == OP_MINUS)) {
+                if (indexOf(cells, updates, cell) >= 0) {
+                    return null;
+                }
+                cells[updates] = cell;
+                steps[updates++] = (operation == OP_MINUS) ? -value : value;
+            } else if (targetKind == POINTER && operation == OP_ASSIGN
+                    && (kind == CONST || kind == POINTER) && store < 0) {
+                store = i;
+                storeCell = cell;
+                storeKind = kind;
+                storeValue = value;
+            } else {
+                return null;
+            }
+        }
+        ConditionalStatement branch = (ConditionalStatement) program.getStatement(end);
+        int condtype = branch.getCondtype();
+        int condKind = operandKind(branch.getValue());
+        int condCell = operandValue(branch.getValue());
+        MigolStatement first = program.getStatement(start);
+        if (store < 0) {
+            if (updates != 1 || steps[0] == 0 || condKind != POINTER || condCell != cells[0]) {
+                return null;
+            }
+            return new ScanLoop(first, end, cells[0], steps[0], condtype);
+        }
+        int pointer = indexOf(cells, updates, storeCell);
+        int counter = indexOf(cells, updates, condCell);
+        if (condKind != CELL || pointer < 0 || counter < 0 || pointer == counter) {
+            return null;
+        }
+        int step = steps[pointer];
+        int count = steps[counter];
+        if ((step != 1 && step != -1) || (count != 1 && count != -1)) {
+            return null;
+        }
+        if (!(condtype == COND_NEQ || count < 0 && condtype == COND_GT
+                || count > 0 && condtype == COND_LT)) {
+            return null;
+        }
+        int pointerOffset = (pointer < store) ? 1 : 0;
+        if (storeKind == CONST) {
+            if (updates != 2) {
+                return null;
+            }
+            return new BlockLoop(first, end, false, storeCell, pointerOffset, storeValue, 0,
+                    step, condCell, count, condtype);
+        }
+        int source = indexOf(cells, updates, storeValue);
+        if (updates != 3 || source < 0 || source == pointer || source == counter
+                || steps[source] != step) {
+            return null;
+        }
+        return new BlockLoop(first, end, true, storeCell, pointerOffset, storeValue,
+                (source < store) ? 1 : 0, step, condCell, count, condtype);
+    }
+
+    private static int indexOf(int[] cells, int length, int cell) {
+        for (int i = 0; i < length; i++) {
+            if (cells[i] == cell) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A fill or copy loop driven by a counter cell.
+     */
+    private static class BlockLoop implements MigolStatement {
+
+        private static final long serialVersionUID = -4529157208398167312L;
+        private final MigolStatement first;
+        private final int end;
+        private final boolean copy;
+        private final int pointer;
+        private final int pointerOffset;
+        /**
+         * The fill value, or the source pointer cell of a copy.
+         */
+        private final int value;
+        private final int sourceOffset;
+        private final int step;
+        private final int counter;
+        private final int count;
+        private final int condtype;
+
+        private BlockLoop(MigolStatement first, int end, boolean copy, int pointer,
+                int pointerOffset, int value, int sourceOffset, int step, int counter,
+                int count, int condtype) {
+            this.first = first;
+            this.end = end;
+            this.copy = copy;
+            this.pointer = pointer;
+            this.pointerOffset = pointerOffset;
+            this.value = value;
+            this.sourceOffset = sourceOffset;
+            this.step = step;
+            this.counter = counter;
+            this.count = count;
+            this.condtype = condtype;
+        }
+
+        public void executeStatement(MigolExecutionSession session) throws MigolExecutionException {
+            int[] mem = session.getMemory();
+            if (!inMemory(mem, pointer) || !inMemory(mem, counter)
+                    || copy && !inMemory(mem, value)) {
+                first.executeStatement(session);
+                return;
+            }
+            // The counter is tested after each iteration. If it does not
+            // move towards zero, ?> and ?< stop after one iteration
+            long iterations = -(long) mem[counter] * count;
+            if (iterations <= 0) {
+                iterations = (condtype == COND_NEQ) ? -1 : 1;
+            }
+            if (iterations < 0) {
+                first.executeStatement(session);
+                return;
+            }
+            long dst = block(mem[pointer], pointerOffset, iterations);
+            if (!inMemory(mem, dst, iterations) || overlaps(dst, iterations, pointer)
+                    || overlaps(dst, iterations, counter)) {
+                first.executeStatement(session);
+                return;
+            }
+            int k = (int) iterations;
+            if (copy) {
+                long src = block(mem[value], sourceOffset, iterations);
+                // Copying in the direction of the loop must never read a
+                // cell which has already been written
+                boolean forward = (step > 0) ? dst <= src : dst >= src;
+                if (!inMemory(mem, src, iterations) || overlaps(src, iterations, pointer)
+                        || overlaps(src, iterations, counter) || overlaps(src, iterations, value)
+                        || overlaps(dst, iterations, value)
+                        || !forward && src < dst + k && dst < src + k) {
+                    first.executeStatement(session);
+                    return;
+                }
+                System.arraycopy(mem, (int) src, mem, (int) dst, k);
+                mem[value] += step * k;
+            } else {
+                Arrays.fill(mem, (int) dst, (int) dst + k, value);
+            }
+            mem[pointer] += step * k;
+            mem[counter] += count * k;
+            session.setPP(end + 1);
+            session.setPPLocked(true);
+        }
+
+        /**
+         * Returns the lowest address of the block accessed through a
+         * pointer.
+         */
+        private long block(int start, int offset, long iterations) {
+            long first = (long) start + step * offset;
+            return (step > 0) ? first : first - (iterations - 1);
+        }
+
+        private static boolean inMemory(int[] mem, int cell) {
+            return cell >= 0 && cell < mem.length;
+        }
+
+        private static boolean inMemory(int[] mem, long low, long length) {
+            return low >= 0 && low + length <= mem.length;
+        }
+
+        private static boolean overlaps(long low, long length, int cell) {
+            return cell >= low && cell < low + length;
+        }
+    }
+
+    /**
+     * A loop which steps a pointer until the cell it points at fails the
+     * condition.
+     */
+    private static class ScanLoop implements MigolStatement {
+
+        private static final long serialVersionUID = 5563218034893104478L;
+        private final MigolStatement first;
+        private final int end;
+        private final int pointer;
+        private final int step;
+        private final int condtype;
+
+        private ScanLoop(MigolStatement first, int end, int pointer, int step, int condtype) {
+            this.first = first;
+            this.end = end;
+            this.pointer = pointer;
+            this.step = step;
+            this.condtype = condtype;
+        }
+
+        public void executeStatement(MigolExecutionSession session) throws MigolExecutionException {
+            int[] mem = session.getMemory();
+            int address = mem[pointer];
+            int length = mem.length;
+            while (true) {
+                address += step;
+                if (address < 0 || address >= length) {
+                    // The branch fails the same way as in the original loop
+                    mem[pointer] = address;
+                    session.setPP(end);
+                    throw new ArrayIndexOutOfBoundsException(address);
+                }
+                // The pointer cell holds the address itself while scanning
+                int cell = (address == pointer) ? address : mem[address];
+                if (!test(condtype, cell, session)) {
+                    break;
+                }
+            }
+            mem[pointer] = address;
+            session.setPP(end + 1);
+            session.setPPLocked(true);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2009 John Eriksson
+
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package se.migomipo.migol.optimizer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects what the optimization passes did to a program.
+ *
+ * Every rewrite is recorded with a short name, for example
+ * <code>"modify-branch"</code>, and the position of the affected statement.
+ * The report can be printed to see which rewrites fire on a program.
+ *
+ * Instances of this class are not safe for use by multiple concurrent
+ * threads.
+ * @author John Eriksson
+ */
+public class OptimizationReport {
+
+    private final Map<String, List<Integer>> rewrites =
+            new TreeMap<String, List<Integer>>();
+
+    /**
+     * Records a rewrite.
+     * @param name  The name of the rewrite.
+     * @param pos   The position of the first statement affected by the
+     * rewrite.
+     */
+    public void record(String name, int pos) {
+        List<Integer> positions = rewrites.get(name);
+        if (positions == null) {
+            positions = new ArrayList<Integer>();
+            rewrites.put(name, positions);
+        }
+        positions.add(pos);
+    }
+
+    /**
+     * Returns how many times a rewrite has been recorded.
+     * @param name  The name of the rewrite.
+     * @return  The number of times the rewrite was applied.
+     */
+    public int getCount(String name) {
+        List<Integer> positions = rewrites.get(name);
+        return (positions == null) ? 0 : positions.size();
+    }
+
+    /**
+     * Returns the positions where a rewrite was applied.
+     * @param name  The name of the rewrite.
+     * @return  The statement positions, in the order they were recorded.
+     */
+    public List<Integer> getPositions(String name) {
+        List<Integer> positions = rewrites.get(name);
+        if (positions == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(positions);
+    }
+
+    /**
+     * Returns the total number of recorded rewrites.
+     * @return  The number of rewrites.
+     */
+    public int getTotal() {
+        int total = 0;
+        for (List<Integer> positions : rewrites.values()) {
+            total += positions.size();
+        }
+        return total;
+    }
+
+    /**
+     * Returns one line for each kind of rewrite, with the number of times it
+     * was applied and the affected statement positions.
+     * @return  The report as a string.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, List<Integer>> entry : rewrites.entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue().size());
+            sb.append(" at ").append(entry.getValue()).append('\n');
+        }
+        if (sb.length() == 0) {
+            sb.append("no rewrites\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ * Copyright (c) 2009 John Eriksson
+
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package se.migomipo.migol.optimizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import se.migomipo.migol.*;
+import static se.migomipo.migol.AssignmentOperation.*;
+
+/**
+ * Rewrites parsed programs into specialized statement nodes.
+ *
+ * Most statements in Migol programs are assignments to a fixed memory cell
+ * with constant or single-deferred operands. The generic
+ * {@link AssignmentStatement} executes these through a chain of interface
+ * calls and a <code>switch</code> on the operator. This class replaces them
+ * with node classes which only do the work needed for their particular
+ * shape, for example "add a constant to a fixed cell" or "branch to a
+ * constant address if a cell is zero".
+ *
+ * The lowering is lazy. {@link #lower(MigolParsedProgram)} only wraps every
+ * statement in a quickening node. When such a node is executed the first
+ * time, it inspects the operands of the wrapped statement, selects the
+ * fastest node class which can execute it, and replaces itself in the
+ * program with that node. Statements which are never executed are never
+ * analyzed, which keeps the startup cost proportional to the code that is
+ * actually run.
+ *
+ * Statements which do not match any specialized form, for example I/O
+ * calls, are left unchanged. No code generation is involved, the result
+ * is executed by the normal interpreter in {@link MigolExecutionSession}.
+ * @author John Eriksson
+ */
+public class StatementQuickener {
+
+    static final int CONST = 0;
+    static final int CELL = 1;
+    static final int POINTER = 2;
+    static final int BRANCH = 3;
+
+    private StatementQuickener() {
+    }
+
+    /**
+     * Creates a copy of a program where every statement rewrites itself into
+     * a specialized node the first time it is executed.
+     *
+     * The returned program must not be shared between concurrently running
+     * sessions.
+     * @param program   The program to be lowered.
+     * @return  The lowered program.
+     */
+    public static MigolParsedProgram lower(MigolParsedProgram program) {
+        List<MigolStatement> statements = program.getStatements();
+        List<MigolStatement> wrapped = new ArrayList<MigolStatement>(statements.size());
+        for (int i = 0; i < statements.size(); i++) {
+            wrapped.add(null);
+        }
+        MigolParsedProgram lowered = new MigolParsedProgram(wrapped);
+        for (int i = 0; i < statements.size(); i++) {
+            lowered.setStatement(i + 1, new QuickeningStatement(lowered, statements.get(i)));
+        }
+        return lowered;
+    }
+
+    /**
+     * Returns the specialized form of a statement.
+     * @param stmt  The statement.
+     * @return  A specialized statement node, or <code>stmt</code> itself if
+     * no specialized form exists.
+     */
+    public static MigolStatement quicken(MigolStatement stmt) {
+        if (stmt instanceof ConditionalStatement) {
+            ConditionalStatement cond = (ConditionalStatement) stmt;
+            int kind = operandKind(cond.getValue());
+            if (kind < 0) {
+                return stmt;
+            }
+            int value = operandValue(cond.getValue());
+            MigolStatement inner = cond.getStatement();
+            if (inner instanceof AssignmentStatement) {
+                AssignmentStatement assign = (AssignmentStatement) inner;
+                AssignmentOperation[] ops = assign.getOperations();
+                if (assign.getTarget() instanceof BranchReference && ops.length == 1
+                        && operandKind(ops[0].getValue()) == CONST
+                        && (ops[0].getOperation() == OP_ASSIGN
+                        || ops[0].getOperation() == OP_PLUS
+                        || ops[0].getOperation() == OP_MINUS)) {
+                    int target = operandValue(ops[0].getValue());
+                    if (ops[0].getOperation() == OP_MINUS) {
+                        target = -target;
+                    }
+                    return new ConditionalJump(cond.getCondtype(), kind, value,
+                            ops[0].getOperation() != OP_ASSIGN, target);
+                }
+            }
+            return new Conditional(cond.getCondtype(), kind, value, quicken(inner));
+        } else if (stmt instanceof AssignmentStatement) {
+            return quickenAssignment((AssignmentStatement) stmt);
+        }
+        return stmt;
+    }
+
+    private static MigolStatement quickenAssignment(AssignmentStatement assign) {
+        int targetKind = targetKind(assign.getTarget());
+        if (targetKind < 0) {
+            return assign;
+        }
+        int target = (targetKind == BRANCH) ? 0 : operandValue((MigolValue) assign.getTarget());
+        AssignmentOperation[] ops = assign.getOperations();
+        int[] operations = new int[ops.length];
+        int[] kinds = new int[ops.length];
+        int[] values = new int[ops.length];
+        for (int i = 0; i < ops.length; i++) {
+            operations[i] = ops[i].getOperation();
+            kinds[i] = operandKind(ops[i].getValue());
+            if (kinds[i] < 0 || operations[i] < OP_ASSIGN || operations[i] > OP_GTEQ) {
+                return assign;
+            }
+            values[i] = operandValue(ops[i].getValue());
+        }
+        if (ops.length == 1) {
+            int op = operations[0];
+            if (targetKind == CELL) {
+                if (op == OP_ASSIGN && kinds[0] == CONST) {
+                    return new AssignConstant(target, values[0]);
+                } else if (op == OP_ASSIGN && kinds[0] == CELL) {
+                    return new CopyCell(target, values[0]);
+                } else if ((op == OP_PLUS || op == OP_MINUS) && kinds[0] == CONST) {
+                    return new AddConstant(target, op == OP_PLUS ? values[0] : -values[0]);
+                } else if ((op == OP_PLUS || op == OP_MINUS) && kinds[0] == CELL) {
+                    return new AddCell(target, values[0], op == OP_MINUS);
+                }
+            } else if (targetKind == BRANCH && kinds[0] == CONST) {
+                if (op == OP_ASSIGN) {
+                    return new Jump(false, values[0]);
+                } else if (op == OP_PLUS || op == OP_MINUS) {
+                    return new Jump(true, op == OP_PLUS ? values[0] : -values[0]);
+                }
+            }
+        }
+        return new DecodedAssignment(targetKind, target, operations, kinds, values);
+    }
+
+    /**
+     * Classifies a target reference.
+     * @return  <code>CELL</code>, <code>POINTER</code>, <code>BRANCH</code>
+     * or -1 if the reference has no specialized form.
+     */
+    static int targetKind(MigolReference ref) {
+        if (ref instanceof BranchReference) {
+            return BRANCH;
+        } else if (ref instanceof MigolValue) {
+            // A constant address is the target cell, [a] points at the cell
+            int kind = operandKind((MigolValue) ref);
+            if (kind == CONST) {
+                return CELL;
+            } else if (kind == CELL) {
+                return POINTER;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Classifies an operand value.
+     * @return  <code>CONST</code> for integers and labels, <code>CELL</code>
+     * for <code>[a]</code>, <code>POINTER</code> for <code>[[a]]</code>,
+     * or -1 if the value has no specialized form.
+     */
+    static int operandKind(MigolValue val) {
+        if (val instanceof IntegerValue) {
+            return CONST;
+        } else if (val instanceof LabelValue) {
+            return ((LabelValue) val).getValue() != null ? CONST : -1;
+        } else if (val instanceof DeferValue) {
+            DeferValue defer = (DeferValue) val;
+            MigolReference ref = defer.getReference();
+            if ((ref instanceof IntegerValue || ref instanceof LabelValue)
+                    && operandKind((MigolValue) ref) == CONST) {
+                if (defer.getDefers() == 1) {
+                    return CELL;
+                } else if (defer.getDefers() == 2) {
+                    return POINTER;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the constant part of an operand accepted by
+     * {@link #operandKind(MigolValue)}.
+     */
+    static int operandValue(MigolValue val) {
+        if (val instanceof IntegerValue) {
+            return ((IntegerValue) val).getInternalValue();
+        } else if (val instanceof LabelValue) {
+            return ((LabelValue) val).getValue().getInternalValue();
+        } else {
+            return operandValue((MigolValue) ((DeferValue) val).getReference());
+        }
+    }
+
+    static int load(int[] mem, int kind, int value) {
+        switch (kind) {
+            case CONST:
+                return value;
+            case CELL:
+                return mem[value];
+            default:
+                return mem[mem[value]];
+        }
+    }
+
+    /**
+     * Placeholder installed by {@link StatementQuickener#lower(MigolParsedProgram)}.
+     * Replaces itself with the specialized form of the wrapped statement when
+     * it is executed the first time.
+     */
+    private static class QuickeningStatement implements MigolStatement {
+
+        private static final long serialVersionUID = 2841147829711502237L;
+        private final MigolParsedProgram program;
+        private final MigolStatement statement;
+
+        private QuickeningStatement(MigolParsedProgram program, MigolStatement statement) {
+            this.program = program;
+            this.statement = statement;
+        }
+
+        public void executeStatement(MigolExecutionSession session) throws MigolExecutionException {
+            // The program pointer is the position of this statement until
+            // the statement itself writes it
+            MigolStatement quick = quicken(statement);
+            program.setStatement(session.getPP(), quick);
+            quick.executeStatement(session);
+        }
+    }
+
+    /**
+     * <code>a&lt;k</code>
+     */
+    private static class AssignConstant implements MigolStatement {
+
+        private static final long serialVersionUID = -1939620312424385006L;
+        private final int cell;
+        private final int value;
+
+        private AssignConstant(int cell, int value) {
+            this.cell = cell;
+            this.value = value;
+        }
+
+        public void executeStatement(MigolExecutionSession session) {
+            session.getMemory()[cell] = value;
+        }
+    }
+
+    /**
+     * <code>a&lt;$+k</code> and <code>a&lt;$-k</code>
+     */
+    private static class AddConstant implements MigolStatement {
+
+        private static final long serialVersionUID = 5040453620953530817L;
+        private final int cell;
+        private final int value;
+
+        private AddConstant(int cell, int value) {
+            this.cell = cell;
+            this.value = value;
+        }
+
+        public void executeStatement(MigolExecutionSession session) {
+            session.getMemory()[cell] += value;
+        }
+    }
+
+    /**
+     * <code>a&lt;[b]</code>
+     */
+    private static class CopyCell implements MigolStatement {
+
+        private static final long serialVersionUID = 3530316383932874339L;
+        private final int cell;
+        private final int source;
+
+        private CopyCell(int cell, int source) {
+            this.cell = cell;
+            this.source = source;
+        }
+
+        public void executeStatement(MigolExecutionSession session) {
+            int[] mem = session.getMemory();
+            mem[cell] = mem[source];
+        }
+    }
+
+    /**
+     * <code>a&lt;$+[b]</code> and <code>a&lt;$-[b]</code>
+     */
+    private static class AddCell implements MigolStatement {
+
+        private static final long serialVersionUID = -2364404185513928377L;
+        private final int cell;
+        private final int source;
+        private final boolean subtract;
+
+        private AddCell(int cell, int source, boolean subtract) {
+            this.cell = cell;
+            this.source = source;
+            this.subtract = subtract;
+        }
+
+        public void executeStatement(MigolExecutionSession session) {
+            int[] mem = session.getMemory();
+            if (subtract) {
+                mem[cell] -= mem[source];
+            } else {
+                mem[cell] += mem[source];
+            }
+        }
+    }
+
+    /**
+     * <code>#&lt;k</code>, <code>#&lt;$+k</code> and <code>#&lt;$-k</code>
+     */
+    private static class Jump implements MigolStatement {
+
+        private static final long serialVersionUID = 6112839580263733150L;
+        private final boolean relative;
+        private final int target;
+
+        private Jump(boolean relative, int target) {
+            this.relative = relative;
+            this.target = target;
+        }
+
+        public void executeStatement(MigolExecutionSession session) {
+            session.setPP(relative ? session.getPP() + target : target);
+            session.setPPLocked(true);
+        }
+    }
+
+    /**
+     * A constant or relative branch with a condition on a constant, a cell
+     * or a pointer, for example <code>#&lt;loop?&gt;[a]</code>.
+     */
+    private static class ConditionalJump implements MigolStatement {
+
+        private static final long serialVersionUID = -3357452919442716590L;
+        private final int condtype;
+        private final int kind;
+        private final int value;
+        private final boolean relative;
+        private final int target;
+
+        private ConditionalJump(int condtype, int kind, int value, boolean relative, int target) {
+            this.condtype = condtype;
+            this.kind = kind;
+            this.value = value;
+            this.relative = relative;
+            this.target = target;
+        }
+
+        public void executeStatement(MigolExecutionSession session) throws MigolExecutionException {
+            if (ConditionalStatement.test(condtype, load(session.getMemory(), kind, value), session)) {
+                session.setPP(relative ? session.getPP() + target : target);
+                session.setPPLocked(true);
+            }
+        }
+    }
+
+    /**
+     * Any other conditional statement with a simple condition operand.
+     */
+    private static class Conditional implements MigolStatement {
+
+        private static final long serialVersionUID = 1609434460404432214L;
+        private final int condtype;
+        private final int kind;
+        private final int value;
+        private final MigolStatement statement;
+
+        private Conditional(int condtype, int kind, int value, MigolStatement statement) {
+            this.condtype = condtype;
+            this.kind = kind;
+            this.value = value;
+            this.statement = statement;
+        }
+
+        public void executeStatement(MigolExecutionSession session) throws MigolExecutionException {
+            if (ConditionalStatement.test(condtype, load(session.getMemory(), kind, value), session)) {
+                statement.executeStatement(session);
+            }
+        }
+    }
+
+    /**
+     * An assignment statement with simple operands, where the target and the
+     * operands have been decoded into integer arrays.
+     */
+    private static class DecodedAssignment implements MigolStatement {
+
+        private static final long serialVersionUID = 4520813327187771504L;
+        private final int targetKind;
+        private final int target;
+        private final int[] operations;
+        private final int[] kinds;
+        private final int[] values;
+
+        private DecodedAssignment(int targetKind, int target, int[] operations, int[] kinds, int[] values) {
+            this.targetKind = targetKind;
+            this.target = target;
+            this.operations = operations;
+            this.kinds = kinds;
+            this.values = values;
+        }
+
+        public void executeStatement(MigolExecutionSession session) throws MigolExecutionException {
+            int[] mem = session.getMemory();
+            for (int i = 0; i < operations.length; i++) {
+                int cal = load(mem, kinds[i], values[i]);
+                if (targetKind == BRANCH) {
+                    session.setPP(calculate(operations[i], session.getPP(), cal, session));
+                    session.setPPLocked(true);
+                } else {
+                    int address = (targetKind == CELL) ? target : mem[target];
+                    mem[address] = (operations[i] == OP_ASSIGN) ? cal
+                            : calculate(operations[i], mem[address], cal, session);
+                }
+            }
+        }
+    }
+}
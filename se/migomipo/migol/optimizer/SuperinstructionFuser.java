@@ -0,0 +1,475 @@
+/*
+ * Copyright (c) 2009 John Eriksson
+
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package se.migomipo.migol.optimizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import se.migomipo.migol.*;
+import static se.migomipo.migol.AssignmentOperation.*;
+import static se.migomipo.migol.optimizer.StatementQuickener.*;
+
+/**
+ * Fuses short sequences of statements into single superinstructions.
+ *
+ * Migol code is dominated by small patterns which span two or three
+ * statements, like "modify a cell, test it and branch", and by compound
+ * assignments where all operations hit the same cell. The interpreter
+ * executes each statement of such a pattern separately, with a dispatch and
+ * an interrupt check in between. This pass replaces them with a single
+ * statement node which executes the whole pattern at once.
+ *
+ * Any statement position can be the target of a branch, either through a
+ * label or through a computed write to <code>#</code>. A fused node is
+ * therefore only stored at the position of the first statement of the
+ * sequence, and all other positions keep their original statements. A
+ * branch into the middle of a sequence executes the original statements
+ * from there, so the positions and behaviour of the program are unchanged.
+ * Sequences are also split at every position which is a known branch
+ * target, so that loop heads get fused nodes of their own.
+ *
+ * Only statements which read and write plain memory cells are fused. These
+ * can not change the interrupt state, so the only visible difference is
+ * that pending interrupts are delivered after the whole sequence instead of
+ * after one of its statements. This is the same as if the I/O result had
+ * arrived slightly later.
+ * @author John Eriksson
+ */
+public class SuperinstructionFuser {
+
+    /**
+     * The maximum number of statements in a fused sequence.
+     */
+    private static final int MAX_SEQUENCE = 8;
+
+    private SuperinstructionFuser() {
+    }
+
+    /**
+     * Creates a copy of a program where common statement sequences have been
+     * fused into superinstructions.
+     * @param program   The program to be optimized.
+     * @param report    The report where the applied fusions are recorded,
+     * or <code>null</code>.
+     * @return  The optimized program.
+     */
+    public static MigolParsedProgram fuse(MigolParsedProgram program, OptimizationReport report) {
+        if (report == null) {
+            report = new OptimizationReport();
+        }
+        int size = program.size();
+        MigolParsedProgram fused = new MigolParsedProgram(program.getStatements());
+        boolean[] targets = findBranchTargets(program);
+        int pos = 1;
+        while (pos <= size) {
+            MigolStatement stmt = program.getStatement(pos);
+            if (!isSimple(stmt)) {
+                pos++;
+                continue;
+            }
+            int end = pos;
+            while (end < size && end - pos + 1 < MAX_SEQUENCE && !targets[end + 1]) {
+                MigolStatement next = program.getStatement(end + 1);
+                if (isSimple(next)) {
+                    end++;
+                } else {
+                    if (isBranch(next)) {
+                        end++;
+                    }
+                    break;
+                }
+            }
+            if (end > pos) {
+                fused.setStatement(pos, fuseSequence(program, pos, end, report));
+            } else if (isCompoundAssignment(stmt)) {
+                fused.setStatement(pos, compoundAssignment((AssignmentStatement) stmt));
+                report.record("compound-assign", pos);
+            }
+            pos = end + 1;
+        }
+        return fused;
+    }
+
+    private static MigolStatement fuseSequence(MigolParsedProgram program, int start, int end,
+            OptimizationReport report) {
+        MigolStatement first = program.getStatement(start);
+        MigolStatement last = program.getStatement(end);
+        if (end == start + 1 && isConstantModify(first) && last instanceof ConditionalStatement
+                && isBranch(last)) {
+            AssignmentStatement modify = (AssignmentStatement) first;
+            AssignmentOperation op = modify.getOperations()[0];
+            ConditionalStatement cond = (ConditionalStatement) last;
+            AssignmentOperation jump = ((AssignmentStatement) cond.getStatement()).getOperations()[0];
+            int value = operandValue(op.getValue());
+            int target = operandValue(jump.getValue());
+            report.record("modify-branch", start);
+            return new ModifyAndBranch(start,
+                    targetKind(modify.getTarget()), operandValue((MigolValue) modify.getTarget()),
+                    op.getOperation() == OP_ASSIGN,
+                    op.getOperation() == OP_MINUS ? -value : value,
+                    cond.getCondtype(), operandKind(cond.getValue()), operandValue(cond.getValue()),
+                    jump.getOperation() != OP_ASSIGN,
+                    jump.getOperation() == OP_MINUS ? -target : target);
+        }
+        List<MigolStatement> parts = new ArrayList<MigolStatement>();
+        List<Integer> positions = new ArrayList<Integer>();
+        for (int pos = start; pos <= end; pos++) {
+            MigolStatement stmt = program.getStatement(pos);
+            if (stmt instanceof NopStatement) {
+                continue;
+            }
+            if (isCompoundAssignment(stmt)) {
+                parts.add(compoundAssignment((AssignmentStatement) stmt));
+                report.record("compound-assign", pos);
+            } else {
+                parts.add(quicken(stmt));
+            }
+            positions.add(pos);
+        }
+        int[] offsets = new int[positions.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = positions.get(i);
+        }
+        boolean branches = isBranch(last);
+        report.record(branches ? "sequence-branch" : "sequence", start);
+        return new Sequence(parts.toArray(new MigolStatement[parts.size()]), offsets,
+                branches, end + 1);
+    }
+
+    /**
+     * Returns a table of all statement positions which are known to be
+     * branch targets, that is positions referred to by a label and targets
+     * of constant branches.
+     */
+    private static boolean[] findBranchTargets(MigolParsedProgram program) {
+        boolean[] targets = new boolean[program.size() + 2];
+        for (int pos = 1; pos <= program.size(); pos++) {
+            MigolStatement stmt = program.getStatement(pos);
+            markLabels(stmt, targets);
+            if (isBranch(stmt)) {
+                MigolStatement inner = (stmt instanceof ConditionalStatement)
+                        ? ((ConditionalStatement) stmt).getStatement() : stmt;
+                AssignmentOperation op = ((AssignmentStatement) inner).getOperations()[0];
+                int target = operandValue(op.getValue());
+                if (op.getOperation() == OP_PLUS) {
+                    target = pos + target;
+                } else if (op.getOperation() == OP_MINUS) {
+                    target = pos - target;
+                }
+                mark(targets, target);
+            }
+        }
+        return targets;
+    }
+
+    private static void markLabels(MigolStatement stmt, boolean[] targets) {
+        if (stmt instanceof ConditionalStatement) {
+            ConditionalStatement cond = (ConditionalStatement) stmt;
+            markLabels(cond.getValue(), targets);
+            markLabels(cond.getStatement(), targets);
+        } else if (stmt instanceof AssignmentStatement) {
+            AssignmentStatement assign = (AssignmentStatement) stmt;
+            markLabels(assign.getTarget(), targets);
+            for (AssignmentOperation op : assign.getOperations()) {
+                markLabels(op.getValue(), targets);
+            }
+        } else if (stmt instanceof ConsoleIOStatement) {
+            markLabels(((ConsoleIOStatement) stmt).getVal(), targets);
+        }
+    }
+
+    private static void markLabels(MigolReference ref, boolean[] targets) {
+        if (ref instanceof LabelValue) {
+            IntegerValue value = ((LabelValue) ref).getValue();
+            if (value != null) {
+                mark(targets, value.getInternalValue());
+            }
+        } else if (ref instanceof DeferValue) {
+            markLabels(((DeferValue) ref).getReference(), targets);
+        }
+    }
+
+    private static void mark(boolean[] targets, int pos) {
+        if (pos > 0 && pos < targets.length) {
+            targets[pos] = true;
+        }
+    }
+
+    /**
+     * Checks if a statement only reads and writes plain memory cells, and
+     * never writes the program pointer.
+     */
+    private static boolean isSimple(MigolStatement stmt) {
+        if (stmt instanceof NopStatement) {
+            return true;
+        } else if (stmt instanceof ConditionalStatement) {
+            ConditionalStatement cond = (ConditionalStatement) stmt;
+            return operandKind(cond.getValue()) >= 0 && !(cond.getStatement() instanceof NopStatement)
+                    && isSimple(cond.getStatement());
+        } else if (stmt instanceof AssignmentStatement) {
+            AssignmentStatement assign = (AssignmentStatement) stmt;
+            int kind = targetKind(assign.getTarget());
+            if (kind != CELL && kind != POINTER) {
+                return false;
+            }
+            for (AssignmentOperation op : assign.getOperations()) {
+                if (operandKind(op.getValue()) < 0 || op.getOperation() < OP_ASSIGN
+                        || op.getOperation() > OP_GTEQ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks if a statement is a constant or relative branch, optionally
+     * with a simple condition.
+     */
+    private static boolean isBranch(MigolStatement stmt) {
+        if (stmt instanceof ConditionalStatement) {
+            ConditionalStatement cond = (ConditionalStatement) stmt;
+            return operandKind(cond.getValue()) >= 0
+                    && cond.getStatement() instanceof AssignmentStatement
+                    && isBranch(cond.getStatement());
+        } else if (stmt instanceof AssignmentStatement) {
+            AssignmentStatement assign = (AssignmentStatement) stmt;
+            AssignmentOperation[] ops = assign.getOperations();
+            return assign.getTarget() instanceof BranchReference && ops.length == 1
+                    && operandKind(ops[0].getValue()) == CONST
+                    && (ops[0].getOperation() == OP_ASSIGN
+                    || ops[0].getOperation() == OP_PLUS
+                    || ops[0].getOperation() == OP_MINUS);
+        }
+        return false;
+    }
+
+    /**
+     * Checks for <code>a&lt;k</code>, <code>a&lt;$+k</code> and
+     * <code>a&lt;$-k</code> where <code>a</code> is a cell or a pointer.
+     */
+    private static boolean isConstantModify(MigolStatement stmt) {
+        if (!(stmt instanceof AssignmentStatement) || !isSimple(stmt)) {
+            return false;
+        }
+        AssignmentOperation[] ops = ((AssignmentStatement) stmt).getOperations();
+        return ops.length == 1 && operandKind(ops[0].getValue()) == CONST
+                && (ops[0].getOperation() == OP_ASSIGN
+                || ops[0].getOperation() == OP_PLUS
+                || ops[0].getOperation() == OP_MINUS);
+    }
+
+    /**
+     * Checks for an assignment with several operations on a fixed cell,
+     * where no operand depends on the cell.
+     */
+    private static boolean isCompoundAssignment(MigolStatement stmt) {
+        if (!(stmt instanceof AssignmentStatement) || !isSimple(stmt)) {
+            return false;
+        }
+        AssignmentStatement assign = (AssignmentStatement) stmt;
+        AssignmentOperation[] ops = assign.getOperations();
+        if (ops.length < 2 || targetKind(assign.getTarget()) != CELL) {
+            return false;
+        }
+        int cell = operandValue((MigolValue) assign.getTarget());
+        for (AssignmentOperation op : ops) {
+            int kind = operandKind(op.getValue());
+            // A pointer operand may point at the target cell
+            if (kind == POINTER || (kind == CELL && operandValue(op.getValue()) == cell)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static MigolStatement compoundAssignment(AssignmentStatement assign) {
+        AssignmentOperation[] ops = assign.getOperations();
+        List<int[]> decoded = new ArrayList<int[]>();
+        for (AssignmentOperation op : ops) {
+            int operation = op.getOperation();
+            int kind = operandKind(op.getValue());
+            int value = operandValue(op.getValue());
+            if ((operation == OP_PLUS || operation == OP_MINUS) && kind == CONST) {
+                if (operation == OP_MINUS) {
+                    value = -value;
+                }
+                int[] prev = decoded.isEmpty() ? null : decoded.get(decoded.size() - 1);
+                if (prev != null && prev[0] == OP_PLUS && prev[1] == CONST) {
+                    // Adjacent constant additions are merged
+                    prev[2] += value;
+                    continue;
+                }
+                operation = OP_PLUS;
+            }
+            decoded.add(new int[]{operation, kind, value});
+        }
+        int[] operations = new int[decoded.size()];
+        int[] kinds = new int[decoded.size()];
+        int[] values = new int[decoded.size()];
+        for (int i = 0; i < operations.length; i++) {
+            operations[i] = decoded.get(i)[0];
+            kinds[i] = decoded.get(i)[1];
+            values[i] = decoded.get(i)[2];
+        }
+        return new CompoundAssignment(operandValue((MigolValue) assign.getTarget()),
+                operations, kinds, values);
+    }
+
+    /**
+     * A constant assignment to a cell or pointer, followed by a conditional
+     * constant or relative branch. If the condition tests the modified
+     * location, the new value is tested without reading it back.
+     */
+    private static class ModifyAndBranch implements MigolStatement {
+
+        private static final long serialVersionUID = 7345716690348821572L;
+        private final int pos;
+        private final int targetKind;
+        private final int target;
+        private final boolean assign;
+        private final int value;
+        private final int condtype;
+        private final int kind;
+        private final int condvalue;
+        private final boolean same;
+        private final boolean relative;
+        private final int jump;
+
+        private ModifyAndBranch(int pos, int targetKind, int target, boolean assign, int value,
+                int condtype, int kind, int condvalue, boolean relative, int jump) {
+            this.pos = pos;
+            this.targetKind = targetKind;
+            this.target = target;
+            this.assign = assign;
+            this.value = value;
+            this.condtype = condtype;
+            this.kind = kind;
+            this.condvalue = condvalue;
+            this.same = condvalue == target && (targetKind == CELL && kind == CELL
+                    || targetKind == POINTER && kind == POINTER);
+            this.relative = relative;
+            this.jump = jump;
+        }
+
+        public void executeStatement(MigolExecutionSession session) throws MigolExecutionException {
+            int[] mem = session.getMemory();
+            int address = (targetKind == CELL) ? target : mem[target];
+            int result = assign ? value : mem[address] + value;
+            mem[address] = result;
+            int cond;
+            // A pointer is read again if the write changed the pointer itself
+            if (same && (targetKind == CELL || address != target)) {
+                cond = result;
+            } else {
+                try {
+                    cond = load(mem, kind, condvalue);
+                } catch (ArrayIndexOutOfBoundsException ex) {
+                    session.setPP(pos + 1);
+                    throw ex;
+                }
+            }
+            if (ConditionalStatement.test(condtype, cond, session)) {
+                session.setPP(relative ? pos + 1 + jump : jump);
+            } else {
+                session.setPP(pos + 2);
+            }
+            session.setPPLocked(true);
+        }
+    }
+
+    /**
+     * A sequence of simple statements, optionally ending with a branch.
+     */
+    private static class Sequence implements MigolStatement {
+
+        private static final long serialVersionUID = -6148470941542096305L;
+        private final MigolStatement[] parts;
+        private final int[] positions;
+        private final boolean branches;
+        private final int next;
+
+        private Sequence(MigolStatement[] parts, int[] positions, boolean branches, int next) {
+            this.parts = parts;
+            this.positions = positions;
+            this.branches = branches;
+            this.next = next;
+        }
+
+        public void executeStatement(MigolExecutionSession session) throws MigolExecutionException {
+            int last = branches ? parts.length - 1 : parts.length;
+            int i = 0;
+            try {
+                for (; i < last; i++) {
+                    parts[i].executeStatement(session);
+                }
+            } catch (ArrayIndexOutOfBoundsException ex) {
+                session.setPP(positions[i]);
+                throw ex;
+            }
+            if (branches) {
+                session.setPP(positions[last]);
+                parts[last].executeStatement(session);
+                if (session.getPPLocked()) {
+                    return;
+                }
+            }
+            session.setPP(next);
+            session.setPPLocked(true);
+        }
+    }
+
+    /**
+     * An assignment with several operations on a fixed cell, where the
+     * value is kept in a local variable until all operations are done.
+     */
+    private static class CompoundAssignment implements MigolStatement {
+
+        private static final long serialVersionUID = 2091753186046432895L;
+        private final int cell;
+        private final int[] operations;
+        private final int[] kinds;
+        private final int[] values;
+
+        private CompoundAssignment(int cell, int[] operations, int[] kinds, int[] values) {
+            this.cell = cell;
+            this.operations = operations;
+            this.kinds = kinds;
+            this.values = values;
+        }
+
+        public void executeStatement(MigolExecutionSession session) throws MigolExecutionException {
+            int[] mem = session.getMemory();
+            int result = mem[cell];
+            for (int i = 0; i < operations.length; i++) {
+                int cal = (kinds[i] == CONST) ? values[i] : mem[values[i]];
+                result = (operations[i] == OP_PLUS) ? result + cal
+                        : calculate(operations[i], result, cal, session);
+            }
+            mem[cell] = result;
+        }
+    }
+}